@@ -0,0 +1,91 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Random;
+
+import com.google.common.base.Objects;
+
+/**
+ * Polls with exponential backoff from an initial delay up to a cap, with random jitter so that
+ * many concurrent waits do not poll in lock-step.
+ * <p>
+ * If given a {@link ReadinessHistory}, it also polls at a short fast period in a window around the
+ * time at which readiness is expected (the median of recent waits), and does not let a long backoff
+ * delay skip past the start of that window.
+ */
+public class BackoffPollSchedule implements PollSchedule {
+
+    private static final Random RANDOM = new Random();
+
+    private final long initialMillis;
+    private final double multiplier;
+    private final long maxMillis;
+    private final double jitter;
+
+    private ReadinessHistory history;
+    private long fastPeriodMillis;
+    private double fastWindow;
+
+    /**
+     * @param initialMillis delay before the first check
+     * @param multiplier factor by which the delay grows after each check
+     * @param maxMillis cap on the delay
+     * @param jitter fraction (between 0 and 1) by which each delay is randomly varied up or down
+     */
+    public BackoffPollSchedule(long initialMillis, double multiplier, long maxMillis, double jitter) {
+        checkArgument(initialMillis > 0, "initial delay must be positive");
+        checkArgument(multiplier >= 1, "multiplier must be at least 1");
+        checkArgument(maxMillis >= initialMillis, "max delay must be at least the initial delay");
+        checkArgument(jitter >= 0 && jitter < 1, "jitter must be between 0 and 1");
+        this.initialMillis = initialMillis;
+        this.multiplier = multiplier;
+        this.maxMillis = maxMillis;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Polls every {@code fastPeriodMillis} while the time elapsed is within {@code window} (a fraction, e.g. 0.25)
+     * of the expected readiness time learned from {@code history}.
+     */
+    public BackoffPollSchedule fastPhase(ReadinessHistory history, long fastPeriodMillis, double window) {
+        checkArgument(fastPeriodMillis > 0, "fast period must be positive");
+        checkArgument(window >= 0, "window must not be negative");
+        this.history = history;
+        this.fastPeriodMillis = fastPeriodMillis;
+        this.fastWindow = window;
+        return this;
+    }
+
+    public long nextDelayMillis(int attempt, long elapsedMillis) {
+        long delay = backoffDelay(attempt);
+
+        long expected = (history != null) ? history.getExpectedMillis() : -1;
+        if (expected > 0) {
+            long windowStart = (long) (expected * (1 - fastWindow));
+            long windowEnd = (long) (expected * (1 + fastWindow));
+            if (elapsedMillis < windowStart) {
+                delay = Math.min(delay, windowStart - elapsedMillis);
+            } else if (elapsedMillis <= windowEnd) {
+                delay = Math.min(delay, fastPeriodMillis);
+            }
+        }
+
+        if (jitter > 0) {
+            delay = Math.round(delay * (1 + jitter * (2 * RANDOM.nextDouble() - 1)));
+        }
+        return Math.max(1, Math.min(maxMillis, delay));
+    }
+
+    private long backoffDelay(int attempt) {
+        double result = initialMillis * Math.pow(multiplier, Math.max(0, attempt));
+        return (result >= maxMillis) ? maxMillis : (long) result;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("initialMillis", initialMillis).add("multiplier", multiplier)
+                .add("maxMillis", maxMillis).add("jitter", jitter).add("fastPeriodMillis", fastPeriodMillis).toString();
+    }
+
+}
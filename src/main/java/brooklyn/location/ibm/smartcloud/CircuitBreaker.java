@@ -0,0 +1,109 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.time.Time;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Stops calls to something which is failing, so that callers fail fast rather than piling on more load.
+ * <p>
+ * The breaker opens after a number of consecutive failures, and rejects every call while open. Once it has been
+ * open for a while it is half-open: a single call is let through as a probe, closing the breaker if it succeeds
+ * and opening it again if it fails.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /** thrown instead of making a call while the breaker is open */
+    public static class OpenException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        public OpenException(String message) { super(message); }
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+    private long opened;
+    private long rejected;
+
+    public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        this.name = checkNotNull(name, "name");
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Called before each call; must be followed by {@link #onSuccess()} or {@link #onFailure()} if it does not throw.
+     *
+     * @throws OpenException if the breaker is open, or half-open with its probe already in flight
+     */
+    public synchronized void acquire() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            LOG.info("Circuit breaker {} half-open after {}; probing", name, Time.makeTimeStringRounded(openMillis));
+            state = State.HALF_OPEN;
+        }
+        if (state == State.OPEN || (state == State.HALF_OPEN && probeInFlight)) {
+            rejected++;
+            throw new OpenException("Circuit breaker "+name+" is "+state+" after "+consecutiveFailures+" consecutive failures");
+        }
+        if (state == State.HALF_OPEN) probeInFlight = true;
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            LOG.info("Circuit breaker {} closed: probe succeeded", name);
+            state = State.CLOSED;
+        }
+        probeInFlight = false;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        probeInFlight = false;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            LOG.warn("Circuit breaker {} open for {} after {} consecutive failures", new Object[] { name,
+                    Time.makeTimeStringRounded(openMillis), consecutiveFailures });
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            opened++;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized Map<String, Object> toMap() {
+        return ImmutableMap.<String, Object>of(
+                "state", state.name(),
+                "consecutiveFailures", consecutiveFailures,
+                "opened", opened,
+                "rejected", rejected);
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker[" + name + "]";
+    }
+
+}
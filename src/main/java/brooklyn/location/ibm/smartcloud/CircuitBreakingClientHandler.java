@@ -0,0 +1,94 @@
+package brooklyn.location.ibm.smartcloud;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import brooklyn.location.ibm.smartcloud.SceErrors.Kind;
+import brooklyn.util.collections.MutableMap;
+
+import com.google.common.collect.Maps;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+
+/**
+ * Fails SCE calls fast while SCE is failing, rather than letting every caller retry into an outage.
+ * <p>
+ * There is a {@link CircuitBreaker} per data center and {@link ForwardingClientHandler.ApiClass API class}:
+ * calls naming a data center (e.g. createInstance) go through that data center's breaker, and other calls through
+ * a breaker shared by all data centers. Only timeouts and server errors count as failures; errors which SCE
+ * answered deliberately (e.g. quota exceeded or unknown key) show that it is responding, so count as successes.
+ */
+public class CircuitBreakingClientHandler extends ForwardingClientHandler {
+
+    /** the breaker key for calls which are not for a particular data center */
+    public static final String ALL_DATA_CENTERS = "all";
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final ConcurrentMap<String, CircuitBreaker> breakers = Maps.newConcurrentMap();
+
+    public CircuitBreakingClientHandler(DeveloperCloudClient delegate, int failureThreshold, long openMillis) {
+        super(delegate);
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    @Override
+    protected Object invoke(Method method, Object[] args) throws Throwable {
+        ApiClass apiClass = ApiClass.of(method);
+        if (apiClass == ApiClass.LOCAL) return forward(method, args);
+
+        CircuitBreaker breaker = getBreaker(getDataCenter(method, args), apiClass);
+        breaker.acquire();
+        try {
+            Object result = forward(method, args);
+            breaker.onSuccess();
+            return result;
+        } catch (Throwable t) {
+            Kind kind = SceErrors.classify(t);
+            if (kind == Kind.TIMEOUT || kind == Kind.SERVER_ERROR) {
+                breaker.onFailure();
+            } else {
+                breaker.onSuccess();
+            }
+            throw t;
+        }
+    }
+
+    /** records a failure in the data center not reported by a failed call, e.g. an instance which became FAILED */
+    public void recordFailure(String dataCenterID) {
+        getBreaker(dataCenterID, ApiClass.WRITE).onFailure();
+    }
+
+    public CircuitBreaker.State getState(String dataCenterID, ApiClass apiClass) {
+        return getBreaker(dataCenterID, apiClass).getState();
+    }
+
+    /** each breaker's state and counters, keyed by data center and API class */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> result = MutableMap.of();
+        for (Map.Entry<String, CircuitBreaker> entry : breakers.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toMap());
+        }
+        return result;
+    }
+
+    /** the data center a call is for, or {@link #ALL_DATA_CENTERS} */
+    protected String getDataCenter(Method method, Object[] args) {
+        if (method.getName().equals("createInstance") && args != null && args.length > 1 && args[1] instanceof String) {
+            return (String) args[1];
+        }
+        return ALL_DATA_CENTERS;
+    }
+
+    private CircuitBreaker getBreaker(String dataCenterID, ApiClass apiClass) {
+        String key = (dataCenterID != null ? dataCenterID : ALL_DATA_CENTERS) + "/" + apiClass.name().toLowerCase();
+        CircuitBreaker result = breakers.get(key);
+        if (result == null) {
+            breakers.putIfAbsent(key, new CircuitBreaker("sce/" + key, failureThreshold, openMillis));
+            result = breakers.get(key);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,24 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/** Checks at a constant period. */
+public class FixedPollSchedule implements PollSchedule {
+
+    private final long periodMillis;
+
+    public FixedPollSchedule(long periodMillis) {
+        checkArgument(periodMillis > 0, "period must be positive");
+        this.periodMillis = periodMillis;
+    }
+
+    public long nextDelayMillis(int attempt, long elapsedMillis) {
+        return periodMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "FixedPollSchedule[" + periodMillis + "ms]";
+    }
+
+}
@@ -0,0 +1,69 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+
+/**
+ * Base for layers which decorate every call to a {@link DeveloperCloudClient} (e.g. rate limiting or instrumentation).
+ * Subclasses override {@link #invoke(Method, Object[])}, calling {@link #forward(Method, Object[])} to pass the call on;
+ * calls are passed on with the client's own exceptions, unwrapped.
+ */
+public abstract class ForwardingClientHandler implements InvocationHandler {
+
+    private final DeveloperCloudClient delegate;
+
+    protected ForwardingClientHandler(DeveloperCloudClient delegate) {
+        this.delegate = checkNotNull(delegate, "delegate");
+    }
+
+    /** returns a client which passes every call through the given handler */
+    public static DeveloperCloudClient wrap(ForwardingClientHandler handler) {
+        return (DeveloperCloudClient) Proxy.newProxyInstance(DeveloperCloudClient.class.getClassLoader(),
+                new Class<?>[] { DeveloperCloudClient.class }, handler);
+    }
+
+    public DeveloperCloudClient getDelegate() {
+        return delegate;
+    }
+
+    public final Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return forward(method, args);
+        }
+        return invoke(method, args);
+    }
+
+    protected abstract Object invoke(Method method, Object[] args) throws Throwable;
+
+    protected Object forward(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** the kind of SCE API call a method makes, used to apply separate limits and report separate metrics */
+    public enum ApiClass {
+        /** calls which only read state, e.g. describeInstances */
+        READ,
+        /** calls which change state, e.g. createInstance or removeKey */
+        WRITE,
+        /** local calls, e.g. setting credentials */
+        LOCAL;
+
+        public static ApiClass of(Method method) {
+            String name = method.getName();
+            if (name.startsWith("describe") || name.startsWith("get") || name.startsWith("list")) return READ;
+            if (name.startsWith("set")) return LOCAL;
+            return WRITE;
+        }
+    }
+
+}
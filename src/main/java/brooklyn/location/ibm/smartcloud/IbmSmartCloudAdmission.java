@@ -0,0 +1,251 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.time.Time;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Admits new instances of an {@link IbmSmartCloudLocation} only while the account's instance quota has room,
+ * so that requests beyond the quota wait for capacity instead of each failing against SCE.
+ * <p>
+ * Instances are counted as those in the location's {@link IbmSmartCloudMachineRegistry} (which holds them until
+ * removed) plus those admitted but not yet registered. The quota is as configured or, if not configured,
+ * as discovered from the last quota error (forgotten after a while, as other users of the account free capacity).
+ * <p>
+ * Requests which must wait are queued per caller (e.g. per application), and admitted round-robin across callers
+ * as capacity frees, so that a burst from one caller cannot starve the others. Each waits until its deadline.
+ */
+public class IbmSmartCloudAdmission {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudAdmission.class);
+
+    /** how long a quota discovered from a quota error is believed */
+    private static final long DISCOVERED_QUOTA_TTL_MILLIS = 5*60*1000L;
+    /** how often waiters are checked for capacity freed other than by a release here, e.g. an expired discovered quota */
+    private static final long RECHECK_MILLIS = 1000L;
+
+    private final IbmSmartCloudMachineRegistry registry;
+    private final int configuredQuota;
+    private final ScheduledExecutorService scheduler;
+
+    /** waiters per caller, in the order callers are next served */
+    private final Map<String, Deque<Waiter>> queues = Maps.newLinkedHashMap();
+    private int inFlight;
+    private int discoveredQuota;
+    private long discoveredAt;
+    private int queueDepth;
+
+    private long admitted;
+    private long queued;
+    private long timedOut;
+    private long quotaErrors;
+    private final LatencyStats waitStats = new LatencyStats();
+
+    /**
+     * @param configuredQuota the most instances allowed in the account; 0 to learn it from quota errors
+     */
+    public IbmSmartCloudAdmission(IbmSmartCloudMachineRegistry registry, int configuredQuota) {
+        this.registry = checkNotNull(registry, "registry");
+        this.configuredQuota = configuredQuota;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("ibm-smartcloud-admission-%d").setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                capacityChanged();
+            }
+        }, RECHECK_MILLIS, RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Requests admission of a new instance for the given caller. The future completes once admitted, after which
+     * {@link #done()} must be called when the instance has been registered or its creation has failed.
+     * It fails with a {@link TimeoutException} if not admitted within the timeout.
+     */
+    public ListenableFuture<Void> admit(String caller, final long timeoutMillis) {
+        final Waiter waiter;
+        synchronized (this) {
+            if (queueDepth == 0 && hasCapacity()) {
+                inFlight++;
+                admitted++;
+                waitStats.record(0);
+                return Futures.immediateFuture(null);
+            }
+            waiter = new Waiter(caller);
+            Deque<Waiter> queue = queues.get(caller);
+            if (queue == null) {
+                queue = Lists.newLinkedList();
+                queues.put(caller, queue);
+            }
+            queue.add(waiter);
+            queueDepth++;
+            queued++;
+            LOG.debug("No capacity for a new instance in quota of {} ({} instances); {} queued behind {} others", new Object[] {
+                    getQuota(), getInstanceCount(), caller, queueDepth - 1 });
+        }
+        try {
+            waiter.timeout = scheduler.schedule(new Runnable() {
+                public void run() {
+                    if (remove(waiter)) {
+                        synchronized (IbmSmartCloudAdmission.this) {
+                            timedOut++;
+                        }
+                        waiter.future.setException(new TimeoutException("No capacity for a new instance in quota of " + getQuota()
+                                + " after waiting " + Time.makeTimeStringRounded(timeoutMillis)));
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down
+            remove(waiter);
+            waiter.future.setException(e);
+        }
+        waiter.future.addListener(new Runnable() {
+            public void run() {
+                if (waiter.future.isCancelled()) remove(waiter);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return waiter.future;
+    }
+
+    /** stops rechecking capacity; requests still waiting fail with a {@link CancellationException} */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        List<Waiter> waiting = Lists.newArrayList();
+        synchronized (this) {
+            for (Deque<Waiter> queue : queues.values()) {
+                waiting.addAll(queue);
+            }
+            queues.clear();
+            queueDepth = 0;
+        }
+        for (Waiter waiter : waiting) {
+            waiter.future.setException(new CancellationException("Admission of instances has been shut down"));
+        }
+    }
+
+    /** an admitted instance has been registered (and so is counted by the registry), or its creation has failed */
+    public void done() {
+        synchronized (this) {
+            inFlight--;
+        }
+        capacityChanged();
+    }
+
+    /** SCE refused to create an instance because the quota was reached; until configured, this discovers the quota */
+    public void recordQuotaError() {
+        synchronized (this) {
+            quotaErrors++;
+            if (configuredQuota > 0) return;
+            // the instance being refused was counted as in flight
+            discoveredQuota = Math.max(1, getInstanceCount() - 1);
+            discoveredAt = System.currentTimeMillis();
+            LOG.info("IBM SCE instance quota reached; limiting to {} instances for {}", discoveredQuota,
+                    Time.makeTimeStringRounded(DISCOVERED_QUOTA_TTL_MILLIS));
+        }
+    }
+
+    /** admits waiters, round-robin across callers, for as long as there is capacity */
+    public void capacityChanged() {
+        List<Waiter> admittedWaiters = Lists.newArrayList();
+        synchronized (this) {
+            while (queueDepth > 0 && hasCapacity()) {
+                Iterator<Map.Entry<String, Deque<Waiter>>> iterator = queues.entrySet().iterator();
+                Map.Entry<String, Deque<Waiter>> next = iterator.next();
+                iterator.remove();
+                Waiter waiter = next.getValue().poll();
+                // the caller goes to the back of the line for its next waiter
+                if (!next.getValue().isEmpty()) queues.put(next.getKey(), next.getValue());
+                queueDepth--;
+                inFlight++;
+                admitted++;
+                waitStats.record(System.currentTimeMillis() - waiter.queuedAt);
+                admittedWaiters.add(waiter);
+            }
+        }
+        for (Waiter waiter : admittedWaiters) {
+            if (waiter.timeout != null) waiter.timeout.cancel(false);
+            if (!waiter.future.set(null)) {
+                // cancelled concurrently; its admission is not wanted
+                done();
+            }
+        }
+    }
+
+    /** the quota applied: as configured, else as discovered, else 0 for no limit */
+    public synchronized int getQuota() {
+        if (configuredQuota > 0) return configuredQuota;
+        if (discoveredQuota > 0 && System.currentTimeMillis() - discoveredAt >= DISCOVERED_QUOTA_TTL_MILLIS) {
+            LOG.debug("Forgetting discovered IBM SCE instance quota of {}", discoveredQuota);
+            discoveredQuota = 0;
+        }
+        return discoveredQuota;
+    }
+
+    public synchronized Map<String, Object> getMetrics() {
+        return ImmutableMap.<String, Object>builder()
+                .put("quota", getQuota())
+                .put("instances", getInstanceCount())
+                .put("inFlight", inFlight)
+                .put("queueDepth", queueDepth)
+                .put("callersWaiting", queues.size())
+                .put("admitted", admitted)
+                .put("queued", queued)
+                .put("timedOut", timedOut)
+                .put("quotaErrors", quotaErrors)
+                .put("wait", waitStats.toMap())
+                .build();
+    }
+
+    private synchronized int getInstanceCount() {
+        return registry.size() + inFlight;
+    }
+
+    private synchronized boolean hasCapacity() {
+        int quota = getQuota();
+        return quota <= 0 || getInstanceCount() < quota;
+    }
+
+    private synchronized boolean remove(Waiter waiter) {
+        Deque<Waiter> queue = queues.get(waiter.caller);
+        if (queue == null || !queue.remove(waiter)) return false;
+        if (queue.isEmpty()) queues.remove(waiter.caller);
+        queueDepth--;
+        return true;
+    }
+
+    private static class Waiter {
+        final String caller;
+        final long queuedAt = System.currentTimeMillis();
+        final SettableFuture<Void> future = SettableFuture.create();
+        volatile ScheduledFuture<?> timeout;
+
+        Waiter(String caller) {
+            this.caller = caller;
+        }
+    }
+
+}
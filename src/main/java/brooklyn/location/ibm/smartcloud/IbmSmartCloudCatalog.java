@@ -0,0 +1,392 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+import com.ibm.cloud.api.rest.client.bean.Image;
+import com.ibm.cloud.api.rest.client.bean.InstanceType;
+import com.ibm.cloud.api.rest.client.bean.Location;
+
+/**
+ * Cache of the SCE catalog (data centers, images, and the instance types supported by each image),
+ * owned by an {@link IbmSmartCloudLocation}.
+ * <p>
+ * The catalog is listed in one go and indexed by location name, by data center (for images)
+ * and by image (for instance types), so repeated lookups are answered from memory rather than
+ * by listing every public image again. Entries expire after the configured TTL, after which lookups are still
+ * answered from the expired listing while it is reloaded in the background (and kept if that reload fails); only
+ * the first lookup, with nothing listed yet, waits for SCE. {@link #refresh()} forces a reload.
+ * <p>
+ * The memoized lookups can be exported with {@link #getMemo()} and {@link #preload(Map) preloaded} into a new catalog
+ * (e.g. after a restart), which then answers those lookups before it has listed anything from SCE.
+ */
+public class IbmSmartCloudCatalog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudCatalog.class);
+
+    private static final int DESCRIBE_LOCATIONS_RETRIES = 10;
+
+    private static final String LOCATION_PREFIX = "location.";
+    private static final String IMAGE_PREFIX = "image.";
+    private static final String INSTANCE_TYPE_PREFIX = "instanceType.";
+
+    private final DeveloperCloudClient client;
+    private final long ttlMillis;
+
+    private final Object refreshLock = new Object();
+    private final ThreadPoolExecutor refresher;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile long refreshRetryAt;
+    private volatile Snapshot snapshot;
+    private volatile Map<String, String> preloaded = ImmutableMap.of();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong preloadHits = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+    private final AtomicLong refreshTimeTotalMillis = new AtomicLong();
+    private final AtomicLong refreshTimeLastMillis = new AtomicLong();
+
+    public IbmSmartCloudCatalog(DeveloperCloudClient client, long ttlMillis) {
+        this.client = checkNotNull(client, "client");
+        this.ttlMillis = ttlMillis;
+        this.refresher = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("ibm-smartcloud-catalog-%d").setDaemon(true).build());
+        this.refresher.allowCoreThreadTimeOut(true);
+    }
+
+    /** returns the id of the first data center whose name contains the given string */
+    public String findLocationId(String location) {
+        checkNotNull(location, "location must not be null");
+        String preloadedResult = getPreloaded(LOCATION_PREFIX + location);
+        if (preloadedResult != null) return preloadedResult;
+        Snapshot s = getSnapshot();
+        String result = s.findLocationId(location);
+        if (result == null && !s.isFresh()) {
+            s = reload();
+            result = s.findLocationId(location);
+        }
+        if (result == null) {
+            LOG.warn("IBM SmartCloud unknown location " + location);
+            LOG.info("IBM SmartCloud locations (" + s.locations.size() + ") are:");
+            for (Location l : s.locations)
+                LOG.info("  " + l.getName() + " " + l.getLocation() + " " + l.getId());
+            throw new NoSuchElementException("Unknown IBM SmartCloud location " + location);
+        }
+        return result;
+    }
+
+    /** returns the id of the first image in the given data center whose name contains the given string */
+    public String findImageId(String imageName, String dataCenterID) {
+        checkNotNull(imageName, "image must not be null");
+        String preloadedResult = getPreloaded(IMAGE_PREFIX + imageName + "@" + dataCenterID);
+        if (preloadedResult != null) return preloadedResult;
+        Snapshot s = getSnapshot();
+        String result = s.findImageId(imageName, dataCenterID);
+        if (result == null && !s.isFresh()) {
+            s = reload();
+            result = s.findImageId(imageName, dataCenterID);
+        }
+        if (result == null) {
+            LOG.warn("IBM SmartCloud unknown image " + imageName + " (in location " + dataCenterID + ")");
+            LOG.info("IBM SmartCloud images (" + s.images.size() + ") are:");
+            for (Image img : s.images)
+                LOG.info("  " + img.getName() + " " + img.getLocation() + " " + img.getOwner() + " " + img.getID());
+            throw new NoSuchElementException("Unknown IBM SmartCloud image " + imageName);
+        }
+        return result;
+    }
+
+    /** returns the id of the first instance type supported by the given image whose label contains the given string */
+    public String findInstanceTypeId(String imageID, String instanceType) {
+        checkNotNull(instanceType, "instanceType must not be null");
+        String preloadedResult = getPreloaded(INSTANCE_TYPE_PREFIX + imageID + "/" + instanceType);
+        if (preloadedResult != null) return preloadedResult;
+        Snapshot s = getSnapshot();
+        String result = s.findInstanceTypeId(imageID, instanceType);
+        if (result == null) {
+            List<InstanceType> instanceTypes = s.getInstanceTypes(imageID);
+            LOG.warn("IBM SmartCloud unknown instanceType " + instanceType);
+            LOG.info("IBM SmartCloud instanceTypes (" + instanceTypes.size() + ") are:");
+            for (InstanceType i : instanceTypes)
+                LOG.info("  " + i.getLabel() + " " + i.getDetail() + " " + i.getId());
+            throw new NoSuchElementException("Unknown IBM SmartCloud instanceType " + instanceType);
+        }
+        return result;
+    }
+
+    /** discards all cached entries and reloads locations and images from SCE */
+    public void refresh() {
+        reload();
+    }
+
+    /** stops any background reload; lookups are then answered from the last listing, however old */
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * Seeds the catalog with lookup results previously returned by {@link #getMemo()}. These answer lookups only until
+     * the catalog is first listed from SCE, after which every lookup is checked against the listing.
+     */
+    public void preload(Map<String, String> memo) {
+        if (snapshot == null) preloaded = ImmutableMap.copyOf(memo);
+    }
+
+    /** the results of lookups made so far (or preloaded), keyed by query, for {@link #preload(Map)} */
+    public Map<String, String> getMemo() {
+        Snapshot s = snapshot;
+        if (s == null) return preloaded;
+        Map<String, String> result = MutableMap.of();
+        for (Map.Entry<String, String> entry : s.locationIdsByQuery.entrySet()) {
+            result.put(LOCATION_PREFIX + entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : s.imageIdsByQuery.entrySet()) {
+            result.put(IMAGE_PREFIX + entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : s.instanceTypeIdsByQuery.entrySet()) {
+            result.put(INSTANCE_TYPE_PREFIX + entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private String getPreloaded(String key) {
+        if (snapshot != null) return null;
+        String result = preloaded.get(key);
+        if (result != null) preloadHits.incrementAndGet();
+        return result;
+    }
+
+    protected Snapshot reload() {
+        synchronized (refreshLock) {
+            Stopwatch stopwatch = new Stopwatch().start();
+            List<Location> locations = describeLocations();
+            List<Image> images;
+            try {
+                images = client.describeImages();
+            } catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+            Snapshot result = new Snapshot(locations, images, System.currentTimeMillis());
+            snapshot = result;
+            preloaded = ImmutableMap.of();
+
+            long elapsed = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            refreshes.incrementAndGet();
+            refreshTimeTotalMillis.addAndGet(elapsed);
+            refreshTimeLastMillis.set(elapsed);
+            LOG.debug("Refreshed IBM SmartCloud catalog ({} locations, {} images) in {}",
+                    new Object[] { locations.size(), images.size(), Time.makeTimeStringRounded(elapsed) });
+            return result;
+        }
+    }
+
+    /** counters for lookups served from the cache, lookups which needed SCE, and time spent refreshing */
+    public Map<String, Object> getMetrics() {
+        long refreshCount = refreshes.get();
+        return ImmutableMap.<String, Object>builder()
+                .put("hits", hits.get())
+                .put("misses", misses.get())
+                .put("preloadHits", preloadHits.get())
+                .put("refreshes", refreshCount)
+                .put("refreshFailures", refreshFailures.get())
+                .put("refreshTimeLastMillis", refreshTimeLastMillis.get())
+                .put("refreshTimeMeanMillis", refreshCount == 0 ? 0 : refreshTimeTotalMillis.get() / refreshCount)
+                .build();
+    }
+
+    /** the current listing, even if expired (when it is reloaded in the background); waits only if nothing is listed yet */
+    protected Snapshot getSnapshot() {
+        Snapshot s = snapshot;
+        if (s == null) {
+            synchronized (refreshLock) {
+                s = snapshot;
+                return (s != null) ? s : reload();
+            }
+        }
+        if (s.isExpired()) refreshInBackground();
+        return s;
+    }
+
+    /**
+     * reloads on the refresher thread, unless a reload is already pending or the last one failed too recently;
+     * a failed reload is logged and the expired listing kept
+     */
+    private void refreshInBackground() {
+        if (System.currentTimeMillis() < refreshRetryAt || !refreshing.compareAndSet(false, true)) return;
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (snapshot.isExpired()) reload();
+                    } catch (Exception e) {
+                        refreshFailures.incrementAndGet();
+                        refreshRetryAt = System.currentTimeMillis() + Math.min(ttlMillis, 60*1000L);
+                        LOG.warn("Error refreshing IBM SmartCloud catalog; still using listing from "
+                                + Time.makeTimeStringRounded(System.currentTimeMillis() - snapshot.timestamp) + " ago (" + e + ")");
+                    } finally {
+                        refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shut down, so keep the listing we have
+            refreshing.set(false);
+        }
+    }
+
+    private List<Location> describeLocations() {
+        int retriesLeft = DESCRIBE_LOCATIONS_RETRIES;
+        while (true) {
+            try {
+                return client.describeLocations();
+            } catch (CircuitBreaker.OpenException e) {
+                // SCE is known to be failing; retrying now would only add to its load
+                throw e;
+            } catch (Exception e) {
+                retriesLeft--;
+                LOG.warn("Error reading IBM locations; retries left: "+retriesLeft+" ("+e+")");
+                if (retriesLeft<=0)
+                    throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    /** an immutable listing of the catalog with its indexes; results of substring lookups are memoized */
+    protected class Snapshot {
+        final List<Location> locations;
+        final List<Image> images;
+        final long timestamp;
+
+        final Map<String, Location> locationsByName;
+        final ListMultimap<String, Image> imagesByDataCenter;
+        final ConcurrentMap<String, List<InstanceType>> instanceTypesByImage = Maps.newConcurrentMap();
+
+        final ConcurrentMap<String, String> locationIdsByQuery = Maps.newConcurrentMap();
+        final ConcurrentMap<String, String> imageIdsByQuery = Maps.newConcurrentMap();
+        final ConcurrentMap<String, String> instanceTypeIdsByQuery = Maps.newConcurrentMap();
+
+        Snapshot(List<Location> locations, List<Image> images, long timestamp) {
+            this.locations = ImmutableList.copyOf(locations);
+            this.images = ImmutableList.copyOf(images);
+            this.timestamp = timestamp;
+
+            Map<String, Location> byName = MutableMap.of();
+            for (Location l : this.locations) {
+                if (!byName.containsKey(l.getName())) byName.put(l.getName(), l);
+            }
+            this.locationsByName = byName;
+
+            ListMultimap<String, Image> byDataCenter = ArrayListMultimap.create();
+            for (Image img : this.images) {
+                byDataCenter.put(img.getLocation(), img);
+            }
+            this.imagesByDataCenter = byDataCenter;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - timestamp > ttlMillis;
+        }
+
+        /** whether this snapshot was loaded so recently that re-listing on a failed lookup is pointless */
+        boolean isFresh() {
+            return System.currentTimeMillis() - timestamp < Math.min(ttlMillis, 60*1000L);
+        }
+
+        String findLocationId(String location) {
+            String result = locationIdsByQuery.get(location);
+            if (result != null) {
+                hits.incrementAndGet();
+                return result;
+            }
+            misses.incrementAndGet();
+            Location match = locationsByName.get(location);
+            if (match == null) {
+                for (Location l : locations) {
+                    if (l.getName().contains(location)) {
+                        match = l;
+                        break;
+                    }
+                }
+            }
+            if (match == null) return null;
+            locationIdsByQuery.putIfAbsent(location, match.getId());
+            return match.getId();
+        }
+
+        String findImageId(String imageName, String dataCenterID) {
+            String key = imageName + "@" + dataCenterID;
+            String result = imageIdsByQuery.get(key);
+            if (result != null) {
+                hits.incrementAndGet();
+                return result;
+            }
+            misses.incrementAndGet();
+            for (Image img : imagesByDataCenter.get(dataCenterID)) {
+                if (img.getName().contains(imageName)) {
+                    imageIdsByQuery.putIfAbsent(key, img.getID());
+                    return img.getID();
+                }
+            }
+            return null;
+        }
+
+        String findInstanceTypeId(String imageID, String instanceType) {
+            String key = imageID + "/" + instanceType;
+            String result = instanceTypeIdsByQuery.get(key);
+            if (result != null) {
+                hits.incrementAndGet();
+                return result;
+            }
+            misses.incrementAndGet();
+            for (InstanceType i : getInstanceTypes(imageID)) {
+                if (i.getLabel().contains(instanceType)) {
+                    instanceTypeIdsByQuery.putIfAbsent(key, i.getId());
+                    return i.getId();
+                }
+            }
+            return null;
+        }
+
+        /** instance types are only available per image, so are fetched on first use of each image */
+        List<InstanceType> getInstanceTypes(String imageID) {
+            List<InstanceType> result = instanceTypesByImage.get(imageID);
+            if (result != null) return result;
+            try {
+                result = ImmutableList.copyOf(client.describeImage(imageID).getSupportedInstanceTypes());
+            } catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+            List<InstanceType> old = instanceTypesByImage.putIfAbsent(imageID, result);
+            return old != null ? old : result;
+        }
+    }
+
+}
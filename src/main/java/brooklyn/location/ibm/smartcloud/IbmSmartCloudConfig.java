@@ -7,6 +7,9 @@ import brooklyn.location.cloud.CloudLocationConfig;
 public interface IbmSmartCloudConfig extends CloudLocationConfig {
    public static final ConfigKey<String> LOCATION = ConfigKeys.newStringConfigKey("location",
            "Override the location configured (default 'Raleigh')", "Raleigh");
+   public static final ConfigKey<String> LOCATIONS = ConfigKeys.newStringConfigKey("locations",
+           "Data centers to place machines in, in order of preference, each optionally weighted as name:weight "
+           + "(e.g. 'Raleigh:2, Ehningen'); machines go to the best-scoring by recent speed and failures (overrides location)");
    public static final ConfigKey<String> IMAGE = ConfigKeys.newStringConfigKey("image",
            "Override the image configured (default 'Red Hat Enterprise Linux 6.4 (64-bit)')",
            "Red Hat Enterprise Linux 6.4 (64-bit)");
@@ -16,10 +19,107 @@ public interface IbmSmartCloudConfig extends CloudLocationConfig {
    public static final ConfigKey<Long> CLIENT_POLL_TIMEOUT_MILLIS =
            ConfigKeys.newLongConfigKey("sce.client.poll.timeout", "how long to wait for the machine to be known via the SCE client, in millis", 90*60*1000L);
    public static final ConfigKey<Long> CLIENT_POLL_PERIOD_MILLIS =
-           ConfigKeys.newLongConfigKey("sce.client.poll.period", "how long to wait between ssh loop iterations (default 30 seconds)", 30*1000L);
+           ConfigKeys.newLongConfigKey("sce.client.poll.period", "the longest time to wait between checks of instance status (default 30 seconds)", 30*1000L);
+   public static final ConfigKey<Long> CLIENT_POLL_MIN_INTERVAL_MILLIS =
+           ConfigKeys.newLongConfigKey("sce.client.poll.minInterval", "the shortest time between calls to list instance status, however many machines are waiting (default 2 seconds)", 2*1000L);
+   public static final ConfigKey<PollSchedule> CLIENT_POLL_SCHEDULE = ConfigKeys.newConfigKey(PollSchedule.class,
+           "sce.client.poll.schedule", "how often to check instance status while waiting for it to change; "
+                   + "by default backs off with jitter up to sce.client.poll.period, polling faster around the time recent instances became active");
+   public static final ConfigKey<PollSchedule> SSH_POLL_SCHEDULE = ConfigKeys.newConfigKey(PollSchedule.class,
+           "ssh.poll.schedule", "how often to check whether a new machine is sshable; "
+                   + "by default backs off with jitter up to 10 seconds, polling faster around the time recent machines became sshable");
+
+   public static final ConfigKey<Long> CATALOG_TTL_MILLIS =
+           ConfigKeys.newLongConfigKey("sce.catalog.ttl", "how long the cached list of SCE locations, images and instance types is used before it is re-read in the background, in millis (default 30 minutes)", 30*60*1000L);
+
+   public static final ConfigKey<String> STATE_FILE =
+           ConfigKeys.newStringConfigKey("sce.state.file", "file in which to persist catalog lookups, machines and generated key pairs, "
+                   + "so that after a restart provisioning need not wait for the catalog and earlier machines can still be released (default none)");
+
+   public static final ConfigKey<Double> API_READ_RATE =
+           ConfigKeys.newConfigKey(Double.class, "sce.api.rate.read", "the most SCE read calls (e.g. describeInstances) to make per second, across all users of this location (default 5)", 5.0);
+   public static final ConfigKey<Double> API_WRITE_RATE =
+           ConfigKeys.newConfigKey(Double.class, "sce.api.rate.write", "the most SCE write calls (e.g. createInstance) to make per second, across all users of this location (default 2)", 2.0);
+
+   public static final ConfigKey<Integer> API_BREAKER_FAILURE_THRESHOLD =
+           ConfigKeys.newIntegerConfigKey("sce.api.breaker.failureThreshold", "how many consecutive SCE timeouts or server errors, per data center "
+                   + "and read or write calls, before further calls fail fast (default 5)", 5);
+   public static final ConfigKey<Long> API_BREAKER_OPEN_MILLIS =
+           ConfigKeys.newLongConfigKey("sce.api.breaker.openTime", "how long calls fail fast once the failure threshold is reached, "
+                   + "before a single call is let through to probe whether SCE has recovered, in millis (default 30 seconds)", 30*1000L);
+
+   public static final ConfigKey<Integer> PROVISIONING_MAX_CONCURRENT =
+           ConfigKeys.newIntegerConfigKey("provisioning.maxConcurrent", "the most machines which may be provisioned at once in this location, "
+                   + "not counting obtains still waiting for room in the instance quota; further obtains wait for one to finish, "
+                   + "up to provisioning.maxWait (default 50)", 50);
+   public static final ConfigKey<Long> PROVISIONING_MAX_WAIT_MILLIS =
+           ConfigKeys.newLongConfigKey("provisioning.maxWait", "how long an obtain may wait while provisioning.maxConcurrent "
+                   + "machines are being provisioned, before failing with NoMachinesAvailableException; obtainAsync never waits (default 1 minute)", 60*1000L);
+   public static final ConfigKey<Integer> TEARDOWN_MAX_WAITING =
+           ConfigKeys.newIntegerConfigKey("teardown.maxWaiting", "the most callers which may wait for their release to complete when release.async is false; "
+                   + "further releases wait for one to finish, up to teardown.maxWait (default 20)", 20);
+   public static final ConfigKey<Long> TEARDOWN_MAX_WAIT_MILLIS =
+           ConfigKeys.newLongConfigKey("teardown.maxWait", "how long a release may wait while teardown.maxWaiting callers are waiting "
+                   + "for theirs, before failing with IllegalStateException (its teardown still queued); releaseAsync never waits (default 1 minute)", 60*1000L);
+   public static final ConfigKey<Integer> INSTANCE_QUOTA =
+           ConfigKeys.newIntegerConfigKey("sce.instance.quota", "the most instances this location may have at once, e.g. the account's quota; "
+                   + "further obtains wait for a release (default 0, to learn the quota from quota errors)", 0);
+   public static final ConfigKey<Long> ADMISSION_TIMEOUT_MILLIS =
+           ConfigKeys.newLongConfigKey("admission.timeout", "how long an obtain may wait for room in the instance quota (default 15 minutes)", 15*60*1000L);
+   public static final ConfigKey<Integer> PROVISIONING_ASYNC_THREADS =
+           ConfigKeys.newIntegerConfigKey("provisioning.async.threads", "the threads which run the stages of obtainAsync; "
+                   + "machines waiting for ACTIVE or ssh hold none of them (default 4)", 4);
 
    public static final ConfigKey<Integer> INSTANCE_CREATION_RETRIES = 
            ConfigKeys.newIntegerConfigKey("instance.creation.retries", "how many retries to attempt to create a new instance (default 5 times)", 5);
+   public static final ConfigKey<Boolean> INSTANCE_CREATION_HEDGING =
+           ConfigKeys.newBooleanConfigKey("instance.creation.hedging", "whether to create a backup instance in parallel when one is slow to become ACTIVE, "
+                   + "using whichever is ACTIVE first and deleting the other", false);
+   public static final ConfigKey<Double> INSTANCE_CREATION_HEDGE_PERCENTILE =
+           ConfigKeys.newConfigKey(Double.class, "instance.creation.hedge.percentile", "the percentile (between 0 and 1) of recent times to ACTIVE "
+                   + "after which a backup instance is created (default 0.9)", 0.9);
+   public static final ConfigKey<Long> INSTANCE_CREATION_HEDGE_DELAY_MILLIS =
+           ConfigKeys.newLongConfigKey("instance.creation.hedge.delay", "how long to wait before creating a backup instance while too few instances "
+                   + "have become ACTIVE to judge by percentile, in millis (default 20 minutes)", 20*60*1000L);
+   public static final ConfigKey<Integer> INSTANCE_CREATION_HEDGE_MAX_CONCURRENT =
+           ConfigKeys.newIntegerConfigKey("instance.creation.hedge.maxConcurrent", "the most backup instances this location may have "
+                   + "in flight at once (default 2)", 2);
+
+   public static final ConfigKey<Integer> BATCH_PROVISIONING_PARALLELISM =
+           ConfigKeys.newIntegerConfigKey("batch.provisioning.parallelism", "how many machines to provision concurrently when obtaining several at once (default 10)", 10);
+
+   public static final ConfigKey<Boolean> RELEASE_ASYNC =
+           ConfigKeys.newBooleanConfigKey("release.async", "whether release returns as soon as the teardown is queued, rather than waiting for the instance to be removed "
+                   + "(default false; releaseAsync and releaseAll never wait)", false);
+   public static final ConfigKey<Integer> TEARDOWN_PARALLELISM =
+           ConfigKeys.newIntegerConfigKey("teardown.parallelism", "how many instance deletions to issue concurrently (default 10)", 10);
+   public static final ConfigKey<Integer> KEY_REMOVAL_ATTEMPTS =
+           ConfigKeys.newIntegerConfigKey("key.removal.attempts", "how many times to try removing a key pair once its instance is removed (default 5)", 5);
+   public static final ConfigKey<Boolean> RECONCILER_ENABLED =
+           ConfigKeys.newBooleanConfigKey("reconciler.enabled", "whether to look periodically for leaked instances and key pairs (default false)", false);
+   public static final ConfigKey<Long> RECONCILER_PERIOD_MILLIS =
+           ConfigKeys.newLongConfigKey("reconciler.period", "how often to look for leaked instances and key pairs (default 10 minutes)", 10*60*1000L);
+   public static final ConfigKey<Long> RECONCILER_GRACE_PERIOD_MILLIS =
+           ConfigKeys.newLongConfigKey("reconciler.gracePeriod", "how long an unknown instance or key pair must have been seen before it is "
+                   + "treated as leaked; must exceed the time to provision a machine (default 2 hours)", 2*60*60*1000L);
+   public static final ConfigKey<String> RECONCILER_NAME_PREFIX =
+           ConfigKeys.newStringConfigKey("reconciler.namePrefix", "the prefix of the names of instances and key pairs which Brooklyn creates; "
+                   + "others are never treated as leaked (default brooklyn-)", "brooklyn-");
+   public static final ConfigKey<Boolean> RECONCILER_DELETE =
+           ConfigKeys.newBooleanConfigKey("reconciler.delete", "whether to delete leaked instances and key pairs, rather than only report them; "
+                   + "only safe where no other Brooklyn uses the account (default false)", false);
+
+   public static final ConfigKey<Boolean> WARM_POOL_ENABLED =
+           ConfigKeys.newBooleanConfigKey("warm.pool.enabled", "whether to keep a pool of ready machines to hand out immediately on obtain", false);
+   public static final ConfigKey<Integer> WARM_POOL_MIN_SIZE =
+           ConfigKeys.newIntegerConfigKey("warm.pool.minSize", "how many ready machines to keep per location, image and instance type (default 1)", 1);
+   public static final ConfigKey<Integer> WARM_POOL_MAX_SIZE =
+           ConfigKeys.newIntegerConfigKey("warm.pool.maxSize", "the most ready machines to keep per location, image and instance type, including released ones (default 5)", 5);
+   public static final ConfigKey<Long> WARM_POOL_IDLE_EXPIRY_MILLIS =
+           ConfigKeys.newLongConfigKey("warm.pool.idleExpiry", "how long a machine above the minimum pool size may sit idle before it is deleted, in millis (default 1 hour)", 60*60*1000L);
+   public static final ConfigKey<Boolean> WARM_POOL_RETURN_ON_RELEASE =
+           ConfigKeys.newBooleanConfigKey("warm.pool.returnOnRelease", "whether released machines go back into the warm pool (if not full) rather than being deleted; "
+                   + "note they are not reset, so should only be used where entities leave machines reusable", false);
 
    public static final ConfigKey<Boolean> SELINUX_DISABLED =
            ConfigKeys.newBooleanConfigKey("selinux.disabled", "whether to disable SElinux", false);
@@ -27,11 +127,29 @@ public interface IbmSmartCloudConfig extends CloudLocationConfig {
            ConfigKeys.newBooleanConfigKey("stop.iptables", "whether to stop iptables", false);
    public static final ConfigKey<Long> SSH_REACHABLE_TIMEOUT_MILLIS =
          ConfigKeys.newLongConfigKey("ssh.reachable.timeout", "how long to wait for the machine to be sshable, in millis", 5*60*1000L);
+   public static final ConfigKey<Long> SSH_RESTART_TIMEOUT_MILLIS =
+         ConfigKeys.newLongConfigKey("ssh.restart.timeout", "how long to wait for the machine to be sshable again after restarting sshd or stopping iptables (or for the boot script to finish), in millis", 2*60*1000L);
    public static final ConfigKey<Boolean> SSHD_SUBSYSTEM_ENABLE =
          ConfigKeys.newBooleanConfigKey("sshd.subsystem.enable", "whether to ssh and reconfigure ssh_config so Subsystem line is enabled", true);
    
+   public static final ConfigKey<Boolean> BOOT_TIME_CUSTOMIZATION =
+           ConfigKeys.newBooleanConfigKey("boot.customization", "whether to apply the sshd, iptables, SELinux and authorized_keys customization "
+                   + "with a script passed to the image at creation (see boot.script.parameter), rather than over ssh after boot", false);
+   public static final ConfigKey<String> BOOT_SCRIPT_PARAMETER =
+           ConfigKeys.newStringConfigKey("boot.script.parameter", "name of the image parameter whose value the image runs as a script at boot, "
+                   + "required for boot.customization");
+
+   public static final ConfigKey<Boolean> GOLDEN_IMAGE_ENABLED =
+           ConfigKeys.newBooleanConfigKey("golden.image.enabled", "whether to capture a private image of a customized instance, per image and data center, "
+                   + "and boot later machines from it already customized; recaptured when the customization changes", false);
+   public static final ConfigKey<Long> GOLDEN_IMAGE_CAPTURE_TIMEOUT_MILLIS =
+           ConfigKeys.newLongConfigKey("golden.image.capture.timeout", "how long to wait for a captured image to be AVAILABLE, in millis (default 1 hour)", 60*60*1000L);
+
    public static final ConfigKey<String> KEYPAIR_NAME = 
            ConfigKeys.newStringConfigKey("ibm.sce.keypair.name");
+   public static final ConfigKey<Boolean> KEYPAIR_SHARED =
+           ConfigKeys.newBooleanConfigKey("ibm.sce.keypair.shared", "whether machines share one generated key pair per location "
+                   + "(removed when the last of them is released), rather than one per machine, when no keypair name is given", true);
    
    public static final ConfigKey<Boolean> INSTALL_LOCAL_AUTHORIZED_KEYS = 
            ConfigKeys.newBooleanConfigKey("ibm.sce.install.local.authorized_keys", "whether to install any locally authorized keys, for convenience", true);
@@ -0,0 +1,172 @@
+package brooklyn.location.ibm.smartcloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.net.Urls;
+import brooklyn.util.text.Strings;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * The changes made to each new machine after it boots (sshd Subsystem line, iptables, SELinux and
+ * locally authorized keys), as configured on an {@link IbmSmartCloudLocation}.
+ * <p>
+ * These can either be applied over ssh once the machine is up, or rendered with {@link #renderBootScript()}
+ * into a script which the image runs as root while it boots. As ssh may be up before that script has finished
+ * (restarting sshd or stopping iptables meanwhile), the script finally writes {@link #BOOT_SCRIPT_DONE_FILE},
+ * which {@link #renderBootScriptDoneCheck()} looks for.
+ */
+public class IbmSmartCloudCustomization {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudCustomization.class);
+
+    /** written by the boot script as its last step */
+    public static final String BOOT_SCRIPT_DONE_FILE = "/var/run/brooklyn-boot-customized";
+
+    private final String user;
+    private final boolean sshdSubsystemEnabled;
+    private final boolean iptablesStopped;
+    private final boolean selinuxDisabled;
+    private final String authorizedKeys;
+
+    public IbmSmartCloudCustomization(String user, boolean sshdSubsystemEnabled, boolean iptablesStopped,
+            boolean selinuxDisabled, String authorizedKeys) {
+        this.user = user;
+        this.sshdSubsystemEnabled = sshdSubsystemEnabled;
+        this.iptablesStopped = iptablesStopped;
+        this.selinuxDisabled = selinuxDisabled;
+        this.authorizedKeys = authorizedKeys;
+    }
+
+    public static IbmSmartCloudCustomization of(IbmSmartCloudLocation location) {
+        return new IbmSmartCloudCustomization(location.getUser(),
+                location.getConfig(IbmSmartCloudConfig.SSHD_SUBSYSTEM_ENABLE),
+                location.getConfig(IbmSmartCloudConfig.STOP_IPTABLES),
+                location.getConfig(IbmSmartCloudConfig.SELINUX_DISABLED),
+                location.getConfig(IbmSmartCloudConfig.INSTALL_LOCAL_AUTHORIZED_KEYS) ? readLocalAuthorizedKeys() : null);
+    }
+
+    /** the contents of ~/.ssh/authorized_keys on this machine, or null if there is none */
+    public static String readLocalAuthorizedKeys() {
+        File authKeys = new File(Urls.mergePaths(System.getProperty("user.home"), ".ssh/authorized_keys"));
+        if (!authKeys.exists()) return null;
+        try {
+            return Files.toString(authKeys, Charset.defaultCharset()).trim();
+        } catch (IOException e) {
+            LOG.warn("Error reading local authorized_keys: "+e);
+            return null;
+        }
+    }
+
+    public boolean isSshdSubsystemEnabled() {
+        return sshdSubsystemEnabled;
+    }
+
+    /** whether stopping iptables was requested in its own right */
+    public boolean isStopIptables() {
+        return iptablesStopped;
+    }
+
+    /** whether iptables is stopped; it always is when the sshd subsystem is enabled */
+    public boolean isIptablesStopped() {
+        return iptablesStopped || sshdSubsystemEnabled;
+    }
+
+    public boolean isSelinuxDisabled() {
+        return selinuxDisabled;
+    }
+
+    public String getAuthorizedKeys() {
+        return authorizedKeys;
+    }
+
+    /**
+     * a short digest of everything this customization does, so that a machine (or image) customized one way
+     * can be told apart from one customized another way
+     */
+    public String fingerprint() {
+        String description = Joiner.on("\n").useForNull("").join(user, sshdSubsystemEnabled, isIptablesStopped(),
+                selinuxDisabled, authorizedKeys);
+        return Hashing.sha1().hashString(description, Charsets.UTF_8).toString().substring(0, 12);
+    }
+
+    /**
+     * the commands which apply the customization over ssh, as the login user, to be run in a single session;
+     * sshd is restarted last, so that its restart cannot cut the other commands short
+     */
+    public List<String> renderSshCommands() {
+        List<String> result = Lists.newArrayList();
+        if (authorizedKeys != null) {
+            String marker = "EOF_" + Strings.makeRandomId(8);
+            result.add("cat >> ~/.ssh/authorized_keys << " + marker + "\n" + authorizedKeys + "\n" + marker + "\n");
+        }
+        if (sshdSubsystemEnabled) {
+            result.add("sudo sed -i \"s/#Subsystem/Subsystem/\" /etc/ssh/sshd_config");
+        }
+        // TODO remove this and use `Apply same securityGroups rules to iptables, if iptables is running on the node`
+        if (isIptablesStopped()) {
+            result.add("sudo service iptables stop");
+            result.add("sudo chkconfig iptables off");
+        }
+        if (selinuxDisabled) {
+            result.add("sudo setenforce 0");
+            result.add("sudo sed -i \"s/^SELINUX=.*/SELINUX=disabled/\" /etc/selinux/config");
+        }
+        if (sshdSubsystemEnabled) {
+            result.add("sudo /etc/init.d/sshd restart");
+        }
+        return result;
+    }
+
+    /** a shell script, to be run as root at boot, which applies all the customization and then writes {@link #BOOT_SCRIPT_DONE_FILE} */
+    public String renderBootScript() {
+        List<String> lines = Lists.newArrayList();
+        lines.add("#!/bin/sh");
+        if (sshdSubsystemEnabled) {
+            lines.add("sed -i \"s/#Subsystem/Subsystem/\" /etc/ssh/sshd_config");
+            lines.add("/etc/init.d/sshd restart");
+        }
+        if (isIptablesStopped()) {
+            lines.add("service iptables stop");
+            lines.add("chkconfig iptables off");
+        }
+        if (selinuxDisabled) {
+            lines.add("setenforce 0");
+            lines.add("sed -i \"s/^SELINUX=.*/SELINUX=disabled/\" /etc/selinux/config");
+        }
+        if (authorizedKeys != null) {
+            String home = "~" + user;
+            String marker = "EOF_" + Strings.makeRandomId(8);
+            lines.add("mkdir -p " + home + "/.ssh");
+            lines.add("cat >> " + home + "/.ssh/authorized_keys << " + marker + "\n" + authorizedKeys + "\n" + marker);
+            lines.add("chown -R " + user + " " + home + "/.ssh");
+            lines.add("chmod 600 " + home + "/.ssh/authorized_keys");
+        }
+        lines.add("touch " + BOOT_SCRIPT_DONE_FILE);
+        return Joiner.on("\n").join(lines) + "\n";
+    }
+
+    /** a command, to be run over ssh, which succeeds only once the boot script has finished */
+    public String renderBootScriptDoneCheck() {
+        return "test -f " + BOOT_SCRIPT_DONE_FILE;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("user", user).add("sshdSubsystemEnabled", sshdSubsystemEnabled)
+                .add("iptablesStopped", isIptablesStopped()).add("selinuxDisabled", selinuxDisabled)
+                .add("authorizedKeys", authorizedKeys != null).toString();
+    }
+
+}
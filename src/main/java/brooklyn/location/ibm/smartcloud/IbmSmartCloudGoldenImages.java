@@ -0,0 +1,215 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.location.ibm.smartcloud.IbmSmartCloudMachineRegistry.Record;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+import com.ibm.cloud.api.rest.client.bean.Image;
+
+/**
+ * Private images captured from a customized instance, one per base image and data center, so that machines of an
+ * {@link IbmSmartCloudLocation} can boot already customized instead of each being customized over ssh.
+ * <p>
+ * The first request for a base image (or for one whose {@link IbmSmartCloudCustomization#fingerprint() customization}
+ * has changed since its image was captured) starts a capture in the background, and is answered with null so that
+ * the caller provisions from the base image as before. The capture provisions and customizes a throwaway instance,
+ * saves it as a private image, waits for the image to be AVAILABLE and then deletes the instance, along with any
+ * image captured for an earlier customization. A failed capture is retried only after a while.
+ */
+public class IbmSmartCloudGoldenImages {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudGoldenImages.class);
+
+    private static final long CAPTURE_RETRY_DELAY_MILLIS = 30*60*1000L;
+    private static final int CAPTURE_PARALLELISM = 2;
+
+    private final IbmSmartCloudLocation location;
+    private final DeveloperCloudClient client;
+    private final PollSchedule schedule;
+    private final long captureTimeoutMillis;
+    private final ConcurrentMap<String, Entry> images = Maps.newConcurrentMap();
+    private final ExecutorService executor;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong captures = new AtomicLong();
+    private final AtomicLong captureFailures = new AtomicLong();
+    private final AtomicLong captureTimeTotalMillis = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+
+    public IbmSmartCloudGoldenImages(IbmSmartCloudLocation location, DeveloperCloudClient client, PollSchedule schedule,
+            long captureTimeoutMillis) {
+        this.location = checkNotNull(location, "location");
+        this.client = checkNotNull(client, "client");
+        this.schedule = checkNotNull(schedule, "schedule");
+        this.captureTimeoutMillis = captureTimeoutMillis;
+        this.executor = Executors.newFixedThreadPool(CAPTURE_PARALLELISM, new ThreadFactoryBuilder()
+                .setNameFormat("ibm-smartcloud-golden-image-%d").setDaemon(true).build());
+    }
+
+    /** interrupts any capture in progress, which then releases its instance; the image is captured when next needed */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the ID of the image captured from the given base with the given customization, or null if there is none
+     * yet (in which case one is captured in the background).
+     */
+    public String find(IbmSmartCloudInstanceSpec base, String fingerprint) {
+        Entry entry = images.get(key(base));
+        if (entry != null && entry.fingerprint.equals(fingerprint) && entry.imageID != null) {
+            hits.incrementAndGet();
+            return entry.imageID;
+        }
+        misses.incrementAndGet();
+        ensureCapturing(base, fingerprint);
+        return null;
+    }
+
+    /** the captured images, keyed by base image, data center and customization fingerprint, for {@link #restore(Map)} */
+    public Map<String, String> getAvailable() {
+        Map<String, String> result = MutableMap.of();
+        for (Map.Entry<String, Entry> entry : images.entrySet()) {
+            String imageID = entry.getValue().imageID;
+            if (imageID != null) result.put(entry.getKey() + "#" + entry.getValue().fingerprint, imageID);
+        }
+        return result;
+    }
+
+    /** records images captured before a restart, as returned by {@link #getAvailable()} */
+    public void restore(Map<String, String> available) {
+        for (Map.Entry<String, String> entry : available.entrySet()) {
+            int hash = entry.getKey().lastIndexOf('#');
+            if (hash < 0) continue;
+            Entry restored = new Entry(entry.getKey().substring(hash + 1));
+            restored.imageID = entry.getValue();
+            images.putIfAbsent(entry.getKey().substring(0, hash), restored);
+        }
+    }
+
+    protected void ensureCapturing(final IbmSmartCloudInstanceSpec base, String fingerprint) {
+        String key = key(base);
+        Entry current = images.get(key);
+        if (current != null && current.fingerprint.equals(fingerprint)
+                && (current.imageID != null || current.capturing || System.currentTimeMillis() < current.retryAfter)) {
+            return;
+        }
+        final Entry capturing = new Entry(fingerprint);
+        capturing.capturing = true;
+        boolean replaced = (current == null) ? images.putIfAbsent(key, capturing) == null : images.replace(key, current, capturing);
+        if (!replaced) return;
+
+        final String supersededImageID = (current != null) ? current.imageID : null;
+        LOG.info("Capturing golden image of {} in {} for customization {}", new Object[] { base, location, fingerprint });
+        executor.submit(new Runnable() {
+            public void run() {
+                capture(base, capturing, supersededImageID);
+            }
+        });
+    }
+
+    protected void capture(IbmSmartCloudInstanceSpec base, Entry entry, String supersededImageID) {
+        Stopwatch stopwatch = new Stopwatch().start();
+        SshMachineLocation machine = null;
+        try {
+            machine = location.provisionForGoldenImage(base);
+            Record record = checkNotNull(location.getRegistry().get(machine), "record for %s", machine);
+            String name = "brooklyn-golden-" + entry.fingerprint;
+            Image image = client.saveInstance(record.getServerId(), name, "Image " + base.getImageID()
+                    + " with customization " + entry.fingerprint + ", captured for Brooklyn location " + location.getId());
+            entry.imageID = awaitAvailable(image.getID(), stopwatch);
+            long elapsed = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            captures.incrementAndGet();
+            captureTimeTotalMillis.addAndGet(elapsed);
+            LOG.info("Captured golden image {} of {} in {} for customization {} (took {})", new Object[] { entry.imageID,
+                    base, location, entry.fingerprint, Time.makeTimeStringRounded(elapsed) });
+        } catch (Exception e) {
+            captureFailures.incrementAndGet();
+            entry.retryAfter = System.currentTimeMillis() + CAPTURE_RETRY_DELAY_MILLIS;
+            LOG.warn("Failed to capture golden image of "+base+" in "+location+" (will retry in "
+                    +Time.makeTimeStringRounded(CAPTURE_RETRY_DELAY_MILLIS)+"): "+e, e);
+        } finally {
+            entry.capturing = false;
+            if (machine != null) location.releaseFromPool(machine);
+            // captured for an earlier customization, so never used again
+            if (supersededImageID != null) deleteImage(supersededImageID);
+        }
+    }
+
+    private String awaitAvailable(String imageID, Stopwatch stopwatch) throws Exception {
+        int attempt = 0;
+        while (true) {
+            String state = String.valueOf(client.describeImage(imageID).getState());
+            if ("AVAILABLE".equals(state)) return imageID;
+            if ("FAILED".equals(state) || "UNAVAILABLE".equals(state) || "DELETED".equals(state)) {
+                throw new IllegalStateException("Golden image "+imageID+" is "+state);
+            }
+            long elapsed = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            if (elapsed >= captureTimeoutMillis) {
+                deleteImage(imageID);
+                throw new TimeoutException("Golden image "+imageID+" not AVAILABLE after "+Time.makeTimeStringRounded(elapsed)
+                        +" (is "+state+")");
+            }
+            Time.sleep(Math.min(schedule.nextDelayMillis(attempt++, elapsed), captureTimeoutMillis - elapsed));
+        }
+    }
+
+    private void deleteImage(String imageID) {
+        try {
+            client.deleteImage(imageID);
+            deleted.incrementAndGet();
+            LOG.debug("Deleted golden image {} of {}", imageID, location);
+        } catch (Exception e) {
+            LOG.warn("Cannot delete golden image "+imageID+" of "+location+": "+e);
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        long captureCount = captures.get();
+        return ImmutableMap.<String, Object>builder()
+                .put("images", getAvailable().size())
+                .put("hits", hits.get())
+                .put("misses", misses.get())
+                .put("captures", captureCount)
+                .put("captureFailures", captureFailures.get())
+                .put("captureTimeMeanMillis", captureCount == 0 ? 0 : captureTimeTotalMillis.get() / captureCount)
+                .put("deleted", deleted.get())
+                .build();
+    }
+
+    private static String key(IbmSmartCloudInstanceSpec base) {
+        return base.getImageID() + "@" + base.getDataCenterID();
+    }
+
+    private static class Entry {
+        final String fingerprint;
+        volatile String imageID;
+        volatile boolean capturing;
+        volatile long retryAfter;
+
+        Entry(String fingerprint) {
+            this.fingerprint = checkNotNull(fingerprint, "fingerprint");
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+import com.ibm.cloud.api.rest.client.bean.Instance;
+
+/**
+ * Watches the status of the SCE instances being provisioned or released by an {@link IbmSmartCloudLocation}.
+ * <p>
+ * Rather than each caller polling {@code describeInstance} for its own instance, all instances
+ * being waited on are checked with a single {@code describeInstances} call per tick, and
+ * each waiter's future is completed when its instance reaches the desired status.
+ * Each waiter has its own {@link PollSchedule}; a tick happens when the earliest waiter is due
+ * (but never more often than the minimum interval), and serves every waiter at once.
+ * The poller only runs while there is something to wait for.
+ */
+public class IbmSmartCloudInstancePoller {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudInstancePoller.class);
+
+    private final DeveloperCloudClient client;
+    private final PollSchedule defaultSchedule;
+    private final long minIntervalMillis;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Set<Waiter> waiters = Sets.newSetFromMap(new ConcurrentHashMap<Waiter, Boolean>());
+    private final Object pollLock = new Object();
+
+    private ScheduledFuture<?> task;
+    private long taskDueAt;
+    private volatile long lastPollAt;
+
+    /**
+     * @param defaultSchedule schedule used for waiters which do not supply their own
+     * @param minIntervalMillis the shortest time allowed between two {@code describeInstances} calls
+     */
+    public IbmSmartCloudInstancePoller(DeveloperCloudClient client, PollSchedule defaultSchedule, long minIntervalMillis) {
+        this.client = checkNotNull(client, "client");
+        this.defaultSchedule = checkNotNull(defaultSchedule, "defaultSchedule");
+        this.minIntervalMillis = minIntervalMillis;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat("ibm-smartcloud-instance-poller-%d").setDaemon(true).build());
+        this.executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns a future which completes with the instance once it has the given status.
+     * The future fails with an {@link IllegalStateException} if the instance goes to {@link Instance.Status#FAILED}
+     * while waiting for any other status; when waiting for {@link Instance.Status#REMOVED}, an instance which is no longer listed counts as removed.
+     * Cancelling the future stops watching the instance.
+     */
+    public ListenableFuture<Instance> await(String serverId, Instance.Status desiredStatus) {
+        return await(serverId, desiredStatus, defaultSchedule);
+    }
+
+    /** as {@link #await(String, Instance.Status)}, checking according to the given schedule */
+    public ListenableFuture<Instance> await(String serverId, Instance.Status desiredStatus, PollSchedule schedule) {
+        Waiter waiter = new Waiter(checkNotNull(serverId, "serverId"), checkNotNull(desiredStatus, "desiredStatus"),
+                checkNotNull(schedule, "schedule"));
+        waiters.add(waiter);
+        scheduleTick(waiter.nextDueAt);
+        return waiter.future;
+    }
+
+    /** stops polling; every instance still being watched fails with a {@link CancellationException} */
+    public void shutdown() {
+        executor.shutdownNow();
+        for (Waiter waiter : waiters) {
+            waiter.future.setException(new CancellationException("Stopped watching IBM SCE server "+waiter.serverId));
+        }
+        waiters.clear();
+    }
+
+    /** the number of instances currently being watched */
+    public int getWaiterCount() {
+        return waiters.size();
+    }
+
+    /** ensures a tick will happen no later than the given time (subject to the minimum interval) */
+    protected synchronized void scheduleTick(long dueAt) {
+        dueAt = Math.max(dueAt, lastPollAt + minIntervalMillis);
+        if (task != null && !task.isDone() && taskDueAt <= dueAt) return;
+        if (task != null) task.cancel(false);
+        taskDueAt = dueAt;
+        task = executor.schedule(new Runnable() {
+            public void run() {
+                tick();
+            }
+        }, Math.max(0, dueAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    protected void tick() {
+        poll();
+        synchronized (this) {
+            // waiters added from now on will schedule their own tick
+            task = null;
+            long nextDueAt = Long.MAX_VALUE;
+            for (Waiter waiter : waiters) {
+                nextDueAt = Math.min(nextDueAt, waiter.nextDueAt);
+            }
+            if (nextDueAt < Long.MAX_VALUE) scheduleTick(nextDueAt);
+        }
+    }
+
+    protected void poll() {
+        synchronized (pollLock) {
+            try {
+                for (Waiter waiter : waiters) {
+                    if (waiter.future.isDone()) waiters.remove(waiter);
+                }
+                if (waiters.isEmpty()) return;
+
+                List<Instance> instances;
+                try {
+                    lastPollAt = System.currentTimeMillis();
+                    instances = client.describeInstances();
+                } catch (Exception e) {
+                    LOG.warn("Cannot list IBM SmartCloud instances (continuing to wait for "+waiters.size()+" instance(s)): "+e);
+                    instances = null;
+                }
+                Map<String, Instance> instancesById = Maps.newHashMap();
+                if (instances != null) {
+                    for (Instance instance : instances) {
+                        instancesById.put(instance.getID(), instance);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                for (Waiter waiter : waiters) {
+                    if (instances != null && waiter.update(instancesById.get(waiter.serverId))) {
+                        waiters.remove(waiter);
+                    } else if (waiter.nextDueAt <= now) {
+                        waiter.advance(now);
+                    }
+                }
+            } catch (Throwable t) {
+                // never let an unexpected error stop the polling
+                LOG.warn("Error polling IBM SmartCloud instance status: "+t, t);
+            }
+        }
+    }
+
+    private static class Waiter {
+        final String serverId;
+        final Instance.Status desiredStatus;
+        final PollSchedule schedule;
+        final long startedAt = System.currentTimeMillis();
+        final SettableFuture<Instance> future = SettableFuture.create();
+        volatile int attempt;
+        volatile long nextDueAt;
+
+        Waiter(String serverId, Instance.Status desiredStatus, PollSchedule schedule) {
+            this.serverId = serverId;
+            this.desiredStatus = desiredStatus;
+            this.schedule = schedule;
+            this.nextDueAt = startedAt + schedule.nextDelayMillis(0, 0);
+        }
+
+        void advance(long now) {
+            attempt++;
+            nextDueAt = now + schedule.nextDelayMillis(attempt, now - startedAt);
+        }
+
+        /** returns true if the waiter is now complete */
+        boolean update(Instance instance) {
+            if (instance == null) {
+                if (Instance.Status.REMOVED.equals(desiredStatus)) {
+                    LOG.debug("IBM SCE server {} is no longer listed; treating as removed", serverId);
+                    future.set(null);
+                    return true;
+                }
+                LOG.debug("IBM SCE server {} is not yet listed", serverId);
+                return false;
+            }
+            Instance.Status status = instance.getStatus();
+            LOG.debug("looking for IBM SCE server " + serverId + ", status: " + status.name());
+            if (status.equals(desiredStatus)) {
+                future.set(instance);
+                return true;
+            }
+            if (Instance.Status.FAILED.equals(status) && !Instance.Status.REMOVED.equals(desiredStatus)) {
+                LOG.warn(String.format("Instance with serverId(%s) has status=failed", serverId));
+                future.setException(new IllegalStateException("Instance " + instance.getName() + " has status=failed"));
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
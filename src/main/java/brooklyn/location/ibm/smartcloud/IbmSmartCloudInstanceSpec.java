@@ -0,0 +1,53 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+
+/**
+ * The SCE identifiers (data center, image and instance type) which a new instance is created from,
+ * as resolved against the {@link IbmSmartCloudCatalog}.
+ */
+public class IbmSmartCloudInstanceSpec {
+
+    private final String dataCenterID;
+    private final String imageID;
+    private final String instanceTypeID;
+
+    public IbmSmartCloudInstanceSpec(String dataCenterID, String imageID, String instanceTypeID) {
+        this.dataCenterID = checkNotNull(dataCenterID, "dataCenterID");
+        this.imageID = checkNotNull(imageID, "imageID");
+        this.instanceTypeID = checkNotNull(instanceTypeID, "instanceTypeID");
+    }
+
+    public String getDataCenterID() {
+        return dataCenterID;
+    }
+
+    public String getImageID() {
+        return imageID;
+    }
+
+    public String getInstanceTypeID() {
+        return instanceTypeID;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof IbmSmartCloudInstanceSpec)) return false;
+        IbmSmartCloudInstanceSpec o = (IbmSmartCloudInstanceSpec) obj;
+        return dataCenterID.equals(o.dataCenterID) && imageID.equals(o.imageID) && instanceTypeID.equals(o.instanceTypeID);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(dataCenterID, imageID, instanceTypeID);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("dataCenterID", dataCenterID).add("imageID", imageID)
+                .add("instanceTypeID", instanceTypeID).toString();
+    }
+
+}
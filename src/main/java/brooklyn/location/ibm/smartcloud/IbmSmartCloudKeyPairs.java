@@ -0,0 +1,234 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+import com.ibm.cloud.api.rest.client.bean.Key;
+import com.ibm.cloud.api.rest.client.exception.UnknownKeyException;
+
+/**
+ * Key pairs in use by the machines of an {@link IbmSmartCloudLocation}.
+ * <p>
+ * Each key is looked up (or generated) in SCE once, and its private key written once to a file readable only by
+ * its owner, which is shared by every machine using that key. Keys are reference-counted: a key which this location
+ * generated is removed from SCE when the last machine using it has been released.
+ */
+public class IbmSmartCloudKeyPairs {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudKeyPairs.class);
+
+    private final DeveloperCloudClient client;
+    private final IbmSmartCloudReaper reaper;
+    private final ConcurrentMap<String, Entry> keys = Maps.newConcurrentMap();
+
+    private final AtomicLong describes = new AtomicLong();
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+
+    public IbmSmartCloudKeyPairs(DeveloperCloudClient client, IbmSmartCloudReaper reaper) {
+        this.client = checkNotNull(client, "client");
+        this.reaper = checkNotNull(reaper, "reaper");
+    }
+
+    /**
+     * Records that a machine is about to use the given key, looking it up in SCE (or generating it) if not already known.
+     * Each call must be matched by a call to {@link #release(String)}.
+     *
+     * @return the path of the file holding the private key
+     */
+    public String acquire(String keyName) {
+        checkNotNull(keyName, "keyName");
+        while (true) {
+            Entry entry = keys.get(keyName);
+            if (entry == null) {
+                keys.putIfAbsent(keyName, new Entry(keyName));
+                entry = keys.get(keyName);
+            }
+            ListenableFuture<Void> removal;
+            synchronized (entry) {
+                if (entry.discarded) continue;
+                removal = entry.removal;
+                if (removal == null) {
+                    if (entry.privateKeyPath == null) {
+                        entry.load();
+                    } else {
+                        reused.incrementAndGet();
+                    }
+                    entry.refs++;
+                    return entry.privateKeyPath;
+                }
+            }
+            // the key is being removed; wait for that to finish and then start afresh
+            try {
+                removal.get();
+            } catch (Exception e) {
+                LOG.debug("Error waiting for removal of keypair({}) (continuing): {}", keyName, e);
+            }
+        }
+    }
+
+    /**
+     * Records that a machine no longer uses the given key (i.e. its instance has been removed).
+     * If no other machine uses it and it was generated here, it is queued for removal from SCE.
+     */
+    public void release(String keyName) {
+        Entry entry = keys.get(checkNotNull(keyName, "keyName"));
+        if (entry == null) return;
+        synchronized (entry) {
+            if (entry.removal != null || entry.refs <= 0) return;
+            entry.refs--;
+            if (entry.refs > 0) return;
+
+            entry.deletePrivateKeyFile();
+            if (!entry.created) {
+                entry.discarded = true;
+                keys.remove(keyName, entry);
+                return;
+            }
+            LOG.debug("Last machine using keypair({}) released; removing it", keyName);
+            removed.incrementAndGet();
+            final Entry removing = entry;
+            entry.removal = reaper.removeKey(keyName);
+            entry.removal.addListener(new Runnable() {
+                public void run() {
+                    keys.remove(removing.name, removing);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+    }
+
+    /**
+     * Records a key generated by this location before a restart, used by the given number of machines which still exist.
+     * Its private key is read again from SCE when next acquired.
+     */
+    public void restore(String keyName, int refs) {
+        Entry entry = new Entry(checkNotNull(keyName, "keyName"));
+        entry.created = true;
+        entry.refs = refs;
+        if (keys.putIfAbsent(keyName, entry) != null) {
+            LOG.debug("Not restoring keypair({}): already in use", keyName);
+        }
+    }
+
+    /** the keys generated by this location which are still in use, i.e. which it will remove once released */
+    public Set<String> getCreatedKeys() {
+        Set<String> result = Sets.newLinkedHashSet();
+        for (Entry entry : keys.values()) {
+            synchronized (entry) {
+                if (entry.created && entry.removal == null && !entry.discarded) result.add(entry.name);
+            }
+        }
+        return result;
+    }
+
+    /** whether the given key is in use here, or is being removed */
+    public boolean isKnown(String keyName) {
+        return keys.containsKey(keyName);
+    }
+
+    /** whether the given key was generated by this location (and so will be removed when no longer used) */
+    public boolean isCreated(String keyName) {
+        Entry entry = keys.get(keyName);
+        return entry != null && entry.created;
+    }
+
+    public Map<String, Object> getMetrics() {
+        return ImmutableMap.<String, Object>builder()
+                .put("keys", keys.size())
+                .put("describes", describes.get())
+                .put("generated", generated.get())
+                .put("reused", reused.get())
+                .put("removed", removed.get())
+                .build();
+    }
+
+    /** writes the private key to a new file which, on POSIX file systems, is created readable only by its owner */
+    protected static String storePrivateKey(String keyName, String keyMaterial) throws IOException {
+        Path path;
+        try {
+            path = java.nio.file.Files.createTempFile(keyName, "_rsa",
+                    PosixFilePermissions.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system; restrict as best we can before anything is written
+            File file = File.createTempFile(keyName, "_rsa");
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+            path = file.toPath();
+        }
+        OutputStream out = java.nio.file.Files.newOutputStream(path);
+        try {
+            out.write(keyMaterial.getBytes(Charsets.UTF_8));
+        } finally {
+            out.close();
+        }
+        File file = path.toFile();
+        file.setWritable(false, false);
+        file.deleteOnExit();
+        return file.getAbsolutePath();
+    }
+
+    private class Entry {
+        final String name;
+        String privateKeyPath;
+        boolean created;
+        int refs;
+        ListenableFuture<Void> removal;
+        boolean discarded;
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+        void load() {
+            try {
+                Key key;
+                try {
+                    describes.incrementAndGet();
+                    key = client.describeKey(name);
+                } catch (UnknownKeyException e) {
+                    LOG.debug("Creating new keyPair({})", name);
+                    key = client.generateKeyPair(name);
+                    generated.incrementAndGet();
+                    created = true;
+                }
+                privateKeyPath = storePrivateKey(name, key.getMaterial());
+            } catch (Exception e) {
+                throw Exceptions.propagate(e);
+            }
+        }
+
+        void deletePrivateKeyFile() {
+            if (privateKeyPath != null && !new File(privateKeyPath).delete()) {
+                LOG.debug("Could not delete private key file {} for keypair({})", privateKeyPath, name);
+            }
+            privateKeyPath = null;
+        }
+    }
+
+}
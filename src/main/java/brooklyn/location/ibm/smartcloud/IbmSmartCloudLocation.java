@@ -1,62 +1,112 @@
 package brooklyn.location.ibm.smartcloud;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
-import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.IOException;
-import java.nio.charset.Charset;
+import java.net.InetSocketAddress;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.io.Charsets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import brooklyn.entity.Entity;
 import brooklyn.location.NoMachinesAvailableException;
 import brooklyn.location.basic.SshMachineLocation;
 import brooklyn.location.cloud.AbstractCloudMachineProvisioningLocation;
 import brooklyn.location.cloud.CloudMachineNamer;
+import brooklyn.location.ibm.smartcloud.IbmSmartCloudMachineRegistry.Record;
+import brooklyn.location.ibm.smartcloud.IbmSmartCloudMachineRegistry.State;
+import brooklyn.location.ibm.smartcloud.ProvisioningTimeline.Phase;
 import brooklyn.util.collections.MutableMap;
 import brooklyn.util.config.ConfigBag;
 import brooklyn.util.exceptions.Exceptions;
-import brooklyn.util.internal.Repeater;
-import brooklyn.util.net.Urls;
 import brooklyn.util.text.Strings;
-import brooklyn.util.time.Duration;
 import brooklyn.util.time.Time;
 
-import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Maps;
-import com.google.common.io.Files;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.ibm.cloud.api.rest.client.DeveloperCloud;
 import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
-import com.ibm.cloud.api.rest.client.bean.Image;
 import com.ibm.cloud.api.rest.client.bean.Instance;
-import com.ibm.cloud.api.rest.client.bean.InstanceType;
-import com.ibm.cloud.api.rest.client.bean.Key;
-import com.ibm.cloud.api.rest.client.bean.Location;
-import com.ibm.cloud.api.rest.client.exception.UnknownKeyException;
 
-public class IbmSmartCloudLocation extends AbstractCloudMachineProvisioningLocation implements IbmSmartCloudConfig {
+public class IbmSmartCloudLocation extends AbstractCloudMachineProvisioningLocation implements IbmSmartCloudConfig, Closeable {
 
     public static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudLocation.class);
     
     private static final long serialVersionUID = -828289137296787878L;
 
-    private final Map<SshMachineLocation, String> serverIds = Maps.newLinkedHashMap();
-    private final Map<SshMachineLocation,String> keyPairsByLocation = MutableMap.of();
+    private static final int READINESS_HISTORY_SIZE = 20;
+    /** how many times to ACTIVE must have been seen before hedging goes by their percentile */
+    private static final int MIN_HEDGE_HISTORY = 5;
+    /** how long {@link #close()} waits for teardowns in progress, e.g. of pooled machines, to complete */
+    protected static final long CLOSE_TEARDOWN_WAIT_MILLIS = 60*1000L;
+
+    private final IbmSmartCloudMachineRegistry registry = new IbmSmartCloudMachineRegistry();
     private volatile DeveloperCloudClient client;
+    private volatile InstrumentingClientHandler instrumentation;
+    private volatile RateLimitingClientHandler rateLimiter;
+    private volatile CircuitBreakingClientHandler breakers;
+    private volatile IbmSmartCloudCatalog catalog;
+    private volatile IbmSmartCloudPlacement placement;
+    private volatile IbmSmartCloudInstancePoller instancePoller;
+    private volatile IbmSmartCloudWarmPool warmPool;
+    private volatile IbmSmartCloudReaper reaper;
+    private volatile IbmSmartCloudKeyPairs keyPairs;
+    private volatile IbmSmartCloudProvisioningStats provisioningStats;
+    private volatile IbmSmartCloudStateStore stateStore;
+    private volatile IbmSmartCloudGoldenImages goldenImages;
+    private volatile IbmSmartCloudProvisioningPipeline pipeline;
+    private volatile IbmSmartCloudReconciler reconciler;
+    private volatile IbmSmartCloudAdmission admission;
+    private final ReadinessHistory activeHistory = new ReadinessHistory(READINESS_HISTORY_SIZE);
+    private final ReadinessHistory sshableHistory = new ReadinessHistory(READINESS_HISTORY_SIZE);
+    private final SshReadinessProbe sshReadinessProbe = new SshReadinessProbe() {
+        @Override
+        protected boolean isSshable(SshMachineLocation machine) {
+            return probeSsh(machine);
+        }
+    };
+    private SshReachabilityScanner sshReachabilityScanner;
+    private final LatencyStats sshdRestartWaitStats = new LatencyStats();
+    private final LatencyStats iptablesStopWaitStats = new LatencyStats();
+    private volatile Semaphore hedges;
+    private final AtomicLong hedgesLaunched = new AtomicLong();
+    private final AtomicLong hedgesSkipped = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private volatile Semaphore provisioningBulkhead;
+    private volatile Semaphore teardownBulkhead;
+    private final AtomicLong provisioningRejected = new AtomicLong();
+    private final AtomicLong teardownRejected = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     public IbmSmartCloudLocation() {
        super(MutableMap.of());
@@ -64,10 +114,80 @@ public class IbmSmartCloudLocation extends AbstractCloudMachineProvisioningLocat
 
     @Override
     public void init() {
-       client = DeveloperCloud.getClient();
-       client.setRemoteCredentials(getIdentity(), getCredential());
+       // instrumentation is closest to SCE, so its latencies exclude time queued by the rate limiter
+       instrumentation = new InstrumentingClientHandler(newClient());
+       rateLimiter = new RateLimitingClientHandler(ForwardingClientHandler.wrap(instrumentation),
+               getConfig(API_READ_RATE), getConfig(API_WRITE_RATE));
+       // breakers are outermost, so that calls fail fast rather than first queueing for the rate limiter
+       breakers = new CircuitBreakingClientHandler(ForwardingClientHandler.wrap(rateLimiter),
+               getConfig(API_BREAKER_FAILURE_THRESHOLD), getConfig(API_BREAKER_OPEN_MILLIS));
+       client = ForwardingClientHandler.wrap(breakers);
+       catalog = new IbmSmartCloudCatalog(client, getConfig(CATALOG_TTL_MILLIS));
+       placement = new IbmSmartCloudPlacement(catalog, Strings.isBlank(getConfig(LOCATIONS)) ? getLocation() : getConfig(LOCATIONS),
+               getImage(), getInstanceType());
+       instancePoller = new IbmSmartCloudInstancePoller(client, getInstancePollSchedule(), getConfig(CLIENT_POLL_MIN_INTERVAL_MILLIS));
+       reaper = new IbmSmartCloudReaper(client, instancePoller, getConfig(TEARDOWN_PARALLELISM),
+               getConfig(CLIENT_POLL_TIMEOUT_MILLIS), getConfig(KEY_REMOVAL_ATTEMPTS));
+       keyPairs = new IbmSmartCloudKeyPairs(client, reaper);
+       if (getConfig(GOLDEN_IMAGE_ENABLED)) {
+           goldenImages = new IbmSmartCloudGoldenImages(this, client, getInstancePollSchedule(),
+                   getConfig(GOLDEN_IMAGE_CAPTURE_TIMEOUT_MILLIS));
+       }
+       if (!Strings.isBlank(getConfig(STATE_FILE))) {
+           stateStore = new IbmSmartCloudStateStore(new File(getConfig(STATE_FILE)), catalog, registry, keyPairs, goldenImages);
+           stateStore.load();
+           stateStore.reconcileInBackground(client);
+       }
+       admission = new IbmSmartCloudAdmission(registry, getConfig(INSTANCE_QUOTA));
+       hedges = new Semaphore(Math.max(0, getConfig(INSTANCE_CREATION_HEDGE_MAX_CONCURRENT)));
+       provisioningBulkhead = new Semaphore(Math.max(1, getConfig(PROVISIONING_MAX_CONCURRENT)));
+       teardownBulkhead = new Semaphore(Math.max(0, getConfig(TEARDOWN_MAX_WAITING)));
+       provisioningStats = new IbmSmartCloudProvisioningStats(toString());
+       provisioningStats.registerMBean(getId());
+       pipeline = new IbmSmartCloudProvisioningPipeline(this, getConfig(PROVISIONING_ASYNC_THREADS));
+       if (getConfig(RECONCILER_ENABLED)) {
+           reconciler = new IbmSmartCloudReconciler(this, client, reaper, getConfig(RECONCILER_NAME_PREFIX),
+                   getConfig(RECONCILER_GRACE_PERIOD_MILLIS), getConfig(RECONCILER_DELETE));
+           reconciler.start(getConfig(RECONCILER_PERIOD_MILLIS));
+       }
+       if (getConfig(WARM_POOL_ENABLED)) {
+           warmPool = new IbmSmartCloudWarmPool(this, getConfig(WARM_POOL_MIN_SIZE), getConfig(WARM_POOL_MAX_SIZE),
+                   getConfig(WARM_POOL_IDLE_EXPIRY_MILLIS), getConfig(BATCH_PROVISIONING_PARALLELISM));
+       }
     }
     
+    /**
+     * Stops this location's background threads and unpublishes its MBean; Brooklyn calls this when the location is
+     * unmanaged. Machines still being provisioned are abandoned (deleting their instances) and pooled machines released;
+     * teardowns then queued are waited for, up to {@link #CLOSE_TEARDOWN_WAIT_MILLIS}, before the instance poller they
+     * rely on is stopped. Machines already obtained are left running.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        LOG.debug("Closing {}", this);
+        if (reconciler != null) reconciler.shutdown();
+        if (warmPool != null) warmPool.shutdown();
+        if (goldenImages != null) goldenImages.shutdown();
+        if (pipeline != null) pipeline.shutdown();
+        if (admission != null) admission.shutdown();
+        synchronized (this) {
+            if (sshReachabilityScanner != null) sshReachabilityScanner.close();
+        }
+        if (reaper != null) reaper.shutdown(CLOSE_TEARDOWN_WAIT_MILLIS);
+        if (instancePoller != null) instancePoller.shutdown();
+        if (stateStore != null) stateStore.shutdown();
+        if (catalog != null) catalog.shutdown();
+        if (provisioningStats != null) provisioningStats.unregisterMBean();
+    }
+
+    /** a new client for SCE, with this location's credentials; overridable e.g. to provision in a simulated SCE */
+    protected DeveloperCloudClient newClient() {
+        DeveloperCloudClient result = DeveloperCloud.getClient();
+        result.setRemoteCredentials(getIdentity(), getCredential());
+        return result;
+    }
+
     public String getIdentity() {
         return getConfig(ACCESS_IDENTITY);
     }
@@ -92,143 +212,762 @@ public class IbmSmartCloudLocation extends AbstractCloudMachineProvisioningLocat
         return getConfig(INSTANCE_TYPE_LABEL);
     }
 
+    protected PollSchedule getInstancePollSchedule() {
+        PollSchedule result = getConfig(CLIENT_POLL_SCHEDULE);
+        if (result != null) return result;
+        long max = getConfig(CLIENT_POLL_PERIOD_MILLIS);
+        return new BackoffPollSchedule(Math.min(5*1000L, max), 1.5, max, 0.2)
+                .fastPhase(activeHistory, Math.min(5*1000L, max), 0.25);
+    }
+
+    protected PollSchedule getSshPollSchedule() {
+        PollSchedule result = getConfig(SSH_POLL_SCHEDULE);
+        if (result != null) return result;
+        return new BackoffPollSchedule(1000L, 1.5, 10*1000L, 0.2)
+                .fastPhase(sshableHistory, 1000L, 0.25);
+    }
+
+    /** the cached SCE locations, images and instance types used when provisioning */
+    public IbmSmartCloudCatalog getCatalog() {
+        return catalog;
+    }
+
+    /** the pool of ready machines, or null if {@link IbmSmartCloudConfig#WARM_POOL_ENABLED} is not set */
+    public IbmSmartCloudWarmPool getWarmPool() {
+        return warmPool;
+    }
+
+    /** starts filling the warm pool (if enabled) for this location's configured image and instance type */
+    public void warmUp() {
+        if (warmPool != null) warmPool.refill(resolveInstanceSpec());
+    }
+
     public SshMachineLocation obtain(Map<?, ?> flags) throws NoMachinesAvailableException {
         ConfigBag setup = ConfigBag.newInstanceExtending(getRawLocalConfigBag(), flags);
-        String serverName = new CloudMachineNamer(setup).
-                // TODO can we go higher?
-                lengthMaxPermittedForMachineName(31).
-                generateNewMachineUniqueName();
-        
-        String dataCenterID = findLocation(getLocation()).getId();
-        String imageID = findImage(getImage(), dataCenterID).getID();
-        String instanceTypeID = findInstanceType(imageID, getInstanceType()).getId();
-        
-        String keyName = setup.get(IbmSmartCloudConfig.KEYPAIR_NAME);
-        if (keyName==null) keyName = serverName;
+        ProvisioningTimeline timeline = provisioningStats.begin();
+        SshMachineLocation result = null;
+        try {
+            result = obtainPlaced(setup);
+            return result;
+        } finally {
+            provisioningStats.finish(timeline, result);
+        }
+    }
+
+    /**
+     * Obtains a machine as {@link #obtain(Map)} does, but returns at once: the machine is provisioned by this location's
+     * {@link IbmSmartCloudProvisioningPipeline}, which holds no thread while the machine is waited for, so many machines
+     * may be obtained at once from few threads. Creation is not hedged on this path.
+     * <p>
+     * The future fails at once with a {@link NoMachinesAvailableException} if {@link IbmSmartCloudConfig#PROVISIONING_MAX_CONCURRENT}
+     * obtains are already in progress.
+     */
+    public ListenableFuture<SshMachineLocation> obtainAsync(Map<?, ?> flags) {
+        if (!provisioningBulkhead.tryAcquire()) {
+            provisioningRejected.incrementAndGet();
+            return Futures.immediateFailedFuture(new NoMachinesAvailableException("Cannot obtain machine in "+this+": "
+                    +getConfig(PROVISIONING_MAX_CONCURRENT)+" obtains already in progress"));
+        }
+        ListenableFuture<SshMachineLocation> result;
+        try {
+            result = pipeline.obtain(ConfigBag.newInstanceExtending(getRawLocalConfigBag(), flags));
+        } catch (RuntimeException e) {
+            provisioningBulkhead.release();
+            throw e;
+        }
+        result.addListener(new Runnable() {
+            public void run() {
+                provisioningBulkhead.release();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    /**
+     * Provisions {@code count} machines concurrently (at most {@link IbmSmartCloudConfig#BATCH_PROVISIONING_PARALLELISM}
+     * at a time), each one going through creation, waiting for ACTIVE, waiting for ssh and customization independently.
+     * Where several data centers are configured, the batch is spread across them.
+     * <p>
+     * Failure to provision some of the machines does not fail the batch; the result reports the machines
+     * which were obtained, and the failures for those which were not.
+     */
+    public IbmSmartCloudObtainResult obtain(int count, Map<?, ?> flags) {
+        Preconditions.checkArgument(count >= 0, "count must not be negative");
+        final ConfigBag setup = ConfigBag.newInstanceExtending(getRawLocalConfigBag(), flags);
+
+        int parallelism = Math.max(1, Math.min(count, setup.get(IbmSmartCloudConfig.BATCH_PROVISIONING_PARALLELISM)));
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                .setNameFormat("ibm-smartcloud-obtain-%d").setDaemon(true).build());
         try {
-            Key key;
-            boolean createdKey = false;
+            List<Future<SshMachineLocation>> futures = Lists.newArrayList();
+            for (int i = 0; i < count; i++) {
+                futures.add(executor.submit(new Callable<SshMachineLocation>() {
+                    public SshMachineLocation call() throws Exception {
+                        return obtainPlaced(setup);
+                    }
+                }));
+            }
+            List<SshMachineLocation> machines = Lists.newArrayList();
+            List<Throwable> failures = Lists.newArrayList();
+            for (Future<SshMachineLocation> future : futures) {
+                try {
+                    machines.add(future.get());
+                } catch (ExecutionException e) {
+                    failures.add(e.getCause());
+                } catch (InterruptedException e) {
+                    throw Exceptions.propagate(e);
+                }
+            }
+            LOG.info("Obtained {} of {} machines in {}", new Object[] { machines.size(), count, this });
+            return new IbmSmartCloudObtainResult(machines, failures);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    protected IbmSmartCloudInstanceSpec resolveInstanceSpec() {
+        return resolveInstanceSpec(Collections.<String>emptySet());
+    }
+
+    /** the spec for a new machine in the best data center not excluded, or null if all are excluded */
+    protected IbmSmartCloudInstanceSpec resolveInstanceSpec(Collection<String> excludedDataCenterIds) {
+        Stopwatch stopwatch = new Stopwatch().start();
+        IbmSmartCloudInstanceSpec result = placement.choose(excludedDataCenterIds);
+        provisioningStats.record(Phase.CATALOG, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        return result;
+    }
+
+    /**
+     * Obtains a machine in the best data center (see {@link IbmSmartCloudPlacement}), failing over to the next best
+     * if provisioning there fails, until every configured data center has been tried.
+     * 
+     * @throws NoMachinesAvailableException if there is no room in the instance quota within {@link IbmSmartCloudConfig#ADMISSION_TIMEOUT_MILLIS},
+     *         or if {@link IbmSmartCloudConfig#PROVISIONING_MAX_CONCURRENT} machines are still being provisioned after waiting
+     *         {@link IbmSmartCloudConfig#PROVISIONING_MAX_WAIT_MILLIS}; both are shared by every data center, so neither fails over
+     */
+    protected SshMachineLocation obtainPlaced(ConfigBag setup) throws NoMachinesAvailableException {
+        Set<String> tried = Sets.newHashSet();
+        IbmSmartCloudInstanceSpec spec = resolveInstanceSpec(tried);
+        while (true) {
+            String dataCenterID = spec.getDataCenterID();
             try {
-                key = client.describeKey(keyName);
-            } catch (UnknownKeyException e) {
-                LOG.debug("Creating new keyPair({}) for {}", keyName, serverName);
-                key = client.generateKeyPair(keyName);
-                createdKey = true;
+                return obtain(setup, spec);
+            } catch (RuntimeException e) {
+                tried.add(dataCenterID);
+                IbmSmartCloudInstanceSpec next = resolveInstanceSpec(tried);
+                if (next == null) throw e;
+                LOG.warn("Failed to provision in data center {} of {}; trying data center {}: {}", new Object[] {
+                        dataCenterID, this, next.getDataCenterID(), e });
+                spec = next;
+            }
+        }
+    }
+
+    /**
+     * obtains a machine for the spec from the warm pool if it has one, else provisions one once admitted to the quota
+     * and then given a provisioning slot; the slot is not taken while waiting for the quota, so callers queued for the
+     * quota do not hold slots from those which could be provisioning
+     */
+    protected SshMachineLocation obtain(ConfigBag setup, IbmSmartCloudInstanceSpec spec) throws NoMachinesAvailableException {
+        if (warmPool != null) {
+            SshMachineLocation result = warmPool.take(spec);
+            if (result != null) return result;
+        }
+        awaitAdmission(setup);
+        boolean acquired = false;
+        try {
+            acquireProvisioningSlot(setup);
+            acquired = true;
+        } finally {
+            if (!acquired) admission.done();
+        }
+        String dataCenterID = spec.getDataCenterID();
+        placement.started(dataCenterID);
+        try {
+            return provision(setup, spec, true, true);
+        } finally {
+            placement.finished(dataCenterID);
+            provisioningBulkhead.release();
+        }
+    }
+
+    private void acquireProvisioningSlot(ConfigBag setup) throws NoMachinesAvailableException {
+        long maxWait = setup.get(PROVISIONING_MAX_WAIT_MILLIS);
+        try {
+            if (!provisioningBulkhead.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                provisioningRejected.incrementAndGet();
+                throw new NoMachinesAvailableException("Cannot obtain machine in "+this+": "+getConfig(PROVISIONING_MAX_CONCURRENT)
+                        +" machines still being provisioned after waiting "+Time.makeTimeStringRounded(maxWait));
             }
+        } catch (InterruptedException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    /** used by the warm pool to provision a machine with this location's own configuration */
+    SshMachineLocation provisionForPool(IbmSmartCloudInstanceSpec spec) {
+        return provision(ConfigBag.newInstanceExtending(getRawLocalConfigBag()), spec);
+    }
+
+    /** used to provision the instance a golden image is captured from, customized over ssh as usual */
+    SshMachineLocation provisionForGoldenImage(IbmSmartCloudInstanceSpec spec) {
+        return provision(ConfigBag.newInstanceExtending(getRawLocalConfigBag()), spec, false);
+    }
+
+    /** used by the warm pool to delete a machine it no longer wants */
+    void releaseFromPool(SshMachineLocation machine) {
+        teardown(machine);
+    }
+
+    protected SshMachineLocation provision(ConfigBag setup, IbmSmartCloudInstanceSpec spec) {
+        return provision(setup, spec, true);
+    }
 
-            String privateKeyPath = storePrivateKeyInTempFile(keyName, key.getMaterial());
-            Instance instance = createInstanceWithRetryStrategy(
+    /**
+     * provisions a machine for the spec; if {@link IbmSmartCloudConfig#GOLDEN_IMAGE_ENABLED} is set and the golden image
+     * is allowed, it boots from the spec's golden image (when one has been captured) and so is not customized again
+     */
+    protected SshMachineLocation provision(ConfigBag setup, IbmSmartCloudInstanceSpec spec, boolean allowGoldenImage) {
+        return provision(setup, spec, allowGoldenImage, false);
+    }
+
+    /**
+     * as {@link #provision(ConfigBag, IbmSmartCloudInstanceSpec, boolean)}; if already admitted (see {@link #awaitAdmission(ConfigBag)}),
+     * that admission is done once the instance is registered or provisioning fails
+     */
+    protected SshMachineLocation provision(ConfigBag setup, IbmSmartCloudInstanceSpec spec, boolean allowGoldenImage,
+            boolean alreadyAdmitted) {
+        String serverName = newServerName(setup);
+        
+        String dataCenterID = spec.getDataCenterID();
+        String goldenImageID = getGoldenImageID(spec, allowGoldenImage);
+        String imageID = (goldenImageID != null) ? goldenImageID : spec.getImageID();
+        String instanceTypeID = spec.getInstanceTypeID();
+        
+        String keyName = getKeyName(setup, serverName);
+        ProvisioningTimeline timeline = provisioningStats.begin();
+        provisioningStats.current().setServerName(serverName);
+        SshMachineLocation result = null;
+        boolean keyAcquired = false;
+        Instance instance = null;
+        Record record = null;
+        boolean admitted = alreadyAdmitted;
+        try {
+            if (!admitted) {
+                awaitAdmission(setup);
+                admitted = true;
+            }
+            String privateKeyPath = keyPairs.acquire(keyName);
+            keyAcquired = true;
+            instance = createInstanceWithRetryStrategy(
                     getConfig(IbmSmartCloudConfig.INSTANCE_CREATION_RETRIES), serverName, keyName, dataCenterID,
                     imageID, instanceTypeID);
             LOG.info("Using server-supplied private key for " + instance.getName() + " (" + instance.getIP() + "): "
                     + privateKeyPath);
-            SshMachineLocation result = registerIbmSmartCloudSshMachineLocation(instance.getIP(), instance.getID(), privateKeyPath);
-            
-            if (createdKey)
-                keyPairsByLocation.put(result, keyName);
-            
+            record = registry.register(instance.getID(), instance.getIP(), keyName, spec);
+            admission.done();
+            admitted = false;
+            stateChanged();
+            result = registerIbmSmartCloudSshMachineLocation(instance.getIP(), instance.getID(), privateKeyPath,
+                    goldenImageID == null);
             return result;
             
         } catch (Exception e) {
             LOG.error(String.format("Cannot obtain a new machine with serverName(%s), keyName(%s), dataCenterID(%s), " +
             		"imageID(%s), instanceTypeID(%s)", serverName, keyName, dataCenterID, imageID, instanceTypeID), e);
-            throw Throwables.propagate(e);
+            // e.g. ACTIVE but never sshable; the key, if removed with it, is retried until the instance has gone
+            if (instance != null) deleteInBackground(instance.getID());
+            if (record != null) registry.remove(record);
+            if (admitted) admission.done();
+            if (keyAcquired) keyPairs.release(keyName);
+            stateChanged();
+            throw Throwables.propagate(e instanceof ExecutionException ? e.getCause() : e);
+        } finally {
+            provisioningStats.finish(timeline, result);
         }
     }
 
-    public void release(SshMachineLocation machine) {
+    /**
+     * waits for room in the instance quota (see {@link IbmSmartCloudAdmission}), queued with others of the same caller;
+     * once admitted, {@link IbmSmartCloudAdmission#done()} must be called when the instance is registered or has failed
+     */
+    ListenableFuture<Void> admit(ConfigBag setup) {
+        return admission.admit(getCaller(setup), setup.get(ADMISSION_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * waits for admission as {@link #admit(ConfigBag)}; if not admitted, e.g. because interrupted, the request is withdrawn
+     * from the queue (or, if admitted meanwhile, the admission given back) so that no capacity is lost
+     * 
+     * @throws NoMachinesAvailableException if there is no room in the quota within {@link IbmSmartCloudConfig#ADMISSION_TIMEOUT_MILLIS}
+     */
+    void awaitAdmission(ConfigBag setup) throws NoMachinesAvailableException {
+        ListenableFuture<Void> future = admit(setup);
+        boolean admitted = false;
         try {
-            String serverIdMsg = String.format("Server ID for machine(%s) must not be null", machine.getDisplayName());
-            String serverId = checkNotNull(serverIds.get(machine), serverIdMsg);
-            client.deleteInstance(serverId);
-            waitForInstance(Instance.Status.REMOVED, serverId,
-                    getConfig(IbmSmartCloudConfig.CLIENT_POLL_TIMEOUT_MILLIS),
-                    getConfig(IbmSmartCloudConfig.CLIENT_POLL_PERIOD_MILLIS));
-        } catch (Exception e) {
-            throw Throwables.propagate(e);
+            future.get();
+            admitted = true;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw new NoMachinesAvailableException("Cannot obtain machine in "+this+": "+e.getCause().getMessage());
+            }
+            throw Exceptions.propagate(e.getCause());
+        } catch (InterruptedException e) {
+            throw Exceptions.propagate(e);
         } finally {
-            // delete the key if we created it for this machine
-            String keyName = keyPairsByLocation.get(machine);
-            if (keyName!=null) {
-                // get errors if we try to delete too soon; this may help
-                Time.sleep(Duration.FIVE_SECONDS);
-                try {
-                    client.removeKey(keyName);
-                } catch (Exception e) {
-                    LOG.error("Cannot delete keypair({})", keyName);
-                }
+            if (!admitted && !future.cancel(false) && isAdmitted(future)) admission.done();
+        }
+    }
+
+    private static boolean isAdmitted(ListenableFuture<Void> completed) {
+        try {
+            Uninterruptibles.getUninterruptibly(completed);
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /** who is obtaining a machine, for fair queueing: the caller's application if known */
+    protected String getCaller(ConfigBag setup) {
+        Object context = setup.get(CALLER_CONTEXT);
+        if (context instanceof Entity) return ((Entity) context).getApplicationId();
+        return (context != null) ? context.toString() : "";
+    }
+
+    IbmSmartCloudAdmission getAdmission() {
+        return admission;
+    }
+
+    /** a new, unique name for a machine's instance */
+    String newServerName(ConfigBag setup) {
+        return new CloudMachineNamer(setup).
+                // TODO can we go higher?
+                lengthMaxPermittedForMachineName(31).
+                generateNewMachineUniqueName();
+    }
+
+    /** the key pair for a new machine: as configured, else one shared by this location or one for the machine alone */
+    String getKeyName(ConfigBag setup, String serverName) {
+        String result = setup.get(IbmSmartCloudConfig.KEYPAIR_NAME);
+        if (result == null) result = setup.get(IbmSmartCloudConfig.KEYPAIR_SHARED) ? "brooklyn-"+getId() : serverName;
+        return result;
+    }
+
+    /** the golden image to boot a new machine for the spec from, or null if it should boot from the spec's own image */
+    String getGoldenImageID(IbmSmartCloudInstanceSpec spec, boolean allowGoldenImage) {
+        if (!allowGoldenImage || goldenImages == null) return null;
+        return goldenImages.find(spec, IbmSmartCloudCustomization.of(this).fingerprint());
+    }
+
+    /**
+     * Releases the machine, waiting for the teardown to complete. If {@link IbmSmartCloudConfig#TEARDOWN_MAX_WAITING}
+     * callers are already waiting, this first waits for one of them to finish, failing with {@link IllegalStateException}
+     * after {@link IbmSmartCloudConfig#TEARDOWN_MAX_WAIT_MILLIS} (the teardown stays queued, with any failure logged).
+     * If {@link IbmSmartCloudConfig#RELEASE_ASYNC}
+     * is set, this instead returns as soon as the teardown is queued; callers which do not want to wait should
+     * prefer {@link #releaseAsync(SshMachineLocation)} or {@link #releaseAll(Collection)}.
+     * 
+     * @see #releaseAsync(SshMachineLocation)
+     */
+    public void release(final SshMachineLocation machine) {
+        ListenableFuture<Void> future = releaseAsync(machine);
+        if (getConfig(RELEASE_ASYNC)) {
+            logOutcome(machine, future);
+        } else if (!acquireTeardownSlot()) {
+            teardownRejected.incrementAndGet();
+            logOutcome(machine, future);
+            throw new IllegalStateException("Cannot wait for release of "+machine+" in "+this+": "+getConfig(TEARDOWN_MAX_WAITING)
+                    +" releases still waiting after "+Time.makeTimeStringRounded(getConfig(TEARDOWN_MAX_WAIT_MILLIS))
+                    +"; its teardown is still queued");
+        } else {
+            try {
+                future.get();
+            } catch (Exception e) {
+                Throwables.propagateIfPossible(e instanceof ExecutionException ? e.getCause() : e);
+                throw Exceptions.propagate(e);
+            } finally {
+                teardownBulkhead.release();
+            }
+        }
+    }
+
+    private boolean acquireTeardownSlot() {
+        try {
+            return teardownBulkhead.tryAcquire(getConfig(TEARDOWN_MAX_WAIT_MILLIS), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    private void logOutcome(final SshMachineLocation machine, ListenableFuture<Void> release) {
+        Futures.addCallback(release, new FutureCallback<Void>() {
+            public void onSuccess(Void result) {
+                LOG.debug("Released {} in {}", machine, IbmSmartCloudLocation.this);
             }
+            public void onFailure(Throwable t) {
+                LOG.error("Error releasing "+machine+" in "+IbmSmartCloudLocation.this+": "+t, t);
+            }
+        });
+    }
+
+    /**
+     * Queues the machine for teardown (or returns it to the warm pool, if so configured).
+     * The future completes when its instance has been removed and its key pair, if created for it, deleted.
+     */
+    public ListenableFuture<Void> releaseAsync(SshMachineLocation machine) {
+        Record record = lookup(machine);
+        IbmSmartCloudInstanceSpec spec = (record != null) ? record.getSpec() : null;
+        if (warmPool != null && spec != null && getConfig(WARM_POOL_RETURN_ON_RELEASE) && warmPool.offer(spec, machine)) {
+            LOG.debug("Returned {} to warm pool of {}", machine, this);
+            return Futures.<Void>immediateFuture(null);
         }
+        return teardown(machine);
     }
 
-    private String storePrivateKeyInTempFile(String keyName, String keyMaterial) throws IOException {
-        File privateKey = File.createTempFile(keyName, "_rsa");
-        Files.write(keyMaterial, privateKey, Charsets.UTF_8);
-        Runtime.getRuntime().exec("chmod 400 " + privateKey.getAbsolutePath());
-        privateKey.deleteOnExit();
-        return privateKey.getAbsolutePath();
+    /** releases all the given machines in parallel; the future completes when all have been released */
+    public ListenableFuture<List<Void>> releaseAll(Collection<? extends SshMachineLocation> machines) {
+        List<ListenableFuture<Void>> futures = Lists.newArrayList();
+        for (SshMachineLocation machine : machines) {
+            futures.add(releaseAsync(machine));
+        }
+        return Futures.allAsList(futures);
+    }
+
+    /** counters and latencies for this location's provisioning and release, keyed by area */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> result = MutableMap.of();
+        if (rateLimiter != null) result.put("api", rateLimiter.getMetrics());
+        if (instrumentation != null) result.put("calls", instrumentation.getMetrics());
+        if (breakers != null) result.put("breakers", breakers.getMetrics());
+        if (catalog != null) result.put("catalog", catalog.getMetrics());
+        if (placement != null) result.put("placement", placement.getMetrics());
+        if (warmPool != null) result.put("warmPool", warmPool.getMetrics());
+        if (reaper != null) result.put("teardown", reaper.getMetrics());
+        if (keyPairs != null) result.put("keyPairs", keyPairs.getMetrics());
+        if (provisioningStats != null) result.put("provisioning", provisioningStats.getMetrics());
+        if (stateStore != null) result.put("state", stateStore.getMetrics());
+        if (goldenImages != null) result.put("goldenImages", goldenImages.getMetrics());
+        if (pipeline != null) result.put("async", pipeline.getMetrics());
+        if (reconciler != null) result.put("reconciler", reconciler.getMetrics());
+        if (admission != null) result.put("admission", admission.getMetrics());
+        result.put("machines", registry.getMetrics());
+        result.put("hedging", ImmutableMap.<String, Object>of("launched", hedgesLaunched.get(), "skipped", hedgesSkipped.get(),
+                "wins", hedgeWins.get(), "delayMillis", getHedgeDelayMillis()));
+        if (provisioningBulkhead != null) {
+            result.put("bulkheads", ImmutableMap.<String, Object>of(
+                    "provisioning", ImmutableMap.<String, Object>of("limit", getConfig(PROVISIONING_MAX_CONCURRENT),
+                            "available", provisioningBulkhead.availablePermits(), "rejected", provisioningRejected.get()),
+                    "teardown", ImmutableMap.<String, Object>of("limit", getConfig(TEARDOWN_MAX_WAITING),
+                            "available", teardownBulkhead.availablePermits(), "rejected", teardownRejected.get())));
+        }
+        result.put("sshdRestartWait", sshdRestartWaitStats.toMap());
+        result.put("iptablesStopWait", iptablesStopWaitStats.toMap());
+        return result;
+    }
+
+    /** per-phase provisioning latencies, and summaries of recently provisioned machines */
+    public IbmSmartCloudProvisioningStats getProvisioningStats() {
+        return provisioningStats;
+    }
+
+    /** the machines of this location, by machine, server ID, IP address and key name */
+    public IbmSmartCloudMachineRegistry getRegistry() {
+        return registry;
+    }
+
+    IbmSmartCloudPlacement getPlacement() {
+        return placement;
+    }
+
+    IbmSmartCloudKeyPairs getKeyPairs() {
+        return keyPairs;
+    }
+
+    IbmSmartCloudInstancePoller getInstancePoller() {
+        return instancePoller;
+    }
+
+    /** the reconciler of leaked instances and key pairs, or null if {@link IbmSmartCloudConfig#RECONCILER_ENABLED} is not set */
+    public IbmSmartCloudReconciler getReconciler() {
+        return reconciler;
+    }
+
+    /** whether this or another IBM SCE location in the management context has a machine on the given server */
+    boolean isKnownInstance(String serverId) {
+        for (IbmSmartCloudLocation location : getSceLocations()) {
+            if (location.getRegistry().getByServerId(serverId) != null) return true;
+        }
+        return false;
+    }
+
+    /** whether this or another IBM SCE location in the management context uses the given key pair */
+    boolean isKnownKey(String keyName) {
+        for (IbmSmartCloudLocation location : getSceLocations()) {
+            if (location.getKeyPairs() != null && location.getKeyPairs().isKnown(keyName)) return true;
+            if (!location.getRegistry().getByKeyName(keyName).isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /** this location and the other IBM SCE locations in its management context, which may share its account */
+    private Set<IbmSmartCloudLocation> getSceLocations() {
+        Set<IbmSmartCloudLocation> result = Sets.newLinkedHashSet();
+        result.add(this);
+        if (getManagementContext() != null) {
+            Iterables.addAll(result, Iterables.filter(getManagementContext().getLocationManager().getLocations(),
+                    IbmSmartCloudLocation.class));
+        }
+        return result;
+    }
+
+    /** the background teardown of released machines */
+    public IbmSmartCloudReaper getReaper() {
+        return reaper;
+    }
+
+    protected ListenableFuture<Void> teardown(final SshMachineLocation machine) {
+        String serverIdMsg = String.format("Server ID for machine(%s) must not be null", machine.getDisplayName());
+        final Record record = checkNotNull(lookup(machine), serverIdMsg);
+        if (!registry.transition(record, State.ACTIVE, State.RELEASING)) {
+            return Futures.immediateFailedFuture(new IllegalStateException("Machine "+machine+" in "+this
+                    +" cannot be released: it is "+record.getState()));
+        }
+        ListenableFuture<Void> result = reaper.teardown(record.getServerId(), null);
+        Futures.addCallback(result, new FutureCallback<Void>() {
+            public void onSuccess(Void v) {
+                // the key (if created here) is removed once no remaining machine uses it
+                if (record.getKeyName() != null) keyPairs.release(record.getKeyName());
+                registry.remove(record);
+                admission.capacityChanged();
+                stateChanged();
+            }
+            public void onFailure(Throwable t) {
+                // instance may still be using the key, so leave it; the release can be retried
+                registry.transition(record, State.RELEASING, State.ACTIVE);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * the registry's record for the machine; a machine not known by identity (e.g. rebound after a restart, when its
+     * record was restored by the {@link IbmSmartCloudStateStore}) is looked up by address, and bound to its record
+     */
+    protected Record lookup(SshMachineLocation machine) {
+        Record result = registry.get(machine);
+        if (result != null || machine.getAddress() == null) return result;
+        result = registry.getByAddress(machine.getAddress().getHostAddress());
+        if (result == null || !registry.bind(result, machine)) return null;
+        LOG.debug("Bound {} in {} to restored IBM SCE server {}", new Object[] { machine, this, result.getServerId() });
+        return result;
+    }
+
+    /** queues a save of the persisted state, if {@link IbmSmartCloudConfig#STATE_FILE} is set */
+    protected void stateChanged() {
+        if (stateStore != null) stateStore.saveSoon();
     }
 
     private Instance createInstanceWithRetryStrategy(int retries, String serverName, String keyName,
             String dataCenterID, String imageID, String instanceTypeID) throws Exception {
-        boolean foundInstance = false;
+        Instance activeInstance = null;
         int failures = 0;
         Instance instance;
         do {
-            instance = createInstance(serverName + "_" + failures, dataCenterID, imageID,
-                    instanceTypeID, keyName);
+            Stopwatch attemptStopwatch = new Stopwatch().start();
+            ProvisioningTimeline timeline = provisioningStats.current();
+            if (timeline != null) timeline.incrementAttempts();
+            try {
+                instance = createInstance(serverName + "_" + failures, dataCenterID, imageID,
+                        instanceTypeID, keyName);
+            } catch (RuntimeException e) {
+                if (SceErrors.isQuotaError(e)) placement.recordQuotaError(dataCenterID);
+                else placement.recordFailure(dataCenterID);
+                throw e;
+            }
+            long createMillis = attemptStopwatch.elapsed(TimeUnit.MILLISECONDS);
             LOG.info("Creation requested for new SCE VM instance: name({}), keyname({}), location({}), id({}), now waiting", 
                     new Object[] { instance.getName(), instance.getKeyName(), 
                     client.describeLocation(instance.getLocation()).getName(), instance.getID() });
             try {
-                foundInstance = waitForInstance(Instance.Status.ACTIVE, instance.getID(),
-                        getConfig(IbmSmartCloudConfig.CLIENT_POLL_TIMEOUT_MILLIS),
-                        getConfig(IbmSmartCloudConfig.CLIENT_POLL_PERIOD_MILLIS));
+                Stopwatch stopwatch = new Stopwatch().start();
+                if (getConfig(INSTANCE_CREATION_HEDGING)) {
+                    activeInstance = waitForInstanceHedged(instance, serverName + "_" + failures + "b", dataCenterID, imageID,
+                            instanceTypeID, keyName, getConfig(IbmSmartCloudConfig.CLIENT_POLL_TIMEOUT_MILLIS));
+                } else {
+                    activeInstance = waitForInstance(Instance.Status.ACTIVE, instance.getID(),
+                            getConfig(IbmSmartCloudConfig.CLIENT_POLL_TIMEOUT_MILLIS));
+                }
+                if (activeInstance != null) {
+                    long waitMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+                    recordActive(dataCenterID, waitMillis);
+                    provisioningStats.record(Phase.CREATE, createMillis);
+                    provisioningStats.record(Phase.WAIT_ACTIVE, waitMillis);
+                } else {
+                    // not ACTIVE in time: counts as a failure, and the instance must not be left running
+                    failures++;
+                    recordInstanceFailure(dataCenterID);
+                    deleteInBackground(instance.getID());
+                    provisioningStats.record(Phase.RETRIES, attemptStopwatch.elapsed(TimeUnit.MILLISECONDS));
+                }
             } catch (IllegalStateException e) {
                 failures++;
-                client.deleteInstance(instance.getID());
+                recordInstanceFailure(dataCenterID);
+                // FAILED instances still count against the quota, so their removal is confirmed like any other
+                deleteInBackground(instance.getID());
                 // no need to delete keypair - reuse keyName already created before
+                provisioningStats.record(Phase.RETRIES, attemptStopwatch.elapsed(TimeUnit.MILLISECONDS));
             }
-        } while (!foundInstance  && failures < retries);
-        if(!foundInstance) {
+        } while (activeInstance == null && failures < retries);
+        if (activeInstance == null) {
             throw new RuntimeException("Instance with serverId(" + instance.getID() + ") is not running");
         }
-        return client.describeInstance(instance.getID());
+        return activeInstance;
     }
     
-    private Instance createInstance(String serverName, String dataCenterID, String imageID, String instanceTypeID, String keyName) {
+    /** records that an instance in the data center became ACTIVE, after waiting the given time */
+    void recordActive(String dataCenterID, long waitMillis) {
+        activeHistory.record(waitMillis);
+        placement.recordActive(dataCenterID, waitMillis);
+    }
+
+    /** records that an instance in the data center failed, or did not become ACTIVE in time */
+    void recordInstanceFailure(String dataCenterID) {
+        placement.recordFailure(dataCenterID);
+        breakers.recordFailure(dataCenterID);
+    }
+
+    /** records that a new machine was sshable after the given time waiting */
+    void recordSshable(long elapsedMillis) {
+        sshableHistory.record(elapsedMillis);
+    }
+
+    Instance createInstance(String serverName, String dataCenterID, String imageID, String instanceTypeID, String keyName) {
         try {
-            List<Instance> instances = client.createInstance(serverName, dataCenterID, imageID, instanceTypeID, keyName, null);
+            List<Instance> instances = client.createInstance(serverName, dataCenterID, imageID, instanceTypeID, keyName,
+                    getInstanceParameters());
             return Iterables.getOnlyElement(instances);
         } catch (Exception e) {
+            if (SceErrors.isQuotaError(e)) admission.recordQuotaError();
             throw Exceptions.propagate(e);
         }
     }
 
     /**
-     * waits for the instance to be listed by the client; it is not necessarily
-     * sshable however
+     * Waits for the instance to be ACTIVE as {@link #waitForInstance(Instance.Status, String, long)} does, but if it is not
+     * ACTIVE within {@link #getHedgeDelayMillis()} (and a hedge is available) creates a backup instance and uses whichever
+     * becomes ACTIVE first. The other is deleted in the background.
+     * 
+     * @return the ACTIVE instance, or null if neither became ACTIVE within the timeout (the backup is then deleted)
+     * @throws IllegalStateException if every instance failed (the backup, if any, is deleted; the original is left to the caller)
      */
-    private boolean waitForInstance(final Instance.Status desiredStatus, final String serverId, long timeoutMillis,
-            long periodMillis) throws Exception {
-        return Repeater.create("Wait until the instance is ready").until(new Callable<Boolean>() {
-            public Boolean call() {
-                Instance instance;
-                try {
-                    instance = client.describeInstance(serverId);
-                } catch (Exception e) {
-                    LOG.warn(String.format("Cannot find instance with serverId(%s) (continuing to wait)", serverId)+": "+e);
-                    return false;
-                }
-                Instance.Status status = instance.getStatus();
-                if (Instance.Status.FAILED.equals(desiredStatus)) {
-                    LOG.warn(String.format("Instance with serverId(%s) has status=failed (throwing)", serverId));
-                    throw new IllegalStateException("Instance " + instance.getName() + " has status=failed");
-                }
-                LOG.debug("looking for IBM SCE server " + serverId + ", status: " + status.name());
-                return status.equals(desiredStatus);
+    private Instance waitForInstanceHedged(final Instance primary, String backupName, String dataCenterID, String imageID,
+            String instanceTypeID, String keyName, long timeoutMillis) throws Exception {
+        long startTime = System.currentTimeMillis();
+        final ListenableFuture<Instance> primaryActive = instancePoller.await(primary.getID(), Instance.Status.ACTIVE);
+        try {
+            return primaryActive.get(Math.min(getHedgeDelayMillis(), timeoutMillis), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // fall through to hedging
+        } catch (ExecutionException e) {
+            primaryActive.cancel(false);
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw Exceptions.propagate(e.getCause());
+        }
+        long remaining = timeoutMillis - (System.currentTimeMillis() - startTime);
+        if (remaining <= 0 || !hedges.tryAcquire()) {
+            if (remaining > 0) {
+                hedgesSkipped.incrementAndGet();
+                LOG.debug("Not hedging slow IBM SCE server {}: {} hedges already in flight", primary.getID(), getConfig(INSTANCE_CREATION_HEDGE_MAX_CONCURRENT));
             }
-        }).every(periodMillis, TimeUnit.MILLISECONDS).limitTimeTo(timeoutMillis, TimeUnit.MILLISECONDS).run();
+            primaryActive.cancel(false);
+            return waitForInstance(Instance.Status.ACTIVE, primary.getID(), remaining);
+        }
+
+        Instance backup = null;
+        ListenableFuture<Instance> backupActive = null;
+        try {
+            backup = createInstance(backupName, dataCenterID, imageID, instanceTypeID, keyName);
+            hedgesLaunched.incrementAndGet();
+            LOG.info("IBM SCE server {} not ACTIVE after {}; created backup server {}", new Object[] { primary.getID(),
+                    Time.makeTimeStringRounded(System.currentTimeMillis() - startTime), backup.getID() });
+            backupActive = instancePoller.await(backup.getID(), Instance.Status.ACTIVE);
+
+            final SettableFuture<Instance> first = SettableFuture.create();
+            final AtomicInteger failed = new AtomicInteger();
+            for (ListenableFuture<Instance> candidate : ImmutableList.of(primaryActive, backupActive)) {
+                Futures.addCallback(candidate, new FutureCallback<Instance>() {
+                    public void onSuccess(Instance result) {
+                        first.set(result);
+                    }
+                    public void onFailure(Throwable t) {
+                        if (failed.incrementAndGet() == 2) first.setException(t);
+                    }
+                });
+            }
+            Instance winner;
+            try {
+                winner = first.get(remaining, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                LOG.warn("Timeout waiting for IBM SCE server {} or its backup {} to be ACTIVE", primary.getID(), backup.getID());
+                winner = null;
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), Exception.class);
+                throw Exceptions.propagate(e.getCause());
+            }
+            if (winner != null && winner.getID().equals(backup.getID())) {
+                hedgeWins.incrementAndGet();
+                LOG.info("Backup IBM SCE server {} ACTIVE before {}; deleting the latter", backup.getID(), primary.getID());
+                backup = null;
+                deleteInBackground(primary.getID());
+            }
+            return winner;
+        } finally {
+            primaryActive.cancel(false);
+            if (backupActive != null) backupActive.cancel(false);
+            if (backup != null) deleteInBackground(backup.getID());
+            hedges.release();
+        }
+    }
+
+    /** the time after which a backup instance is created when hedging, from recent times to ACTIVE */
+    protected long getHedgeDelayMillis() {
+        if (activeHistory.getCount() < MIN_HEDGE_HISTORY) return getConfig(INSTANCE_CREATION_HEDGE_DELAY_MILLIS);
+        return activeHistory.getPercentileMillis(getConfig(INSTANCE_CREATION_HEDGE_PERCENTILE));
+    }
+
+    void deleteInBackground(final String serverId) {
+        Futures.addCallback(reaper.teardown(serverId, null), new FutureCallback<Void>() {
+            public void onSuccess(Void result) {
+                LOG.debug("Deleted unused IBM SCE server {}", serverId);
+            }
+            public void onFailure(Throwable t) {
+                LOG.warn("Failed to delete unused IBM SCE server "+serverId+": "+t);
+            }
+        });
+    }
+
+    /**
+     * waits for the instance to be listed by the client with the given status; it is not necessarily
+     * sshable however. Status is checked by the location's shared {@link IbmSmartCloudInstancePoller}.
+     * 
+     * @return the instance, or null if it did not reach the status within the timeout
+     *         (or if waiting for REMOVED and the instance is no longer listed)
+     * @throws IllegalStateException if the instance failed
+     */
+    private Instance waitForInstance(final Instance.Status desiredStatus, final String serverId, long timeoutMillis) throws Exception {
+        ListenableFuture<Instance> future = instancePoller.await(serverId, desiredStatus);
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOG.warn("Timeout waiting for IBM SCE server {} to be {}", serverId, desiredStatus);
+            return null;
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw Exceptions.propagate(e.getCause());
+        } finally {
+            future.cancel(false);
+        }
     }
 
     protected void waitForSshable(final SshMachineLocation machine, long delayMs) {
@@ -236,70 +975,162 @@ public class IbmSmartCloudLocation extends AbstractCloudMachineProvisioningLocat
                 machine.getDisplayName(), this,
                 Time.makeTimeStringRounded(delayMs), machine.getUser(), machine.getAddress(), });
 
-        boolean reachable = new Repeater().repeat().every(1, SECONDS).until(new Callable<Boolean>() {
-            public Boolean call() {
-                return machine.isSshable();
+        long startTime = System.currentTimeMillis();
+        // wait for the port without holding a thread per machine, before attempting any ssh handshake
+        ListenableFuture<Void> portOpen = getSshReachabilityScanner().awaitPortOpen(
+                new InetSocketAddress(machine.getAddress(), machine.getPort()), delayMs);
+        try {
+            portOpen.get();
+            LOG.debug("{}: ssh port on {} open after {}", new Object[] { this, machine.getAddress(),
+                    Time.makeTimeStringRounded(System.currentTimeMillis() - startTime) });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("SSH failed for " + machine.getUser() + "@" + machine.getAddress() + " ("
+                    + getRawLocalConfigBag().getDescription() + ") after waiting " + Time.makeTimeStringRounded(delayMs)
+                    + ": " + e.getCause());
+        } catch (InterruptedException e) {
+            throw Exceptions.propagate(e);
+        } finally {
+            portOpen.cancel(false);
+        }
+
+        PollSchedule schedule = getSshPollSchedule();
+        int attempt = 0;
+        while (true) {
+            long elapsed = System.currentTimeMillis() - startTime;
+            if (probeSsh(machine)) {
+                recordSshable(elapsed);
+                provisioningStats.record(Phase.SSH_REACHABLE, elapsed);
+                return;
             }
-        }).limitTimeTo(delayMs, MILLISECONDS).run();
+            elapsed = System.currentTimeMillis() - startTime;
+            if (elapsed >= delayMs) break;
+            Time.sleep(Math.min(schedule.nextDelayMillis(attempt++, elapsed), delayMs - elapsed));
+        }
 
-        if (!reachable) {
-            throw new IllegalStateException("SSH failed for " + machine.getUser() + "@" + machine.getAddress() + " ("
-                    + getRawLocalConfigBag().getDescription() + ") after waiting " + Time.makeTimeStringRounded(delayMs));
+        throw new IllegalStateException("SSH failed for " + machine.getUser() + "@" + machine.getAddress() + " ("
+                + getRawLocalConfigBag().getDescription() + ") after waiting " + Time.makeTimeStringRounded(delayMs));
+    }
+
+    protected synchronized SshReachabilityScanner getSshReachabilityScanner() {
+        if (sshReachabilityScanner == null) {
+            sshReachabilityScanner = new SshReachabilityScanner(getSshPollSchedule());
+            if (closed.get()) sshReachabilityScanner.close();
         }
+        return sshReachabilityScanner;
     }
 
     protected SshMachineLocation registerIbmSmartCloudSshMachineLocation(String ipAddress,
             String serverId, String privateKeyPath) {
+        return registerIbmSmartCloudSshMachineLocation(ipAddress, serverId, privateKeyPath, true);
+    }
+
+    /** as {@link #registerIbmSmartCloudSshMachineLocation(String, String, String)}, skipping customization if not required */
+    protected SshMachineLocation registerIbmSmartCloudSshMachineLocation(String ipAddress,
+            String serverId, String privateKeyPath, boolean customizationRequired) {
         SshMachineLocation machine = createIbmSmartCloudSshMachineLocation(ipAddress, serverId,
                 privateKeyPath);
         machine.setParent(this);
 
         waitForSshable(machine, getConfig(IbmSmartCloudConfig.SSH_REACHABLE_TIMEOUT_MILLIS));
 
-        if (getConfig(IbmSmartCloudConfig.SSHD_SUBSYSTEM_ENABLE)) {
-            LOG.debug(this + ": machine " + ipAddress + " is sshable, enabling sshd subsystem section");
-            machine.execCommands("enabling sshd subsystem",
-                    ImmutableList.of(
-                            "sudo sed -i \"s/#Subsystem/Subsystem/\" /etc/ssh/sshd_config",
-                            "sudo /etc/init.d/sshd restart",
-                            
-                            // TODO remove this and use `Apply same securityGroups rules to iptables, if iptables is running on the node`
-                            "sudo service iptables stop",
-                            "sudo chkconfig iptables off"));
-            // wait 30s for ssh to restart (overkill, but safety first; cloud is so slow it won't matter!)
-            Time.sleep(30 * 1000L);
+        if (!customizationRequired) {
+            LOG.debug(this + ": machine " + ipAddress + " is sshable, booted from golden image so already customized");
+        } else if (getConfig(IbmSmartCloudConfig.BOOT_TIME_CUSTOMIZATION)) {
+            awaitBootScript(machine, IbmSmartCloudCustomization.of(this));
         } else {
-            LOG.debug(this + ": machine " + ipAddress + " is not yet sshable");
+            customize(machine, IbmSmartCloudCustomization.of(this));
         }
-        
-        if (getConfig(IbmSmartCloudConfig.INSTALL_LOCAL_AUTHORIZED_KEYS)) {
-            try {
-                File authKeys = new File(Urls.mergePaths(System.getProperty("user.home"), ".ssh/authorized_keys"));
-                if (authKeys.exists()) {
-                    String authKeysContents = Files.toString(authKeys, Charset.defaultCharset());
-                    String marker = "EOF_"+Strings.makeRandomId(8);
-                    machine.execCommands("updating authorized_keys",
-                            ImmutableList.of("cat >> ~/.ssh/authorized_keys << "+marker+"\n" +
-                                    ""+authKeysContents.trim()+"\n"+
-                                    marker+"\n"));
-                }
-            } catch (IOException e) {
-                LOG.warn("Error installing authorized_keys to "+this+": "+e);
-            }
+        Record record = registry.getByServerId(serverId);
+        if (record == null) record = registry.register(serverId, ipAddress, null, null);
+        registry.activate(record, machine);
+        return machine;
+    }
+
+    /**
+     * parameters passed to SCE when creating an instance; when {@link IbmSmartCloudConfig#BOOT_TIME_CUSTOMIZATION}
+     * is set, this carries the boot script in the image parameter named by {@link IbmSmartCloudConfig#BOOT_SCRIPT_PARAMETER}
+     */
+    protected Map<String, Object> getInstanceParameters() {
+        if (!getConfig(BOOT_TIME_CUSTOMIZATION)) return null;
+        String parameter = getConfig(BOOT_SCRIPT_PARAMETER);
+        if (Strings.isBlank(parameter)) {
+            throw new IllegalStateException("Boot-time customization in "+this+" requires "+BOOT_SCRIPT_PARAMETER.getName()
+                    +" to name the image parameter which runs the boot script");
+        }
+        return MutableMap.<String, Object>of(parameter, IbmSmartCloudCustomization.of(this).renderBootScript());
+    }
+
+    /**
+     * applies the customization to a machine which is already sshable, running all its commands in a single ssh session
+     * (see {@link IbmSmartCloudCustomization#renderSshCommands()}); if they restart sshd or stop iptables, ssh is waited
+     * for once more afterwards, which is the only reconnect
+     */
+    protected void customize(SshMachineLocation machine, IbmSmartCloudCustomization customization) {
+        String ipAddress = machine.getAddress().getHostAddress();
+        List<String> commands = customization.renderSshCommands();
+        if (commands.isEmpty()) {
+            LOG.debug(this + ": machine " + ipAddress + " is sshable, nothing to customize");
+            return;
         }
+        Stopwatch stopwatch = new Stopwatch().start();
+        LOG.debug("{}: machine {} is sshable, customizing: {}", new Object[] { this, ipAddress, customization });
+        machine.execCommands("customizing", commands);
+        provisioningStats.recordSshSession(-1);
         
         // TODO additional security / vulnerability fixes from cloudsoft-ibm-web project (spin / sydney)
         
-        // TODO remove this (ip_tables) and use `Apply same securityGroups rules to iptables, if iptables is running on the node`
-        if (getConfig(IbmSmartCloudConfig.STOP_IPTABLES)) {
-            machine.execCommands("disabling iptables",
-                    ImmutableList.of(
-                        "sudo service iptables stop",
-                        "sudo chkconfig iptables off"));
-            Time.sleep(3 * 1000L);
-        }
-        serverIds.put(machine, serverId);
-        return machine;
+        if (customization.isIptablesStopped()) {
+            // wait for sshd to be back after its restart, or reachable after the firewall change
+            long waited = sshReadinessProbe.awaitSshable(machine, getConfig(SSH_RESTART_TIMEOUT_MILLIS));
+            if (customization.isSshdSubsystemEnabled()) {
+                sshdRestartWaitStats.record(waited);
+            } else {
+                iptablesStopWaitStats.record(waited);
+            }
+            LOG.debug("{}: machine {} sshable again {} after customizing", new Object[] { this, ipAddress, Time.makeTimeStringRounded(waited) });
+        }
+        provisioningStats.record(Phase.CUSTOMIZE, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * waits for the boot script (see {@link IbmSmartCloudCustomization#renderBootScript()}) to finish on a machine which
+     * is already sshable, as it may yet restart sshd, stop iptables or install authorized keys; each check waits for ssh
+     * to be back first, all within {@link IbmSmartCloudConfig#SSH_RESTART_TIMEOUT_MILLIS}
+     */
+    protected void awaitBootScript(SshMachineLocation machine, IbmSmartCloudCustomization customization) {
+        String ipAddress = machine.getAddress().getHostAddress();
+        long timeout = getConfig(SSH_RESTART_TIMEOUT_MILLIS);
+        List<String> check = ImmutableList.of(customization.renderBootScriptDoneCheck());
+        PollSchedule schedule = getSshPollSchedule();
+        Stopwatch stopwatch = new Stopwatch().start();
+        int attempt = 0;
+        while (true) {
+            sshReadinessProbe.awaitSshable(machine, Math.max(1, timeout - stopwatch.elapsed(TimeUnit.MILLISECONDS)));
+            try {
+                provisioningStats.recordSshSession(-1);
+                if (machine.execCommands("checking boot customization", check) == 0) break;
+            } catch (Exception e) {
+                // e.g. cut off by sshd restarting
+                LOG.debug("{}: cannot yet check boot customization of machine {}: {}", new Object[] { this, ipAddress, e });
+            }
+            long elapsed = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            if (elapsed >= timeout) {
+                throw new IllegalStateException("Boot customization of " + machine.getUser() + "@" + machine.getAddress()
+                        + " not finished after waiting " + Time.makeTimeStringRounded(elapsed));
+            }
+            Time.sleep(Math.min(schedule.nextDelayMillis(attempt++, elapsed), timeout - elapsed));
+        }
+        LOG.debug("{}: machine {} is sshable, customized at boot (finished {} after it was sshable)", new Object[] { this,
+                ipAddress, Time.makeTimeStringRounded(stopwatch.elapsed(TimeUnit.MILLISECONDS)) });
+        provisioningStats.record(Phase.CUSTOMIZE, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+    }
+
+    /** whether the machine is sshable; a successful handshake is timed, as the cost of setting up an ssh session */
+    boolean probeSsh(SshMachineLocation machine) {
+        Stopwatch stopwatch = new Stopwatch().start();
+        boolean result = machine.isSshable();
+        if (result) provisioningStats.recordSshSession(stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        return result;
     }
 
     protected SshMachineLocation createIbmSmartCloudSshMachineLocation(String ipAddress, String serverId,
@@ -326,86 +1157,4 @@ public class IbmSmartCloudLocation extends AbstractCloudMachineProvisioningLocat
         return MutableMap.<String, Object>of();
     }
 
-    private Location findLocation(final String location) {
-        Preconditions.checkNotNull(location, "location must not be null");
-        List<Location> locations;
-        
-        int retriesLeft = 10;
-        while (true) {
-            try {
-                locations = client.describeLocations();
-                break;
-            } catch (Exception e) {
-                retriesLeft--;
-                LOG.warn("Error reading IBM locations; retries left: "+retriesLeft+" ("+e+")");
-                if (retriesLeft<=0)
-                    throw Throwables.propagate(e);
-            }
-        }
-        
-        Optional<Location> result = Iterables.tryFind(locations, new Predicate<Location>() {
-            public boolean apply(Location input) {
-                return input.getName().contains(location);
-            }
-        });
-        if (!result.isPresent()) {
-            LOG.warn("IBM SmartCloud unknown location " + location);
-            LOG.info("IBM SmartCloud locations (" + locations.size() + ") are:");
-            for (Location l : locations)
-                LOG.info("  " + l.getName() + " " + l.getLocation() + " " + l.getId());
-            throw new NoSuchElementException("Unknown IBM SmartCloud location " + location);
-        }
-        return result.get();
-    }
-
-    private Image findImage(final String imageName, final String dataCenterID) {
-        Preconditions.checkNotNull(imageName, "image must not be null");
-        List<Image> images;
-        try {
-            images = client.describeImages();
-        } catch (Exception e) {
-            throw Throwables.propagate(e);
-        }
-        Optional<Image> result = Iterables.tryFind(images, new Predicate<Image>() {
-            public boolean apply(Image input) {
-                if (!input.getName().contains(imageName))
-                    return false;
-                if (!input.getLocation().equals(dataCenterID))
-                    return false;
-                return true;
-            }
-        });
-
-        if (!result.isPresent()) {
-            LOG.warn("IBM SmartCloud unknown image " + imageName + " (in location " + dataCenterID + ")");
-            LOG.info("IBM SmartCloud images (" + images.size() + ") are:");
-            for (Image img : images)
-                LOG.info("  " + img.getName() + " " + img.getLocation() + " " + img.getOwner() + " " + img.getID());
-            throw new NoSuchElementException("Unknown IBM SmartCloud image " + imageName);
-        }
-        return result.get();
-    }
-
-    private InstanceType findInstanceType(String imageId, final String instanceType) {
-        List<InstanceType> instanceTypes;
-        try {
-            instanceTypes = client.describeImage(imageId).getSupportedInstanceTypes();
-        } catch (Exception e) {
-            throw Throwables.propagate(e);
-        }
-        Optional<InstanceType> result = Iterables.tryFind(instanceTypes, new Predicate<InstanceType>() {
-            public boolean apply(InstanceType input) {
-                return input.getLabel().contains(instanceType);
-            }
-        });
-        if (!result.isPresent()) {
-            LOG.warn("IBM SmartCloud unknown instanceType " + instanceType);
-            LOG.info("IBM SmartCloud instanceTypes (" + instanceTypes.size() + ") are:");
-            for (InstanceType i : instanceTypes)
-                LOG.info("  " + i.getLabel() + " " + i.getDetail() + " " + i.getId());
-            throw new NoSuchElementException("Unknown IBM SmartCloud instanceType " + instanceType);
-        }
-        return result.get();
-    }
-
 }
@@ -0,0 +1,235 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.basic.SshMachineLocation;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The machines of an {@link IbmSmartCloudLocation}, indexed by machine, SCE server ID, IP address and key name,
+ * so that machines can be obtained and released concurrently without callers having to serialize.
+ * <p>
+ * Indexes are concurrent maps, and each record's {@link State} changes only by compare-and-set,
+ * so for example only one of several concurrent releases of the same machine will start its teardown.
+ * Iteration is over a snapshot, without locking.
+ */
+public class IbmSmartCloudMachineRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudMachineRegistry.class);
+
+    public enum State {
+        /** instance is ACTIVE in SCE, but not yet sshable and customized */
+        PROVISIONING,
+        /** machine is ready, and handed out (or pooled) */
+        ACTIVE,
+        /** machine's instance is being torn down */
+        RELEASING,
+        /** machine's instance has been removed; no longer in the registry */
+        REMOVED
+    }
+
+    private final ConcurrentMap<String, Record> byServerId = Maps.newConcurrentMap();
+    private final ConcurrentMap<SshMachineLocation, Record> byMachine = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, Record> byAddress = Maps.newConcurrentMap();
+    /** changed only while holding {@link #keyNameLock}, so empty sets can be dropped without losing a concurrent add */
+    private final ConcurrentMap<String, Set<Record>> byKeyName = Maps.newConcurrentMap();
+    private final Object keyNameLock = new Object();
+
+    private final AtomicLong registered = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+    private final AtomicLong rejectedTransitions = new AtomicLong();
+
+    /** records a newly created instance, in state {@link State#PROVISIONING} */
+    public Record register(String serverId, String address, String keyName, IbmSmartCloudInstanceSpec spec) {
+        Record record = new Record(serverId, address, keyName, spec);
+        if (byServerId.putIfAbsent(serverId, record) != null) {
+            throw new IllegalStateException("IBM SCE server "+serverId+" already registered");
+        }
+        if (address != null) byAddress.put(address, record);
+        if (keyName != null) addToKeyNameIndex(record);
+        registered.incrementAndGet();
+        return record;
+    }
+
+    /**
+     * records an instance known from a previous run (see {@link IbmSmartCloudStateStore}), in state {@link State#ACTIVE}
+     * but without a machine until one is {@link #bind(Record, SshMachineLocation) bound} to it
+     */
+    public Record restore(String serverId, String address, String keyName, IbmSmartCloudInstanceSpec spec) {
+        Record record = register(serverId, address, keyName, spec);
+        transition(record, State.PROVISIONING, State.ACTIVE);
+        return record;
+    }
+
+    /** associates a restored record with the machine representing it now, e.g. one rebound after a restart */
+    public boolean bind(Record record, SshMachineLocation machine) {
+        checkNotNull(machine, "machine");
+        synchronized (record) {
+            if (record.getState() == State.REMOVED) return false;
+            if (record.machine != null) return record.machine.equals(machine);
+            record.machine = machine;
+        }
+        byMachine.put(machine, record);
+        return true;
+    }
+
+    /** moves the record from PROVISIONING to ACTIVE, now that it has the given machine */
+    public boolean activate(Record record, SshMachineLocation machine) {
+        checkNotNull(machine, "machine");
+        if (!transition(record, State.PROVISIONING, State.ACTIVE)) return false;
+        record.machine = machine;
+        byMachine.put(machine, record);
+        return true;
+    }
+
+    /** changes the record's state, if it is currently in the expected state; returns whether it did */
+    public boolean transition(Record record, State expected, State target) {
+        if (record.state.compareAndSet(expected, target)) return true;
+        rejectedTransitions.incrementAndGet();
+        LOG.debug("Not moving {} to {}: state is {}, not {}", new Object[] { record, target, record.getState(), expected });
+        return false;
+    }
+
+    /** marks the record as REMOVED and drops it from every index */
+    public void remove(Record record) {
+        if (record.state.getAndSet(State.REMOVED) == State.REMOVED) return;
+        byServerId.remove(record.serverId, record);
+        if (record.machine != null) byMachine.remove(record.machine, record);
+        if (record.address != null) byAddress.remove(record.address, record);
+        if (record.keyName != null) removeFromKeyNameIndex(record);
+        removed.incrementAndGet();
+    }
+
+    public Record get(SshMachineLocation machine) {
+        return byMachine.get(machine);
+    }
+
+    public Record getByServerId(String serverId) {
+        return byServerId.get(serverId);
+    }
+
+    public Record getByAddress(String address) {
+        return byAddress.get(address);
+    }
+
+    public List<Record> getByKeyName(String keyName) {
+        Set<Record> records = byKeyName.get(keyName);
+        return (records == null) ? ImmutableList.<Record>of() : ImmutableList.copyOf(records);
+    }
+
+    /** the number of instances recorded, i.e. not yet removed */
+    public int size() {
+        return byServerId.size();
+    }
+
+    /** the number of key names used by recorded instances */
+    public int getKeyNameCount() {
+        return byKeyName.size();
+    }
+
+    /** a point-in-time copy of all records; taken without locking, so may miss concurrent changes */
+    public List<Record> snapshot() {
+        return ImmutableList.copyOf(byServerId.values());
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<State, Integer> counts = new EnumMap<State, Integer>(State.class);
+        for (State state : State.values()) counts.put(state, 0);
+        for (Record record : snapshot()) {
+            State state = record.getState();
+            counts.put(state, counts.get(state) + 1);
+        }
+        ImmutableMap.Builder<String, Object> result = ImmutableMap.builder();
+        for (Map.Entry<State, Integer> entry : counts.entrySet()) {
+            if (entry.getKey() != State.REMOVED) result.put(entry.getKey().name().toLowerCase(), entry.getValue());
+        }
+        return result
+                .put("registered", registered.get())
+                .put("removed", removed.get())
+                .put("rejectedTransitions", rejectedTransitions.get())
+                .build();
+    }
+
+    private void addToKeyNameIndex(Record record) {
+        synchronized (keyNameLock) {
+            Set<Record> records = byKeyName.get(record.keyName);
+            if (records == null) {
+                records = Sets.newConcurrentHashSet();
+                byKeyName.put(record.keyName, records);
+            }
+            records.add(record);
+        }
+    }
+
+    private void removeFromKeyNameIndex(Record record) {
+        synchronized (keyNameLock) {
+            Set<Record> records = byKeyName.get(record.keyName);
+            if (records != null && records.remove(record) && records.isEmpty()) byKeyName.remove(record.keyName);
+        }
+    }
+
+    /** one SCE instance and, once ACTIVE, the machine representing it */
+    public static class Record {
+        private final String serverId;
+        private final String address;
+        private final String keyName;
+        private final IbmSmartCloudInstanceSpec spec;
+        private final AtomicReference<State> state = new AtomicReference<State>(State.PROVISIONING);
+        private volatile SshMachineLocation machine;
+
+        Record(String serverId, String address, String keyName, IbmSmartCloudInstanceSpec spec) {
+            this.serverId = checkNotNull(serverId, "serverId");
+            this.address = address;
+            this.keyName = keyName;
+            this.spec = spec;
+        }
+
+        public String getServerId() {
+            return serverId;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getKeyName() {
+            return keyName;
+        }
+
+        public IbmSmartCloudInstanceSpec getSpec() {
+            return spec;
+        }
+
+        public State getState() {
+            return state.get();
+        }
+
+        /** the machine, or null while still PROVISIONING */
+        public SshMachineLocation getMachine() {
+            return machine;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this).add("serverId", serverId).add("address", address)
+                    .add("keyName", keyName).add("state", getState()).toString();
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+package brooklyn.location.ibm.smartcloud;
+
+import java.util.List;
+
+import brooklyn.location.basic.SshMachineLocation;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Outcome of {@link IbmSmartCloudLocation#obtain(int, java.util.Map)}: the machines which were
+ * provisioned successfully, and the cause of failure for each one which was not.
+ */
+public class IbmSmartCloudObtainResult {
+
+    private final List<SshMachineLocation> machines;
+    private final List<Throwable> failures;
+
+    public IbmSmartCloudObtainResult(List<SshMachineLocation> machines, List<Throwable> failures) {
+        this.machines = ImmutableList.copyOf(machines);
+        this.failures = ImmutableList.copyOf(failures);
+    }
+
+    public List<SshMachineLocation> getMachines() {
+        return machines;
+    }
+
+    public List<Throwable> getFailures() {
+        return failures;
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("machines", machines).add("failures", failures.size()).toString();
+    }
+
+}
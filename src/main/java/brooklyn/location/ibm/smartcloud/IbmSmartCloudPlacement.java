@@ -0,0 +1,245 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.text.Strings;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * Chooses which of several SCE data centers (e.g. {@code "Raleigh:2, Ehningen"}) each new machine of an
+ * {@link IbmSmartCloudLocation} is placed in.
+ * <p>
+ * Each data center has a running score from its recent create-to-ACTIVE latency and failure rate, divided by its
+ * weight; a data center which reported a quota error is avoided for a while. Machines already being provisioned
+ * in a data center count against it, so a batch is spread across data centers rather than all placed in the best.
+ * Ties go to the data center listed first. Data centers without the image are never chosen.
+ */
+public class IbmSmartCloudPlacement {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudPlacement.class);
+
+    private static final double SMOOTHING = 0.3;
+    private static final double FAILURE_PENALTY = 4;
+    private static final long QUOTA_COOLDOWN_MILLIS = 5*60*1000L;
+
+    private final IbmSmartCloudCatalog catalog;
+    private final String image;
+    private final String instanceType;
+    private final List<DataCenter> dataCenters;
+
+    public IbmSmartCloudPlacement(IbmSmartCloudCatalog catalog, String locations, String image, String instanceType) {
+        this.catalog = checkNotNull(catalog, "catalog");
+        this.image = image;
+        this.instanceType = instanceType;
+        this.dataCenters = parse(locations);
+    }
+
+    /** parses an ordered, comma-separated list of data center names, each optionally followed by {@code :weight} */
+    static List<DataCenter> parse(String locations) {
+        List<DataCenter> result = Lists.newArrayList();
+        for (String part : Splitter.on(',').trimResults().omitEmptyStrings().split(checkNotNull(locations, "locations"))) {
+            int colon = part.lastIndexOf(':');
+            double weight = 1;
+            String name = part;
+            if (colon > 0) {
+                try {
+                    weight = Double.parseDouble(part.substring(colon + 1).trim());
+                    name = part.substring(0, colon).trim();
+                } catch (NumberFormatException e) {
+                    // not a weight; the colon is part of the name
+                }
+            }
+            checkArgument(weight > 0, "weight of %s must be positive", name);
+            result.add(new DataCenter(name, weight));
+        }
+        checkArgument(!result.isEmpty(), "no data centers in '%s'", locations);
+        return ImmutableList.copyOf(result);
+    }
+
+    /**
+     * The spec for a new machine in the best-scoring data center which has the image and is not excluded,
+     * or null if every such data center is excluded.
+     *
+     * @throws NoSuchElementException if no data center has a matching image (or none matches its name)
+     */
+    public IbmSmartCloudInstanceSpec choose(Collection<String> excludedDataCenterIds) {
+        long now = System.currentTimeMillis();
+        List<Candidate> candidates = Lists.newArrayList();
+        RuntimeException resolutionError = null;
+        for (DataCenter dataCenter : dataCenters) {
+            try {
+                candidates.add(new Candidate(dataCenter, resolve(dataCenter)));
+            } catch (NoSuchElementException e) {
+                LOG.debug("Not placing in data center {}: {}", dataCenter.name, e.getMessage());
+                if (resolutionError == null) resolutionError = e;
+            }
+        }
+        if (candidates.isEmpty()) throw resolutionError;
+
+        long knownLatency = Long.MAX_VALUE;
+        for (Candidate candidate : candidates) {
+            if (candidate.dataCenter.getLatencyMillis() >= 0) knownLatency = Math.min(knownLatency, candidate.dataCenter.getLatencyMillis());
+        }
+        if (knownLatency == Long.MAX_VALUE) knownLatency = 0;
+
+        Candidate best = null;
+        double bestCost = Double.MAX_VALUE;
+        boolean bestCooling = true;
+        for (Candidate candidate : candidates) {
+            if (excludedDataCenterIds.contains(candidate.spec.getDataCenterID())) continue;
+            boolean cooling = candidate.dataCenter.isCoolingDown(now);
+            double cost = candidate.dataCenter.getCost(knownLatency);
+            // a data center avoided for quota is only used when all others are too
+            if (best == null || (bestCooling && !cooling) || (bestCooling == cooling && cost < bestCost)) {
+                best = candidate;
+                bestCost = cost;
+                bestCooling = cooling;
+            }
+        }
+        if (best == null) return null;
+        best.dataCenter.markPlaced();
+        return best.spec;
+    }
+
+    /** records the start of provisioning in the data center, so that concurrent placements spread out */
+    public void started(String dataCenterID) {
+        DataCenter dataCenter = find(dataCenterID);
+        if (dataCenter != null) dataCenter.adjustInFlight(1);
+    }
+
+    public void finished(String dataCenterID) {
+        DataCenter dataCenter = find(dataCenterID);
+        if (dataCenter != null) dataCenter.adjustInFlight(-1);
+    }
+
+    public void recordActive(String dataCenterID, long millis) {
+        DataCenter dataCenter = find(dataCenterID);
+        if (dataCenter != null) dataCenter.record(millis, false);
+    }
+
+    public void recordFailure(String dataCenterID) {
+        DataCenter dataCenter = find(dataCenterID);
+        if (dataCenter != null) dataCenter.record(-1, true);
+    }
+
+    public void recordQuotaError(String dataCenterID) {
+        DataCenter dataCenter = find(dataCenterID);
+        if (dataCenter == null) return;
+        LOG.info("Quota error in data center {}; avoiding it for a while", dataCenter.name);
+        dataCenter.quotaError(System.currentTimeMillis());
+    }
+
+    public Map<String, Object> getMetrics() {
+        long now = System.currentTimeMillis();
+        Map<String, Object> result = MutableMap.of();
+        for (DataCenter dataCenter : dataCenters) {
+            result.put(dataCenter.name, dataCenter.toMap(now));
+        }
+        return result;
+    }
+
+    private IbmSmartCloudInstanceSpec resolve(DataCenter dataCenter) {
+        String dataCenterID = catalog.findLocationId(dataCenter.name);
+        dataCenter.id = dataCenterID;
+        String imageID = catalog.findImageId(image, dataCenterID);
+        String instanceTypeID = catalog.findInstanceTypeId(imageID, instanceType);
+        return new IbmSmartCloudInstanceSpec(dataCenterID, imageID, instanceTypeID);
+    }
+
+    private DataCenter find(String dataCenterID) {
+        for (DataCenter dataCenter : dataCenters) {
+            if (dataCenterID != null && dataCenterID.equals(dataCenter.id)) return dataCenter;
+        }
+        return null;
+    }
+
+    private static class Candidate {
+        final DataCenter dataCenter;
+        final IbmSmartCloudInstanceSpec spec;
+
+        Candidate(DataCenter dataCenter, IbmSmartCloudInstanceSpec spec) {
+            this.dataCenter = dataCenter;
+            this.spec = spec;
+        }
+    }
+
+    static class DataCenter {
+        final String name;
+        final double weight;
+        volatile String id;
+        private double latencyMillis = -1;
+        private double failureRate;
+        private int inFlight;
+        private long quotaErrors;
+        private long coolingUntil;
+        private long placed;
+
+        DataCenter(String name, double weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+
+        synchronized void record(long activeMillis, boolean failed) {
+            failureRate = (1 - SMOOTHING) * failureRate + SMOOTHING * (failed ? 1 : 0);
+            if (activeMillis >= 0) {
+                latencyMillis = (latencyMillis < 0) ? activeMillis : (1 - SMOOTHING) * latencyMillis + SMOOTHING * activeMillis;
+            }
+        }
+
+        synchronized void quotaError(long now) {
+            quotaErrors++;
+            coolingUntil = now + QUOTA_COOLDOWN_MILLIS;
+        }
+
+        synchronized void markPlaced() {
+            placed++;
+        }
+
+        synchronized void adjustInFlight(int delta) {
+            inFlight = Math.max(0, inFlight + delta);
+        }
+
+        synchronized long getLatencyMillis() {
+            return (long) latencyMillis;
+        }
+
+        synchronized boolean isCoolingDown(long now) {
+            return now < coolingUntil;
+        }
+
+        /** lower is better; a data center with no history is assumed as fast as the fastest known */
+        synchronized double getCost(long unknownLatencyMillis) {
+            double latency = (latencyMillis < 0) ? unknownLatencyMillis : latencyMillis;
+            // +1 so that in-flight machines and failures still count when latency is not yet known
+            return (latency + 1) * (1 + FAILURE_PENALTY * failureRate) * (1 + inFlight) / weight;
+        }
+
+        synchronized Map<String, Object> toMap(long now) {
+            return ImmutableMap.<String, Object>builder()
+                    .put("id", Strings.isBlank(id) ? "" : id)
+                    .put("weight", weight)
+                    .put("latencyMillis", (long) latencyMillis)
+                    .put("failureRate", failureRate)
+                    .put("quotaErrors", quotaErrors)
+                    .put("coolingDown", now < coolingUntil)
+                    .put("inFlight", inFlight)
+                    .put("placed", placed)
+                    .build();
+        }
+    }
+
+}
@@ -0,0 +1,498 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.location.ibm.smartcloud.IbmSmartCloudMachineRegistry.Record;
+import brooklyn.location.ibm.smartcloud.ProvisioningTimeline.Phase;
+import brooklyn.util.config.ConfigBag;
+import brooklyn.util.time.Time;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.cloud.api.rest.client.bean.Instance;
+
+/**
+ * Provisions machines for {@link IbmSmartCloudLocation#obtainAsync(Map)} as a pipeline of short stages, so that
+ * a machine waiting (for room in the quota, for ACTIVE, for its ssh port, or between ssh attempts) holds no thread.
+ * <p>
+ * Each stage runs on a small shared pool and, instead of blocking, hands on to the next stage when what it waits for
+ * completes: admission comes from the location's {@link IbmSmartCloudAdmission}, instance status from its
+ * {@link IbmSmartCloudInstancePoller}, the ssh port from its {@link SshReachabilityScanner}, and retries are scheduled
+ * rather than slept. Like {@link IbmSmartCloudLocation#obtain(Map)}, an instance which fails is replaced (up to
+ * {@link IbmSmartCloudConfig#INSTANCE_CREATION_RETRIES} times) and a data center which fails is failed over from;
+ * creation is not hedged. Customization over ssh does run on a pipeline thread, so many machines customized at once
+ * will queue for those threads; golden images or boot-time customization avoid that.
+ */
+public class IbmSmartCloudProvisioningPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudProvisioningPipeline.class);
+
+    private final IbmSmartCloudLocation location;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile boolean shutdown;
+    /**
+     * machines waiting (for a future, or for their next stage to be scheduled) rather than running a stage; shutdown
+     * abandons these at once, as what they wait for may never come
+     */
+    private final Set<Provisioning> waiting = Sets.newConcurrentHashSet();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public IbmSmartCloudProvisioningPipeline(IbmSmartCloudLocation location, int threads) {
+        this.location = checkNotNull(location, "location");
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactoryBuilder()
+                .setNameFormat("ibm-smartcloud-provisioning-%d").setDaemon(true).build());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("ibm-smartcloud-provisioning-scheduler-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Starts provisioning a machine, returning a future for it. Cancelling the future abandons the provisioning
+     * at its next stage, deleting any instance already created.
+     */
+    public ListenableFuture<SshMachineLocation> obtain(ConfigBag setup) {
+        Provisioning provisioning = new Provisioning(setup);
+        provisioning.start();
+        return provisioning.result;
+    }
+
+    /**
+     * Stops provisioning. Each machine in progress is abandoned (as if cancelled), deleting any instance already
+     * created: those waiting are abandoned now, and those running a stage when their next stage would start.
+     */
+    public void shutdown() {
+        shutdown = true;
+        executor.shutdown();
+        // tasks drained by shutdownNow would only cancel themselves if run, so are not run
+        scheduler.shutdownNow();
+        for (Provisioning provisioning : waiting) {
+            if (waiting.remove(provisioning)) provisioning.abandon(provisioning.stopped());
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        return ImmutableMap.<String, Object>of(
+                "inFlight", inFlight.get(),
+                "started", started.get(),
+                "succeeded", succeeded.get(),
+                "failed", failed.get());
+    }
+
+    /** a step of the pipeline, which may throw to fail the current attempt */
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    /**
+     * The provisioning of one machine. Its stages run one at a time (each is started by the previous one),
+     * so its fields need no locking; handing over between threads via the executor makes them visible.
+     */
+    private class Provisioning {
+        final ConfigBag setup;
+        final SettableFuture<SshMachineLocation> result = SettableFuture.create();
+        final ProvisioningTimeline timeline = new ProvisioningTimeline();
+        final Set<String> tried = Sets.newHashSet();
+        final String serverName;
+        final String keyName;
+        boolean keyAcquired;
+        /** admitted to the instance quota, and the instance not yet registered */
+        boolean admitted;
+        String privateKeyPath;
+        Throwable lastFailure;
+
+        // the current attempt, in one data center
+        IbmSmartCloudInstanceSpec spec;
+        String goldenImageID;
+        int failures;
+        long createdAt;
+        Instance instance;
+        Record record;
+        SshMachineLocation machine;
+        long sshWaitStartedAt;
+
+        Provisioning(ConfigBag setup) {
+            this.setup = setup;
+            this.serverName = location.newServerName(setup);
+            this.keyName = location.getKeyName(setup, serverName);
+            timeline.setServerName(serverName);
+        }
+
+        void start() {
+            started.incrementAndGet();
+            inFlight.incrementAndGet();
+            stage(new Stage() {
+                public void run() {
+                    place();
+                }
+            });
+        }
+
+        /** runs the stage on the pipeline's pool, with this machine's timeline bound; if it throws, the attempt fails */
+        void stage(final Stage stage) {
+            if (!shutdown) {
+                try {
+                    executor.execute(newStageRunner(stage));
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // shut down meanwhile
+                }
+            }
+            abandon(stopped());
+        }
+
+        CancellationException stopped() {
+            return new CancellationException("Provisioning of "+serverName+" stopped: "+location+" is closed");
+        }
+
+        Runnable newStageRunner(final Stage stage) {
+            return new Runnable() {
+                public void run() {
+                    ProvisioningTimeline previous = location.getProvisioningStats().bind(timeline);
+                    try {
+                        if (result.isCancelled()) {
+                            abandon(new CancellationException("Provisioning of "+serverName+" cancelled"));
+                        } else {
+                            stage.run();
+                        }
+                    } catch (Throwable t) {
+                        attemptFailed(t);
+                    } finally {
+                        location.getProvisioningStats().bind(previous);
+                    }
+                }
+            };
+        }
+
+        /**
+         * this machine is about to wait; whichever of what it waits for and shutdown calls {@link #resume()} first
+         * acts on it, and the other does nothing
+         */
+        void suspend() {
+            waiting.add(this);
+        }
+
+        boolean resume() {
+            return waiting.remove(this);
+        }
+
+        /** runs the stage after a delay */
+        void stageAfter(long delayMillis, final Stage stage) {
+            suspend();
+            try {
+                scheduler.schedule(new Runnable() {
+                    public void run() {
+                        if (resume()) stage(stage);
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                if (resume()) abandon(stopped());
+            }
+        }
+
+        /** runs one of the stages once the future completes, as if it had been waited for */
+        <T> void then(ListenableFuture<T> future, final Stage onSuccess, final FailureStage onFailure) {
+            suspend();
+            Futures.addCallback(future, new FutureCallback<T>() {
+                public void onSuccess(T value) {
+                    if (resume()) stage(onSuccess);
+                }
+                public void onFailure(final Throwable t) {
+                    if (!resume()) return;
+                    stage(new Stage() {
+                        public void run() throws Exception {
+                            onFailure.run(t);
+                        }
+                    });
+                }
+            });
+        }
+
+        void place() {
+            spec = location.resolveInstanceSpec(tried);
+            if (spec == null) {
+                fail(lastFailure);
+                return;
+            }
+            location.getPlacement().started(spec.getDataCenterID());
+            if (location.getWarmPool() != null) {
+                SshMachineLocation pooled = location.getWarmPool().take(spec);
+                if (pooled != null) {
+                    // a failover may already hold admission and the key for its earlier attempts
+                    releaseAdmissionAndKey();
+                    location.stateChanged();
+                    succeed(pooled);
+                    return;
+                }
+            }
+            goldenImageID = location.getGoldenImageID(spec, true);
+            if (!keyAcquired) {
+                privateKeyPath = location.getKeyPairs().acquire(keyName);
+                keyAcquired = true;
+            }
+            if (admitted) {
+                create();
+                return;
+            }
+            // waits for room in the instance quota without holding a thread
+            suspend();
+            Futures.addCallback(location.admit(setup), new FutureCallback<Void>() {
+                public void onSuccess(Void v) {
+                    if (!resume()) {
+                        // abandoned while waiting, so the admission is not wanted
+                        location.getAdmission().done();
+                        return;
+                    }
+                    admitted = true;
+                    stage(new Stage() {
+                        public void run() {
+                            create();
+                        }
+                    });
+                }
+                public void onFailure(final Throwable t) {
+                    if (!resume()) return;
+                    stage(new Stage() {
+                        public void run() {
+                            abandon(t);
+                        }
+                    });
+                }
+            });
+        }
+
+        void create() {
+            timeline.incrementAttempts();
+            String dataCenterID = spec.getDataCenterID();
+            createdAt = System.currentTimeMillis();
+            try {
+                instance = location.createInstance(serverName + "_" + failures, dataCenterID,
+                        (goldenImageID != null) ? goldenImageID : spec.getImageID(), spec.getInstanceTypeID(), keyName);
+            } catch (RuntimeException e) {
+                if (SceErrors.isQuotaError(e)) location.getPlacement().recordQuotaError(dataCenterID);
+                else location.getPlacement().recordFailure(dataCenterID);
+                throw e;
+            }
+            location.getProvisioningStats().record(Phase.CREATE, System.currentTimeMillis() - createdAt);
+            LOG.info("Creation requested for new SCE VM instance: name({}), keyname({}), data center({}), id({}), now waiting",
+                    new Object[] { instance.getName(), instance.getKeyName(), dataCenterID, instance.getID() });
+
+            final long waitStartedAt = System.currentTimeMillis();
+            long timeout = location.getConfig(IbmSmartCloudConfig.CLIENT_POLL_TIMEOUT_MILLIS);
+            then(withTimeout(location.getInstancePoller().await(instance.getID(), Instance.Status.ACTIVE), timeout,
+                    "IBM SCE server " + instance.getID() + " not ACTIVE"), new Stage() {
+                public void run() {
+                    long waitMillis = System.currentTimeMillis() - waitStartedAt;
+                    location.recordActive(spec.getDataCenterID(), waitMillis);
+                    location.getProvisioningStats().record(Phase.WAIT_ACTIVE, waitMillis);
+                    activated();
+                }
+            }, new FailureStage() {
+                public void run(Throwable t) throws Exception {
+                    notActivated(t);
+                }
+            });
+        }
+
+        /** replaces an instance which FAILED or was not ACTIVE in time, unless out of retries */
+        void notActivated(Throwable t) throws Exception {
+            if (!(t instanceof IllegalStateException || t instanceof TimeoutException)) throw propagate(t);
+            failures++;
+            location.recordInstanceFailure(spec.getDataCenterID());
+            location.deleteInBackground(instance.getID());
+            String serverId = instance.getID();
+            instance = null;
+            location.getProvisioningStats().record(Phase.RETRIES, System.currentTimeMillis() - createdAt);
+            if (failures >= location.getConfig(IbmSmartCloudConfig.INSTANCE_CREATION_RETRIES)) {
+                throw new IllegalStateException("Instance with serverId(" + serverId + ") is not running: " + t.getMessage(), t);
+            }
+            LOG.debug("IBM SCE server {} for {} not ACTIVE ({}); creating another", new Object[] { serverId, serverName, t });
+            create();
+        }
+
+        void activated() {
+            record = location.getRegistry().register(instance.getID(), instance.getIP(), keyName, spec);
+            location.getAdmission().done();
+            admitted = false;
+            location.stateChanged();
+            machine = location.createIbmSmartCloudSshMachineLocation(instance.getIP(), instance.getID(), privateKeyPath);
+            machine.setParent(location);
+
+            sshWaitStartedAt = System.currentTimeMillis();
+            long timeout = location.getConfig(IbmSmartCloudConfig.SSH_REACHABLE_TIMEOUT_MILLIS);
+            then(location.getSshReachabilityScanner().awaitPortOpen(new InetSocketAddress(machine.getAddress(), machine.getPort()), timeout),
+                    new Stage() {
+                        public void run() {
+                            checkSshable(0);
+                        }
+                    }, new FailureStage() {
+                        public void run(Throwable t) {
+                            throw new IllegalStateException("SSH failed for " + machine.getUser() + "@" + machine.getAddress()
+                                    + " after waiting " + Time.makeTimeStringRounded(System.currentTimeMillis() - sshWaitStartedAt)
+                                    + ": " + t);
+                        }
+                    });
+        }
+
+        /** the port is open; retries the ssh handshake on the ssh poll schedule until it succeeds or times out */
+        void checkSshable(final int attempt) {
+            long timeout = location.getConfig(IbmSmartCloudConfig.SSH_REACHABLE_TIMEOUT_MILLIS);
+            long elapsed = System.currentTimeMillis() - sshWaitStartedAt;
+            if (location.probeSsh(machine)) {
+                location.recordSshable(elapsed);
+                location.getProvisioningStats().record(Phase.SSH_REACHABLE, elapsed);
+                customize();
+                return;
+            }
+            elapsed = System.currentTimeMillis() - sshWaitStartedAt;
+            if (elapsed >= timeout) {
+                throw new IllegalStateException("SSH failed for " + machine.getUser() + "@" + machine.getAddress()
+                        + " after waiting " + Time.makeTimeStringRounded(elapsed));
+            }
+            long delay = Math.min(location.getSshPollSchedule().nextDelayMillis(attempt, elapsed), timeout - elapsed);
+            stageAfter(delay, new Stage() {
+                public void run() {
+                    checkSshable(attempt + 1);
+                }
+            });
+        }
+
+        void customize() {
+            if (goldenImageID != null) {
+                LOG.debug("{}: machine {} is sshable, booted from golden image so already customized", location, machine);
+            } else if (location.getConfig(IbmSmartCloudConfig.BOOT_TIME_CUSTOMIZATION)) {
+                location.awaitBootScript(machine, IbmSmartCloudCustomization.of(location));
+            } else {
+                location.customize(machine, IbmSmartCloudCustomization.of(location));
+            }
+            location.getRegistry().activate(record, machine);
+            SshMachineLocation obtained = machine;
+            record = null;
+            instance = null;
+            machine = null;
+            succeed(obtained);
+        }
+
+        void succeed(SshMachineLocation obtained) {
+            location.getPlacement().finished(spec.getDataCenterID());
+            location.getProvisioningStats().finish(timeline, obtained);
+            inFlight.decrementAndGet();
+            succeeded.incrementAndGet();
+            if (!result.set(obtained)) {
+                LOG.debug("Provisioning of {} in {} was cancelled; releasing it", obtained, location);
+                location.releaseAsync(obtained);
+            }
+        }
+
+        /** cleans up the failed attempt, and tries the next best data center (if any) */
+        void attemptFailed(Throwable t) {
+            cleanUpAttempt();
+            if (spec == null) {
+                fail(t);
+                return;
+            }
+            LOG.warn("Failed to provision {} in data center {} of {}: {}", new Object[] { serverName, spec.getDataCenterID(), location, t });
+            tried.add(spec.getDataCenterID());
+            lastFailure = t;
+            spec = null;
+            failures = 0;
+            stage(new Stage() {
+                public void run() {
+                    place();
+                }
+            });
+        }
+
+        void abandon(Throwable t) {
+            cleanUpAttempt();
+            fail(t);
+        }
+
+        void cleanUpAttempt() {
+            if (record != null) location.getRegistry().remove(record);
+            if (instance != null) location.deleteInBackground(instance.getID());
+            if (spec != null) location.getPlacement().finished(spec.getDataCenterID());
+            record = null;
+            instance = null;
+            machine = null;
+        }
+
+        void releaseAdmissionAndKey() {
+            if (admitted) location.getAdmission().done();
+            admitted = false;
+            if (keyAcquired) location.getKeyPairs().release(keyName);
+            keyAcquired = false;
+        }
+
+        void fail(Throwable t) {
+            releaseAdmissionAndKey();
+            location.stateChanged();
+            location.getProvisioningStats().finish(timeline, null);
+            inFlight.decrementAndGet();
+            failed.incrementAndGet();
+            LOG.error("Cannot obtain a new machine with serverName(" + serverName + "), keyName(" + keyName + ") in " + location, t);
+            result.setException(t);
+        }
+    }
+
+    private interface FailureStage {
+        void run(Throwable t) throws Exception;
+    }
+
+    /** a future which completes as the given one does, or fails with a {@link TimeoutException} if it takes too long */
+    protected <T> ListenableFuture<T> withTimeout(final ListenableFuture<T> future, final long timeoutMillis, final String description) {
+        final SettableFuture<T> result = SettableFuture.create();
+        final ScheduledFuture<?> timeout = scheduler.schedule(new Runnable() {
+            public void run() {
+                if (result.setException(new TimeoutException(description + " after " + Time.makeTimeStringRounded(timeoutMillis)))) {
+                    future.cancel(false);
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        Futures.addCallback(future, new FutureCallback<T>() {
+            public void onSuccess(T value) {
+                timeout.cancel(false);
+                result.set(value);
+            }
+            public void onFailure(Throwable t) {
+                timeout.cancel(false);
+                result.setException(t);
+            }
+        });
+        return result;
+    }
+
+    private static Exception propagate(Throwable t) {
+        if (t instanceof Exception) return (Exception) t;
+        if (t instanceof Error) throw (Error) t;
+        return new RuntimeException(t);
+    }
+
+}
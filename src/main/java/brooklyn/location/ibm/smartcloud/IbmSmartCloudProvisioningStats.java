@@ -0,0 +1,235 @@
+package brooklyn.location.ibm.smartcloud;
+
+import java.lang.management.ManagementFactory;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.location.ibm.smartcloud.ProvisioningTimeline.Phase;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Per-phase latency histograms for the machines provisioned by an {@link IbmSmartCloudLocation},
+ * built from each machine's {@link ProvisioningTimeline}, and a log line summarising each machine.
+ * <p>
+ * The timeline of the machine being provisioned is bound to the provisioning thread between
+ * {@link #begin()} and {@link #finish(ProvisioningTimeline, SshMachineLocation)}, so that
+ * each step can {@link #record(Phase, long)} its duration without it being passed down
+ * (or, where provisioning moves between threads, to each stage's thread with {@link #bind(ProvisioningTimeline)}).
+ * The stats can also be published over JMX.
+ */
+public class IbmSmartCloudProvisioningStats implements IbmSmartCloudProvisioningStatsMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudProvisioningStats.class);
+
+    private static final int RECENT_TIMELINES = 100;
+
+    private final String locationName;
+    private final Map<Phase, LatencyStats> phases = new EnumMap<Phase, LatencyStats>(Phase.class);
+    private final ThreadLocal<ProvisioningTimeline> current = new ThreadLocal<ProvisioningTimeline>();
+    private final Deque<String> recent = new LinkedList<String>();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final LatencyStats sshHandshakes = new LatencyStats();
+    private final AtomicLong sshSessions = new AtomicLong();
+    private final AtomicLong sshSessionsOfProvisioned = new AtomicLong();
+    private ObjectName objectName;
+
+    public IbmSmartCloudProvisioningStats(String locationName) {
+        this.locationName = locationName;
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new LatencyStats());
+        }
+    }
+
+    /**
+     * Starts the timeline for a machine on this thread, returning it; or returns null if this thread
+     * is already provisioning a machine (whose timeline the caller's steps then contribute to).
+     */
+    public ProvisioningTimeline begin() {
+        if (current.get() != null) return null;
+        ProvisioningTimeline result = new ProvisioningTimeline();
+        current.set(result);
+        return result;
+    }
+
+    /** the timeline of the machine being provisioned on this thread, or null */
+    public ProvisioningTimeline current() {
+        return current.get();
+    }
+
+    /**
+     * Binds the given timeline to this thread (or unbinds, if null), returning the one previously bound; for provisioning
+     * which moves between threads, where each stage binds its machine's timeline while it runs.
+     */
+    public ProvisioningTimeline bind(ProvisioningTimeline timeline) {
+        ProvisioningTimeline result = current.get();
+        if (timeline != null) current.set(timeline);
+        else current.remove();
+        return result;
+    }
+
+    /** records the duration of a phase, for this thread's machine (if any) and in the phase's histogram */
+    public void record(Phase phase, long millis) {
+        phases.get(phase).record(millis);
+        ProvisioningTimeline timeline = current.get();
+        if (timeline != null) timeline.record(phase, millis);
+    }
+
+    /**
+     * records an ssh session set up with a machine, whose handshake took the given time (or -1 if not measured),
+     * for this thread's machine (if any) and in the handshake histogram
+     */
+    public void recordSshSession(long handshakeMillis) {
+        sshSessions.incrementAndGet();
+        if (handshakeMillis >= 0) sshHandshakes.record(handshakeMillis);
+        ProvisioningTimeline timeline = current.get();
+        if (timeline != null) timeline.recordSshSession(handshakeMillis);
+    }
+
+    /**
+     * Ends a timeline returned by {@link #begin()} (doing nothing if null), logging its summary.
+     * A null machine means provisioning failed.
+     */
+    public void finish(ProvisioningTimeline timeline, SshMachineLocation machine) {
+        if (timeline == null) return;
+        current.remove();
+        long total = timeline.getElapsedMillis();
+        timeline.record(Phase.TOTAL, total);
+        String summary;
+        if (machine != null) {
+            phases.get(Phase.TOTAL).record(total);
+            sshSessionsOfProvisioned.addAndGet(timeline.getSshSessions());
+            succeeded.incrementAndGet();
+            summary = "Provisioned " + machine.getAddress().getHostAddress()
+                    + (timeline.getServerName() != null ? " (" + timeline.getServerName() + ")" : "")
+                    + " in " + locationName + " in " + Time.makeTimeStringRounded(total) + ": " + timeline.toSummary();
+            LOG.info(summary);
+        } else {
+            failed.incrementAndGet();
+            summary = "Failed to provision " + (timeline.getServerName() != null ? timeline.getServerName() : "machine")
+                    + " in " + locationName + " after " + Time.makeTimeStringRounded(total) + ": " + timeline.toSummary();
+            LOG.info(summary);
+        }
+        synchronized (recent) {
+            recent.addLast(summary);
+            if (recent.size() > RECENT_TIMELINES) recent.removeFirst();
+        }
+    }
+
+    public LatencyStats getPhaseStats(Phase phase) {
+        return phases.get(phase);
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> result = MutableMap.of();
+        for (Map.Entry<Phase, LatencyStats> entry : phases.entrySet()) {
+            if (entry.getValue().getCount() > 0) result.put(entry.getKey().getLabel(), entry.getValue().toMap());
+        }
+        result.put("succeeded", succeeded.get());
+        result.put("failed", failed.get());
+        result.put("sshSessions", ImmutableMap.<String, Object>of(
+                "total", sshSessions.get(),
+                "perMachine", succeeded.get() > 0 ? (double) sshSessionsOfProvisioned.get() / succeeded.get() : 0.0,
+                "handshake", sshHandshakes.toMap()));
+        return result;
+    }
+
+    public Map<String, Long> getCounts() {
+        return perPhase(new Function<LatencyStats, Long>() {
+            public Long apply(LatencyStats input) { return input.getCount(); }
+        });
+    }
+
+    public Map<String, Long> getMeanMillis() {
+        return perPhase(new Function<LatencyStats, Long>() {
+            public Long apply(LatencyStats input) { return input.getMeanMillis(); }
+        });
+    }
+
+    public Map<String, Long> getP50Millis() {
+        return perPhase(percentile(0.5));
+    }
+
+    public Map<String, Long> getP90Millis() {
+        return perPhase(percentile(0.9));
+    }
+
+    public Map<String, Long> getP99Millis() {
+        return perPhase(percentile(0.99));
+    }
+
+    public Map<String, Long> getMaxMillis() {
+        return perPhase(new Function<LatencyStats, Long>() {
+            public Long apply(LatencyStats input) { return input.getMaxMillis(); }
+        });
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public List<String> getRecentTimelines() {
+        synchronized (recent) {
+            return ImmutableList.copyOf(recent);
+        }
+    }
+
+    /** publishes these stats in the platform MBean server, under the given location id; failures are only logged */
+    public synchronized void registerMBean(String locationId) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("brooklyn.location.ibm.smartcloud:type=Provisioning,location=" + ObjectName.quote(locationId));
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            LOG.warn("Cannot publish provisioning stats of " + locationName + " over JMX: " + e);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOG.debug("Cannot unpublish provisioning stats of " + locationName + " from JMX: " + e);
+        }
+        objectName = null;
+    }
+
+    private Map<String, Long> perPhase(Function<LatencyStats, Long> fn) {
+        ImmutableMap.Builder<String, Long> result = ImmutableMap.builder();
+        for (Map.Entry<Phase, LatencyStats> entry : phases.entrySet()) {
+            result.put(entry.getKey().getLabel(), fn.apply(entry.getValue()));
+        }
+        return result.build();
+    }
+
+    private static Function<LatencyStats, Long> percentile(final double percentile) {
+        return new Function<LatencyStats, Long>() {
+            public Long apply(LatencyStats input) { return input.getPercentileMillis(percentile); }
+        };
+    }
+
+}
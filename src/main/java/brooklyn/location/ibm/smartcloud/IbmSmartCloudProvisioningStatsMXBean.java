@@ -0,0 +1,30 @@
+package brooklyn.location.ibm.smartcloud;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of {@link IbmSmartCloudProvisioningStats}; each map is keyed by phase label (e.g. {@code waitActive}).
+ */
+public interface IbmSmartCloudProvisioningStatsMXBean {
+
+    Map<String, Long> getCounts();
+
+    Map<String, Long> getMeanMillis();
+
+    Map<String, Long> getP50Millis();
+
+    Map<String, Long> getP90Millis();
+
+    Map<String, Long> getP99Millis();
+
+    Map<String, Long> getMaxMillis();
+
+    long getSucceeded();
+
+    long getFailed();
+
+    /** one-line summaries of the most recently provisioned machines, oldest first */
+    List<String> getRecentTimelines();
+
+}
@@ -0,0 +1,263 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Time;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+import com.ibm.cloud.api.rest.client.bean.Instance;
+
+/**
+ * Tears down SCE instances in the background for an {@link IbmSmartCloudLocation}, so that releasing
+ * a machine does not hold the caller's thread while SCE removes the instance.
+ * <p>
+ * Each teardown deletes the instance, waits (via the shared {@link IbmSmartCloudInstancePoller}) until it is REMOVED,
+ * and then removes its key pair, if any. SCE rejects removing a key still in use, so key removal is only attempted
+ * once the instance has gone, and is retried with backoff if it still fails.
+ */
+public class IbmSmartCloudReaper {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudReaper.class);
+
+    private final DeveloperCloudClient client;
+    private final IbmSmartCloudInstancePoller poller;
+    private final long removalTimeoutMillis;
+    private final int keyRemovalAttempts;
+    private final PollSchedule keyRemovalSchedule;
+    private final ListeningExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    /** teardowns requested and not yet complete */
+    private final Set<ListenableFuture<Void>> teardownsInProgress = Sets.newConcurrentHashSet();
+    /** key removals waiting to retry, by their result; each is taken by whichever of its retry and shutdown comes first */
+    private final ConcurrentMap<SettableFuture<Void>, String> keyRemovalsScheduled = new ConcurrentHashMap<SettableFuture<Void>, String>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong keysRemoved = new AtomicLong();
+    private final AtomicLong keyRemovalRetries = new AtomicLong();
+    private final AtomicLong keyRemovalFailures = new AtomicLong();
+
+    public IbmSmartCloudReaper(DeveloperCloudClient client, IbmSmartCloudInstancePoller poller, int parallelism,
+            long removalTimeoutMillis, int keyRemovalAttempts) {
+        this(client, poller, parallelism, removalTimeoutMillis, keyRemovalAttempts,
+                new BackoffPollSchedule(5*1000L, 2, 2*60*1000L, 0.2));
+    }
+
+    public IbmSmartCloudReaper(DeveloperCloudClient client, IbmSmartCloudInstancePoller poller, int parallelism,
+            long removalTimeoutMillis, int keyRemovalAttempts, PollSchedule keyRemovalSchedule) {
+        this.client = checkNotNull(client, "client");
+        this.poller = checkNotNull(poller, "poller");
+        this.removalTimeoutMillis = removalTimeoutMillis;
+        this.keyRemovalAttempts = Math.max(1, keyRemovalAttempts);
+        this.keyRemovalSchedule = checkNotNull(keyRemovalSchedule, "keyRemovalSchedule");
+        this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(Math.max(1, parallelism),
+                new ThreadFactoryBuilder().setNameFormat("ibm-smartcloud-reaper-%d").setDaemon(true).build()));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("ibm-smartcloud-reaper-scheduler-%d").setDaemon(true).build());
+    }
+
+    /** as {@link #shutdown(long)}, not waiting for teardowns in progress */
+    public void shutdown() {
+        shutdown(0);
+    }
+
+    /**
+     * Stops accepting teardowns, and waits up to the given time for those already queued to complete (their instances
+     * REMOVED); this needs the {@link IbmSmartCloudInstancePoller}, so it should be shut down afterwards. Deletions
+     * still in progress after that are no longer waited for, nor are their keys removed, so any which SCE does not complete
+     * are left for the {@link IbmSmartCloudReconciler}. Key removals waiting to retry are abandoned, completing their teardowns.
+     */
+    public void shutdown(long drainTimeoutMillis) {
+        executor.shutdown();
+        if (drainTimeoutMillis > 0) {
+            try {
+                Futures.successfulAsList(ImmutableList.copyOf(teardownsInProgress)).get(drainTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                LOG.warn("{} teardown(s) still in progress after waiting {}; no longer waiting for them", teardownsInProgress.size(),
+                        Time.makeTimeStringRounded(drainTimeoutMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // successfulAsList does not fail
+                throw Exceptions.propagate(e);
+            }
+        }
+        // retries drained by shutdownNow would never run, so would never complete their results
+        scheduler.shutdownNow();
+        for (SettableFuture<Void> result : keyRemovalsScheduled.keySet()) {
+            String keyName = keyRemovalsScheduled.remove(result);
+            if (keyName != null) keyRemovalAbandoned(keyName, result);
+        }
+    }
+
+    /**
+     * Queues deletion of the given instance and then of the given key (if not null).
+     * The returned future completes once the instance is REMOVED and key removal has been attempted;
+     * it fails if the instance could not be deleted or was not removed within the timeout.
+     */
+    public ListenableFuture<Void> teardown(final String serverId, final String keyName) {
+        checkNotNull(serverId, "serverId");
+        final SettableFuture<Void> result = SettableFuture.create();
+        pending.incrementAndGet();
+        teardownsInProgress.add(result);
+        Futures.addCallback(result, new FutureCallback<Void>() {
+            public void onSuccess(Void v) {
+                teardownsInProgress.remove(result);
+                pending.decrementAndGet();
+                completed.incrementAndGet();
+            }
+            public void onFailure(Throwable t) {
+                teardownsInProgress.remove(result);
+                pending.decrementAndGet();
+                failed.incrementAndGet();
+                LOG.warn("Failed to tear down IBM SCE server "+serverId+": "+t);
+            }
+        });
+
+        try {
+            executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        client.deleteInstance(serverId);
+                    } catch (Exception e) {
+                        result.setException(e);
+                        return;
+                    }
+                    try {
+                        awaitRemoved(serverId, keyName, result);
+                    } catch (RejectedExecutionException e) {
+                        // shut down while deleting
+                        result.setException(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.setException(e);
+        }
+        return result;
+    }
+
+    private void awaitRemoved(final String serverId, final String keyName, final SettableFuture<Void> result) {
+        final ListenableFuture<Instance> removed = poller.await(serverId, Instance.Status.REMOVED);
+        final ScheduledFuture<?> timeout = scheduler.schedule(new Runnable() {
+            public void run() {
+                removed.cancel(false);
+                result.setException(new TimeoutException("IBM SCE server "+serverId+" not removed after "
+                        +Time.makeTimeStringRounded(removalTimeoutMillis)));
+            }
+        }, removalTimeoutMillis, TimeUnit.MILLISECONDS);
+        Futures.addCallback(removed, new FutureCallback<Instance>() {
+            public void onSuccess(Instance instance) {
+                timeout.cancel(false);
+                LOG.debug("IBM SCE server {} removed", serverId);
+                if (keyName == null) {
+                    result.set(null);
+                } else {
+                    removeKey(keyName, 0, result);
+                }
+            }
+            public void onFailure(Throwable t) {
+                timeout.cancel(false);
+                result.setException(t);
+            }
+        });
+    }
+
+    /** queues removal of a key pair which is no longer used by any instance */
+    public ListenableFuture<Void> removeKey(String keyName) {
+        SettableFuture<Void> result = SettableFuture.create();
+        removeKey(checkNotNull(keyName, "keyName"), 0, result);
+        return result;
+    }
+
+    private void removeKey(final String keyName, final int attempt, final SettableFuture<Void> result) {
+        try {
+            submitKeyRemoval(keyName, attempt, result);
+        } catch (RejectedExecutionException e) {
+            keyRemovalAbandoned(keyName, result);
+        }
+    }
+
+    /** shut down before the key could be removed; it is left for the {@link IbmSmartCloudReconciler} */
+    private void keyRemovalAbandoned(String keyName, SettableFuture<Void> result) {
+        keyRemovalFailures.incrementAndGet();
+        LOG.debug("Not removing keypair({}): teardown has been shut down", keyName);
+        result.set(null);
+    }
+
+    private void submitKeyRemoval(final String keyName, final int attempt, final SettableFuture<Void> result) {
+        executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    client.removeKey(keyName);
+                    keysRemoved.incrementAndGet();
+                    result.set(null);
+                } catch (Exception e) {
+                    if (attempt + 1 >= keyRemovalAttempts) {
+                        // as before, a key which cannot be removed does not fail the release
+                        keyRemovalFailures.incrementAndGet();
+                        LOG.error("Cannot delete keypair({}) after {} attempts: {}", new Object[] { keyName, attempt + 1, e });
+                        result.set(null);
+                        return;
+                    }
+                    long delay = keyRemovalSchedule.nextDelayMillis(attempt, 0);
+                    keyRemovalRetries.incrementAndGet();
+                    LOG.debug("Cannot delete keypair({}) yet, retrying in {}: {}", new Object[] { keyName,
+                            Time.makeTimeStringRounded(delay), e });
+                    keyRemovalsScheduled.put(result, keyName);
+                    try {
+                        scheduler.schedule(new Runnable() {
+                            public void run() {
+                                if (keyRemovalsScheduled.remove(result) != null) removeKey(keyName, attempt + 1, result);
+                            }
+                        }, delay, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e2) {
+                        if (keyRemovalsScheduled.remove(result) != null) keyRemovalAbandoned(keyName, result);
+                    }
+                }
+            }
+        });
+    }
+
+    public Map<String, Object> getMetrics() {
+        return ImmutableMap.<String, Object>builder()
+                .put("pending", pending.get())
+                .put("completed", completed.get())
+                .put("failed", failed.get())
+                .put("keysRemoved", keysRemoved.get())
+                .put("keyRemovalRetries", keyRemovalRetries.get())
+                .put("keyRemovalFailures", keyRemovalFailures.get())
+                .build();
+    }
+
+}
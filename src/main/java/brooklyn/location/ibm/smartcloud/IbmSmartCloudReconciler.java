@@ -0,0 +1,209 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.time.Time;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+import com.ibm.cloud.api.rest.client.bean.Instance;
+import com.ibm.cloud.api.rest.client.bean.Key;
+
+/**
+ * Looks periodically for instances and key pairs which Brooklyn created but no longer knows about, e.g. an instance
+ * whose deletion after a failed creation never completed, a key whose removal was given up on, or anything left by
+ * a crash part-way through provisioning. These count against the SCE quota, so are reported and optionally reclaimed.
+ * <p>
+ * Each pass lists instances and key pairs with a single call each. An instance or key is suspect if its name has
+ * the configured prefix (that of names generated by {@link brooklyn.location.cloud.CloudMachineNamer}) and no
+ * {@link IbmSmartCloudLocation} in the management context knows it; a key is also not suspect while any listed
+ * instance uses it. Something suspect on every pass for the grace period is leaked. As instances in the middle of
+ * being provisioned are not yet known, the grace period must be longer than provisioning can take.
+ */
+public class IbmSmartCloudReconciler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudReconciler.class);
+
+    private final IbmSmartCloudLocation location;
+    private final DeveloperCloudClient client;
+    private final IbmSmartCloudReaper reaper;
+    private final String namePrefix;
+    private final long gracePeriodMillis;
+    private final boolean delete;
+    private final ScheduledExecutorService scheduler;
+
+    /** when each suspect instance (by server ID) and key (by name) was first seen */
+    private final Map<String, Long> suspectInstances = Maps.newHashMap();
+    private final Map<String, Long> suspectKeys = Maps.newHashMap();
+    /** instances being deleted by this reconciler, which are not deleted again */
+    private final Set<String> reclaiming = Sets.newConcurrentHashSet();
+    /** leaks already reported, which are not counted or logged again */
+    private final Set<String> reportedInstances = Sets.newHashSet();
+    private final Set<String> reportedKeys = Sets.newHashSet();
+
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong passFailures = new AtomicLong();
+    private final AtomicLong instanceLeaksFound = new AtomicLong();
+    private final AtomicLong keyLeaksFound = new AtomicLong();
+    private final AtomicLong instancesReclaimed = new AtomicLong();
+    private final AtomicLong keysReclaimed = new AtomicLong();
+    private final AtomicLong reclaimFailures = new AtomicLong();
+    private volatile int leakedInstances;
+    private volatile int leakedKeys;
+
+    public IbmSmartCloudReconciler(IbmSmartCloudLocation location, DeveloperCloudClient client, IbmSmartCloudReaper reaper,
+            String namePrefix, long gracePeriodMillis, boolean delete) {
+        this.location = checkNotNull(location, "location");
+        this.client = checkNotNull(client, "client");
+        this.reaper = checkNotNull(reaper, "reaper");
+        this.namePrefix = checkNotNull(namePrefix, "namePrefix");
+        this.gracePeriodMillis = gracePeriodMillis;
+        this.delete = delete;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("ibm-smartcloud-reconciler-%d").setDaemon(true).build());
+    }
+
+    /** starts reconciling every period, the first pass after one period */
+    public void start(long periodMillis) {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    reconcile();
+                } catch (Exception e) {
+                    LOG.warn("Failed to reconcile IBM SCE instances and key pairs of "+location+" (continuing): "+e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /** makes a single pass, reporting and (if so configured) reclaiming whatever has been suspect for the grace period */
+    public synchronized void reconcile() throws Exception {
+        passes.incrementAndGet();
+        long now = System.currentTimeMillis();
+        Set<String> usedKeys = Sets.newHashSet();
+        Set<String> instances = Sets.newHashSet();
+        Set<String> keys = Sets.newHashSet();
+        try {
+            for (Instance instance : client.describeInstances()) {
+                if (instance.getStatus() == Instance.Status.REMOVED) continue;
+                if (instance.getKeyName() != null) usedKeys.add(instance.getKeyName());
+                if (isOurs(instance.getName()) && !location.isKnownInstance(instance.getID())) instances.add(instance.getID());
+            }
+            for (Key key : client.describeKeys()) {
+                String name = key.getName();
+                if (isOurs(name) && !usedKeys.contains(name) && !location.isKnownKey(name)) keys.add(name);
+            }
+        } catch (Exception e) {
+            passFailures.incrementAndGet();
+            throw e;
+        }
+
+        Set<String> leakedInstanceIds = leaked(suspectInstances, instances, now);
+        Set<String> leakedKeyNames = leaked(suspectKeys, keys, now);
+        leakedInstances = leakedInstanceIds.size();
+        leakedKeys = leakedKeyNames.size();
+        reportedInstances.retainAll(leakedInstanceIds);
+        reportedKeys.retainAll(leakedKeyNames);
+
+        for (String serverId : leakedInstanceIds) {
+            if (reportedInstances.add(serverId)) {
+                instanceLeaksFound.incrementAndGet();
+                LOG.warn("IBM SCE server {} is not known to {} after {}: leaked{}", new Object[] { serverId, location,
+                        Time.makeTimeStringRounded(gracePeriodMillis), delete ? "; deleting it" : "" });
+            }
+            if (delete) reclaimInstance(serverId);
+        }
+        for (String keyName : leakedKeyNames) {
+            if (reportedKeys.add(keyName)) {
+                keyLeaksFound.incrementAndGet();
+                LOG.warn("IBM SCE keypair({}) is not used or known by {} after {}: leaked{}", new Object[] { keyName, location,
+                        Time.makeTimeStringRounded(gracePeriodMillis), delete ? "; removing it" : "" });
+            }
+            if (delete) reclaimKey(keyName);
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        return ImmutableMap.<String, Object>builder()
+                .put("passes", passes.get())
+                .put("passFailures", passFailures.get())
+                .put("leakedInstances", leakedInstances)
+                .put("leakedKeys", leakedKeys)
+                .put("instanceLeaksFound", instanceLeaksFound.get())
+                .put("keyLeaksFound", keyLeaksFound.get())
+                .put("instancesReclaimed", instancesReclaimed.get())
+                .put("keysReclaimed", keysReclaimed.get())
+                .put("reclaimFailures", reclaimFailures.get())
+                .build();
+    }
+
+    private boolean isOurs(String name) {
+        return name != null && name.startsWith(namePrefix);
+    }
+
+    /**
+     * updates when each of those now suspect was first seen (forgetting any no longer suspect),
+     * returning those suspect for at least the grace period
+     */
+    private Set<String> leaked(Map<String, Long> firstSeen, Set<String> suspects, long now) {
+        firstSeen.keySet().retainAll(suspects);
+        Set<String> result = Sets.newLinkedHashSet();
+        for (String suspect : suspects) {
+            Long seen = firstSeen.get(suspect);
+            if (seen == null) {
+                seen = now;
+                firstSeen.put(suspect, seen);
+            }
+            if (now - seen >= gracePeriodMillis) result.add(suspect);
+        }
+        return result;
+    }
+
+    private void reclaimInstance(final String serverId) {
+        if (!reclaiming.add(serverId)) return;
+        Futures.addCallback(reaper.teardown(serverId, null), new FutureCallback<Void>() {
+            public void onSuccess(Void result) {
+                reclaiming.remove(serverId);
+                instancesReclaimed.incrementAndGet();
+                LOG.info("Deleted leaked IBM SCE server {}", serverId);
+            }
+            public void onFailure(Throwable t) {
+                // tried again on the next pass, if still there
+                reclaiming.remove(serverId);
+                reclaimFailures.incrementAndGet();
+            }
+        });
+    }
+
+    private void reclaimKey(String keyName) {
+        // a single attempt, tried again on the next pass if the key is still there
+        try {
+            client.removeKey(keyName);
+            keysReclaimed.incrementAndGet();
+            LOG.info("Removed leaked IBM SCE keypair({})", keyName);
+        } catch (Exception e) {
+            reclaimFailures.incrementAndGet();
+            LOG.warn("Failed to remove leaked IBM SCE keypair({}): {}", keyName, e);
+        }
+    }
+
+}
@@ -3,11 +3,12 @@ package brooklyn.location.ibm.smartcloud;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import brooklyn.config.ConfigUtils;
 import brooklyn.location.Location;
 import brooklyn.location.LocationRegistry;
 import brooklyn.location.LocationResolver;
@@ -17,14 +18,39 @@ import brooklyn.management.ManagementContext;
 import brooklyn.util.collections.MutableMap;
 import brooklyn.util.config.ConfigBag;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Resolves {@code ibm-smartcloud} specs, with config from {@code brooklyn.location.ibm-smartcloud.*} properties
+ * (or the deprecated {@code brooklyn.ibm-smartcloud.*}).
+ * <p>
+ * The prefix-filtered view of the registry's properties is kept, and only recomputed when the properties change.
+ * If {@link #SHARE_LOCATIONS} is true, specs resolving to the same config (of plain values) share one location
+ * while it remains managed; the location is safe for concurrent use by several callers.
+ */
 public class IbmSmartCloudResolver implements LocationResolver {
 
     private static final Logger log = LoggerFactory.getLogger(IbmSmartCloudResolver.class);
     
    public static final String IBM_SMARTCLOUD = "ibm-smartcloud";
 
+   /** config (e.g. {@code brooklyn.location.ibm-smartcloud.shareLocations=true}) to share a location between equivalent resolves */
+   public static final String SHARE_LOCATIONS = "shareLocations";
+
+   private static final String DEPRECATED_PREFIX = "brooklyn."+IBM_SMARTCLOUD+".";
+   private static final String PREFIX = "brooklyn.location."+IBM_SMARTCLOUD+".";
+
    private ManagementContext managementContext;
 
+   private volatile FilteredProperties registryFiltered;
+   private volatile FilteredProperties propertiesFiltered;
+   private final ConcurrentMap<Map<String, Object>, IbmSmartCloudLocation> sharedLocations = Maps.newConcurrentMap();
+
+   private final AtomicLong resolves = new AtomicLong();
+   private final AtomicLong filterRecomputes = new AtomicLong();
+   private final AtomicLong sharedLocationHits = new AtomicLong();
+
    public String getPrefix() {
       return IBM_SMARTCLOUD;
    }
@@ -44,20 +70,111 @@ public class IbmSmartCloudResolver implements LocationResolver {
    }
 
    protected IbmSmartCloudLocation newLocationFromString(String spec, LocationRegistry registry, Map<?,?> properties, Map<?,?> locationFlags) {
-       ConfigBag tmpProperties = ConfigBag.newInstance();
-       if (registry!=null) tmpProperties.putAll(registry.getProperties());
-       tmpProperties.putAll(properties);
-       tmpProperties.putAll(locationFlags);
+       resolves.incrementAndGet();
+       Map<?,?> registryProperties = (registry!=null) ? registry.getProperties() : null;
+       FilteredProperties fromRegistry = null;
+       if (registryProperties!=null) {
+           fromRegistry = registryFiltered = filter(registryProperties, registryFiltered);
+       }
+       // commonly the properties passed are the registry's own, so already filtered
+       FilteredProperties fromProperties = (properties==registryProperties) ? null : (propertiesFiltered = filter(properties, propertiesFiltered));
+       FilteredProperties fromFlags = new FilteredProperties(locationFlags);
 
+       // as if the registry properties, properties and flags were merged (in that order of precedence) and then filtered,
+       // with the deprecated prefix taking lower precedence than the current one
        ConfigBag filteredProperties = ConfigBag.newInstance();
-       filteredProperties.putAll(ConfigUtils.filterForPrefixAndStrip(tmpProperties.getAllConfig(), "brooklyn."+IBM_SMARTCLOUD+"."));
-       if (!filteredProperties.isEmpty())
-           log.warn("Properties beginning with deprecated syntax 'brooklyn."+IBM_SMARTCLOUD+"' should be renamed as 'brooklyn.location."+IBM_SMARTCLOUD+"': "+filteredProperties);
-       filteredProperties.putAll(ConfigUtils.filterForPrefixAndStrip(tmpProperties.getAllConfig(), "brooklyn.location."+IBM_SMARTCLOUD+"."));
+       if (fromRegistry!=null) filteredProperties.putAll(fromRegistry.deprecated);
+       if (fromProperties!=null) filteredProperties.putAll(fromProperties.deprecated);
+       filteredProperties.putAll(fromFlags.deprecated);
+       if (!fromFlags.deprecated.isEmpty())
+           log.warn("Properties beginning with deprecated syntax 'brooklyn."+IBM_SMARTCLOUD+"' should be renamed as 'brooklyn.location."+IBM_SMARTCLOUD+"': "+fromFlags.deprecated);
+       if (fromRegistry!=null) filteredProperties.putAll(fromRegistry.current);
+       if (fromProperties!=null) filteredProperties.putAll(fromProperties.current);
+       filteredProperties.putAll(fromFlags.current);
        filteredProperties.putAll(locationFlags);
-       
-       return managementContext.getLocationManager().createLocation(LocationSpec.create(IbmSmartCloudLocation.class).configure(
-               filteredProperties.getAllConfig()));
+
+       Map<String, Object> config = filteredProperties.getAllConfig();
+       if (!isShareable(config)) return createLocation(config);
+
+       IbmSmartCloudLocation result = sharedLocations.get(config);
+       if (result!=null && managementContext.getLocationManager().isManaged(result)) {
+           sharedLocationHits.incrementAndGet();
+           return result;
+       }
+       synchronized (sharedLocations) {
+           result = sharedLocations.get(config);
+           if (result!=null && managementContext.getLocationManager().isManaged(result)) {
+               sharedLocationHits.incrementAndGet();
+               return result;
+           }
+           result = createLocation(config);
+           sharedLocations.put(ImmutableMap.copyOf(config), result);
+           return result;
+       }
+   }
+
+   protected IbmSmartCloudLocation createLocation(Map<String, Object> config) {
+       return managementContext.getLocationManager().createLocation(LocationSpec.create(IbmSmartCloudLocation.class).configure(config));
+   }
+
+   /** whether sharing was asked for; and only config made of plain values identifies a location well enough to share it */
+   protected boolean isShareable(Map<String, Object> config) {
+       if (!Boolean.TRUE.toString().equalsIgnoreCase(String.valueOf(config.get(SHARE_LOCATIONS)))) return false;
+       for (Object value : config.values()) {
+           if (!(value instanceof String || value instanceof Number || value instanceof Boolean)) return false;
+       }
+       return true;
+   }
+
+   public Map<String, Object> getMetrics() {
+       return ImmutableMap.<String, Object>of(
+               "resolves", resolves.get(),
+               "filterRecomputes", filterRecomputes.get(),
+               "sharedLocationHits", sharedLocationHits.get(),
+               "sharedLocations", sharedLocations.size());
+   }
+
+   /** the filtered view of the given properties, reusing the previous one if the properties have not changed */
+   private FilteredProperties filter(Map<?,?> properties, FilteredProperties previous) {
+       if (previous!=null && previous.isFilterOf(properties)) return previous;
+       filterRecomputes.incrementAndGet();
+       FilteredProperties result = new FilteredProperties(properties);
+       if (!result.deprecated.isEmpty())
+           log.warn("Properties beginning with deprecated syntax 'brooklyn."+IBM_SMARTCLOUD+"' should be renamed as 'brooklyn.location."+IBM_SMARTCLOUD+"': "+result.deprecated);
+       return result;
+   }
+
+   /** the properties under each prefix, with the prefix stripped; remembers enough of the source to tell if it has changed */
+   private static class FilteredProperties {
+       final Map<?,?> source;
+       final int sourceSize;
+       final int sourceHash;
+       final Map<String, Object> deprecated;
+       final Map<String, Object> current;
+
+       FilteredProperties(Map<?,?> properties) {
+           this.source = properties;
+           this.sourceSize = properties.size();
+           this.sourceHash = properties.hashCode();
+           Map<String, Object> deprecated = MutableMap.of();
+           Map<String, Object> current = MutableMap.of();
+           for (Map.Entry<?,?> entry : properties.entrySet()) {
+               String key = String.valueOf(entry.getKey());
+               if (key.startsWith(PREFIX)) current.put(key.substring(PREFIX.length()), entry.getValue());
+               else if (key.startsWith(DEPRECATED_PREFIX)) deprecated.put(key.substring(DEPRECATED_PREFIX.length()), entry.getValue());
+           }
+           this.deprecated = deprecated;
+           this.current = current;
+       }
+
+       /**
+        * whether this is (still) the filtered view of the given properties, judging by their size and hash code;
+        * that is still linear in the number of properties, but unlike filtering again it allocates nothing
+        */
+       boolean isFilterOf(Map<?,?> properties) {
+           if (properties.size() != sourceSize) return false;
+           return properties.hashCode() == sourceHash && (properties == source || properties.equals(source));
+       }
    }
 
    
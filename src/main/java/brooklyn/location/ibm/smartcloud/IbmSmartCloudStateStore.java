@@ -0,0 +1,307 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.ibm.smartcloud.IbmSmartCloudMachineRegistry.Record;
+import brooklyn.location.ibm.smartcloud.IbmSmartCloudMachineRegistry.State;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+import com.ibm.cloud.api.rest.client.bean.Instance;
+
+/**
+ * Persists what an {@link IbmSmartCloudLocation} knows (its {@link IbmSmartCloudCatalog} lookups, its machines,
+ * the key pairs it generated and any {@link IbmSmartCloudGoldenImages golden images}) to a properties file, so that
+ * after a restart it can provision without first listing the catalog, and can still release the machines it
+ * provisioned before.
+ * <p>
+ * The file is rewritten shortly after each change, to a temporary file which is then renamed over the old one,
+ * so a crash never leaves it half-written. What is loaded is trusted at first, and then reconciled against SCE
+ * in the background: the catalog is re-listed, and machines whose instances no longer exist are forgotten.
+ */
+public class IbmSmartCloudStateStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudStateStore.class);
+
+    private static final String FORMAT_VERSION = "1";
+    private static final long SAVE_DELAY_MILLIS = 1000L;
+
+    private static final String VERSION_KEY = "formatVersion";
+    private static final String CATALOG_PREFIX = "catalog.";
+    private static final String MACHINE_PREFIX = "machine.";
+    private static final String KEY_PREFIX = "key.";
+    private static final String GOLDEN_IMAGE_PREFIX = "goldenImage.";
+
+    private final File file;
+    private final IbmSmartCloudCatalog catalog;
+    private final IbmSmartCloudMachineRegistry registry;
+    private final IbmSmartCloudKeyPairs keyPairs;
+    private final IbmSmartCloudGoldenImages goldenImages;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean saveQueued = new AtomicBoolean();
+    private final Set<String> unreconciledServerIds = Sets.newConcurrentHashSet();
+
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong saveFailures = new AtomicLong();
+    private final AtomicLong restored = new AtomicLong();
+    private final AtomicLong reconciledRemoved = new AtomicLong();
+    private final AtomicLong saveTimeLastMillis = new AtomicLong();
+
+    /** golden images are persisted too, unless null */
+    public IbmSmartCloudStateStore(File file, IbmSmartCloudCatalog catalog, IbmSmartCloudMachineRegistry registry,
+            IbmSmartCloudKeyPairs keyPairs, IbmSmartCloudGoldenImages goldenImages) {
+        this.file = checkNotNull(file, "file");
+        this.catalog = checkNotNull(catalog, "catalog");
+        this.registry = checkNotNull(registry, "registry");
+        this.keyPairs = checkNotNull(keyPairs, "keyPairs");
+        this.goldenImages = goldenImages;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("ibm-smartcloud-state-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Restores the catalog lookups, machines, generated keys and golden images from the file, if it exists.
+     * A file which cannot be read is logged and ignored, as though starting afresh.
+     *
+     * @return the number of machines restored
+     */
+    public int load() {
+        if (!file.exists()) return 0;
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot read IBM SmartCloud state from "+file+"; starting afresh: "+e);
+            return 0;
+        }
+        if (!FORMAT_VERSION.equals(properties.getProperty(VERSION_KEY))) {
+            LOG.warn("Ignoring IBM SmartCloud state in {}: unknown format {}", file, properties.getProperty(VERSION_KEY));
+            return 0;
+        }
+
+        Map<String, String> memo = MutableMap.of();
+        Map<String, Map<String, String>> machines = Maps.newLinkedHashMap();
+        Set<String> createdKeys = Sets.newLinkedHashSet();
+        Map<String, String> golden = MutableMap.of();
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key);
+            if (key.startsWith(CATALOG_PREFIX)) {
+                memo.put(key.substring(CATALOG_PREFIX.length()), value);
+            } else if (key.startsWith(MACHINE_PREFIX)) {
+                // machine.<serverId>.<field>; server IDs are numeric, so never contain a dot
+                String rest = key.substring(MACHINE_PREFIX.length());
+                int dot = rest.indexOf('.');
+                if (dot < 0) continue;
+                String serverId = rest.substring(0, dot);
+                if (!machines.containsKey(serverId)) machines.put(serverId, MutableMap.<String, String>of());
+                machines.get(serverId).put(rest.substring(dot + 1), value);
+            } else if (key.startsWith(KEY_PREFIX)) {
+                createdKeys.add(key.substring(KEY_PREFIX.length()));
+            } else if (key.startsWith(GOLDEN_IMAGE_PREFIX)) {
+                golden.put(key.substring(GOLDEN_IMAGE_PREFIX.length()), value);
+            }
+        }
+
+        catalog.preload(memo);
+        if (goldenImages != null) goldenImages.restore(golden);
+        Map<String, Integer> keyRefs = MutableMap.of();
+        for (Map.Entry<String, Map<String, String>> entry : machines.entrySet()) {
+            String serverId = entry.getKey();
+            Map<String, String> fields = entry.getValue();
+            if (registry.getByServerId(serverId) != null) continue;
+            IbmSmartCloudInstanceSpec spec = null;
+            if (fields.get("dataCenterID") != null && fields.get("imageID") != null && fields.get("instanceTypeID") != null) {
+                spec = new IbmSmartCloudInstanceSpec(fields.get("dataCenterID"), fields.get("imageID"), fields.get("instanceTypeID"));
+            }
+            String keyName = fields.get("keyName");
+            registry.restore(serverId, fields.get("address"), keyName, spec);
+            unreconciledServerIds.add(serverId);
+            restored.incrementAndGet();
+            if (keyName != null && createdKeys.contains(keyName)) {
+                keyRefs.put(keyName, keyRefs.containsKey(keyName) ? keyRefs.get(keyName) + 1 : 1);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : keyRefs.entrySet()) {
+            keyPairs.restore(entry.getKey(), entry.getValue());
+        }
+        LOG.info("Restored IBM SmartCloud state from {}: {} catalog entries, {} machines, {} generated keys", new Object[] {
+                file, memo.size(), machines.size(), keyRefs.size() });
+        return machines.size();
+    }
+
+    /**
+     * Checks what was loaded against SCE in the background: re-lists the catalog, and forgets restored machines
+     * whose instances have since been removed (releasing their keys), then saves.
+     */
+    public ListenableFuture<Void> reconcileInBackground(final DeveloperCloudClient client) {
+        ListenableFutureTask<Void> task = ListenableFutureTask.create(new Runnable() {
+            public void run() {
+                reconcile(client);
+            }
+        }, null);
+        executor.execute(task);
+        return task;
+    }
+
+    protected void reconcile(DeveloperCloudClient client) {
+        Stopwatch stopwatch = new Stopwatch().start();
+        try {
+            catalog.refresh();
+        } catch (Exception e) {
+            LOG.warn("Cannot refresh IBM SmartCloud catalog while reconciling restored state (continuing): "+e);
+        }
+        if (!unreconciledServerIds.isEmpty()) {
+            Set<String> live = Sets.newHashSet();
+            try {
+                for (Instance instance : client.describeInstances()) {
+                    if (instance.getStatus() != Instance.Status.REMOVED) live.add(instance.getID());
+                }
+            } catch (Exception e) {
+                LOG.warn("Cannot list IBM SCE instances while reconciling restored state; will retry on next start: "+e);
+                return;
+            }
+            for (String serverId : unreconciledServerIds) {
+                unreconciledServerIds.remove(serverId);
+                if (live.contains(serverId)) continue;
+                Record record = registry.getByServerId(serverId);
+                // only forget it if it has not meanwhile been released (and so is being forgotten anyway)
+                if (record == null || !registry.transition(record, State.ACTIVE, State.RELEASING)) continue;
+                LOG.info("IBM SCE server {} restored from {} no longer exists; forgetting it", serverId, file);
+                if (record.getKeyName() != null) keyPairs.release(record.getKeyName());
+                registry.remove(record);
+                reconciledRemoved.incrementAndGet();
+            }
+        }
+        save();
+        LOG.debug("Reconciled IBM SmartCloud state from {} in {}", file, Time.makeTimeStringRounded(stopwatch));
+    }
+
+    /** saves shortly, so that a burst of changes is written once */
+    public void saveSoon() {
+        if (!saveQueued.compareAndSet(false, true)) return;
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    saveQueued.set(false);
+                    save();
+                }
+            }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down, so nothing will save later
+            saveQueued.set(false);
+            save();
+        }
+    }
+
+    /** stops saving in the background, first saving now if a save was queued */
+    public void shutdown() {
+        executor.shutdownNow();
+        if (saveQueued.compareAndSet(true, false)) save();
+    }
+
+    /** writes the current state to the file, replacing it atomically; failures are logged, not thrown */
+    public synchronized void save() {
+        Stopwatch stopwatch = new Stopwatch().start();
+        Properties properties = new Properties();
+        properties.setProperty(VERSION_KEY, FORMAT_VERSION);
+        for (Map.Entry<String, String> entry : catalog.getMemo().entrySet()) {
+            properties.setProperty(CATALOG_PREFIX + entry.getKey(), entry.getValue());
+        }
+        List<Record> records = registry.snapshot();
+        for (Record record : records) {
+            if (record.getState() == State.REMOVED) continue;
+            String prefix = MACHINE_PREFIX + record.getServerId() + ".";
+            setIfNotNull(properties, prefix + "address", record.getAddress());
+            setIfNotNull(properties, prefix + "keyName", record.getKeyName());
+            IbmSmartCloudInstanceSpec spec = record.getSpec();
+            if (spec != null) {
+                properties.setProperty(prefix + "dataCenterID", spec.getDataCenterID());
+                properties.setProperty(prefix + "imageID", spec.getImageID());
+                properties.setProperty(prefix + "instanceTypeID", spec.getInstanceTypeID());
+            }
+        }
+        for (String keyName : keyPairs.getCreatedKeys()) {
+            properties.setProperty(KEY_PREFIX + keyName, "created");
+        }
+        if (goldenImages != null) {
+            for (Map.Entry<String, String> entry : goldenImages.getAvailable().entrySet()) {
+                properties.setProperty(GOLDEN_IMAGE_PREFIX + entry.getKey(), entry.getValue());
+            }
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        File tmp = new File(parent, file.getName() + ".tmp");
+        try {
+            if (parent != null) parent.mkdirs();
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                properties.store(out, "IBM SmartCloud location state");
+            } finally {
+                out.close();
+            }
+            try {
+                java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            saves.incrementAndGet();
+            saveTimeLastMillis.set(stopwatch.elapsed(TimeUnit.MILLISECONDS));
+            LOG.trace("Saved IBM SmartCloud state ({} machines) to {}", records.size(), file);
+        } catch (IOException e) {
+            saveFailures.incrementAndGet();
+            LOG.warn("Cannot save IBM SmartCloud state to "+file+": "+e);
+            tmp.delete();
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        return ImmutableMap.<String, Object>builder()
+                .put("saves", saves.get())
+                .put("saveFailures", saveFailures.get())
+                .put("saveTimeLastMillis", saveTimeLastMillis.get())
+                .put("restored", restored.get())
+                .put("unreconciled", unreconciledServerIds.size())
+                .put("reconciledRemoved", reconciledRemoved.get())
+                .build();
+    }
+
+    private static void setIfNotNull(Properties properties, String key, String value) {
+        if (value != null) properties.setProperty(key, value);
+    }
+
+}
@@ -0,0 +1,235 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps machines which are already ACTIVE, sshable and customized, per {@link IbmSmartCloudInstanceSpec},
+ * so that {@link IbmSmartCloudLocation#obtain(java.util.Map)} can hand one out immediately
+ * instead of waiting many minutes for SCE to provision a new instance.
+ * <p>
+ * Whenever a machine is taken, the pool for that spec is refilled in the background up to its minimum size.
+ * Machines idle for longer than the expiry are deleted, down to the minimum size.
+ */
+public class IbmSmartCloudWarmPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudWarmPool.class);
+
+    private static final long EXPIRY_CHECK_PERIOD_MILLIS = 60*1000L;
+
+    private final IbmSmartCloudLocation location;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleExpiryMillis;
+
+    private final ConcurrentMap<IbmSmartCloudInstanceSpec, BlockingDeque<PooledMachine>> pools = Maps.newConcurrentMap();
+    private final ConcurrentMap<IbmSmartCloudInstanceSpec, AtomicInteger> pendingRefills = Maps.newConcurrentMap();
+    private final ExecutorService refillExecutor;
+    private final ScheduledExecutorService expiryExecutor;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refills = new AtomicLong();
+    private final AtomicLong refillFailures = new AtomicLong();
+    private final AtomicLong refillTimeTotalMillis = new AtomicLong();
+    private final AtomicLong returned = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    public IbmSmartCloudWarmPool(IbmSmartCloudLocation location, int minSize, int maxSize, long idleExpiryMillis, int refillParallelism) {
+        checkArgument(minSize >= 0, "minSize must not be negative");
+        checkArgument(maxSize >= minSize, "maxSize must be at least minSize");
+        this.location = checkNotNull(location, "location");
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleExpiryMillis = idleExpiryMillis;
+        this.refillExecutor = Executors.newFixedThreadPool(Math.max(1, refillParallelism), new ThreadFactoryBuilder()
+                .setNameFormat("ibm-smartcloud-warm-pool-%d").setDaemon(true).build());
+        this.expiryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("ibm-smartcloud-warm-pool-expiry-%d").setDaemon(true).build());
+        this.expiryExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                expireIdle();
+            }
+        }, EXPIRY_CHECK_PERIOD_MILLIS, EXPIRY_CHECK_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** stops refilling and expiring, and releases every pooled machine */
+    public void shutdown() {
+        refillExecutor.shutdownNow();
+        expiryExecutor.shutdownNow();
+        for (BlockingDeque<PooledMachine> pool : pools.values()) {
+            PooledMachine pooled;
+            while ((pooled = pool.pollFirst()) != null) {
+                LOG.info("Releasing {} from warm pool of {}: shutting down", pooled.machine, location);
+                location.releaseFromPool(pooled.machine);
+            }
+        }
+    }
+
+    /** returns a pooled machine for the given spec, or null if none is available; either way a refill is triggered */
+    public SshMachineLocation take(IbmSmartCloudInstanceSpec spec) {
+        PooledMachine result = getPool(spec).pollFirst();
+        if (result != null) {
+            hits.incrementAndGet();
+            LOG.debug("Warm pool hit for {} in {}: {}", new Object[] { spec, location, result.machine });
+        } else {
+            misses.incrementAndGet();
+            LOG.debug("Warm pool miss for {} in {}", spec, location);
+        }
+        refill(spec);
+        return (result != null) ? result.machine : null;
+    }
+
+    /** returns the machine to the pool; returns false if the pool for that spec is already full */
+    public boolean offer(IbmSmartCloudInstanceSpec spec, SshMachineLocation machine) {
+        if (!add(spec, machine)) return false;
+        returned.incrementAndGet();
+        return true;
+    }
+
+    /** starts provisioning machines in the background until the pool for the given spec has its minimum size */
+    public void refill(final IbmSmartCloudInstanceSpec spec) {
+        final AtomicInteger pending = getPendingRefills(spec);
+        BlockingDeque<PooledMachine> pool = getPool(spec);
+        while (true) {
+            int current = pending.get();
+            if (pool.size() + current >= minSize) return;
+            if (!pending.compareAndSet(current, current + 1)) continue;
+            try {
+                refillExecutor.submit(new Runnable() {
+                    public void run() {
+                        Stopwatch stopwatch = new Stopwatch().start();
+                        try {
+                            SshMachineLocation machine = location.provisionForPool(spec);
+                            long elapsed = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+                            refills.incrementAndGet();
+                            refillTimeTotalMillis.addAndGet(elapsed);
+                            LOG.info("Added {} to warm pool for {} in {} (took {})", new Object[] { machine, spec, location,
+                                    Time.makeTimeStringRounded(elapsed) });
+                            if (!add(spec, machine)) location.releaseFromPool(machine);
+                        } catch (Exception e) {
+                            refillFailures.incrementAndGet();
+                            LOG.warn("Failed to provision machine for warm pool for "+spec+" in "+location+": "+e, e);
+                        } finally {
+                            pending.decrementAndGet();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shut down
+                pending.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /** deletes machines which have been idle longer than the expiry, leaving at least the minimum size */
+    protected void expireIdle() {
+        try {
+            long now = System.currentTimeMillis();
+            List<PooledMachine> toRelease = Lists.newArrayList();
+            for (BlockingDeque<PooledMachine> pool : pools.values()) {
+                synchronized (pool) {
+                    // oldest returns are at the end of the deque
+                    Iterator<PooledMachine> it = pool.descendingIterator();
+                    while (it.hasNext() && pool.size() > minSize) {
+                        PooledMachine candidate = it.next();
+                        if (now - candidate.idleSince < idleExpiryMillis) break;
+                        it.remove();
+                        toRelease.add(candidate);
+                    }
+                }
+            }
+            for (PooledMachine candidate : toRelease) {
+                expired.incrementAndGet();
+                LOG.info("Releasing {} from warm pool of {}: idle for {}", new Object[] { candidate.machine, location,
+                        Time.makeTimeStringRounded(now - candidate.idleSince) });
+                location.releaseFromPool(candidate.machine);
+            }
+        } catch (Throwable t) {
+            LOG.warn("Error expiring idle machines from warm pool of "+location+": "+t, t);
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        long refillCount = refills.get();
+        Map<String, Object> sizes = MutableMap.of();
+        for (Map.Entry<IbmSmartCloudInstanceSpec, BlockingDeque<PooledMachine>> entry : pools.entrySet()) {
+            sizes.put(entry.getKey().toString(), entry.getValue().size());
+        }
+        return ImmutableMap.<String, Object>builder()
+                .put("hits", hits.get())
+                .put("misses", misses.get())
+                .put("refills", refillCount)
+                .put("refillFailures", refillFailures.get())
+                .put("refillTimeMeanMillis", refillCount == 0 ? 0 : refillTimeTotalMillis.get() / refillCount)
+                .put("returned", returned.get())
+                .put("expired", expired.get())
+                .put("sizes", sizes)
+                .build();
+    }
+
+    private boolean add(IbmSmartCloudInstanceSpec spec, SshMachineLocation machine) {
+        BlockingDeque<PooledMachine> pool = getPool(spec);
+        synchronized (pool) {
+            if (pool.size() >= maxSize) return false;
+            pool.offerFirst(new PooledMachine(machine));
+        }
+        return true;
+    }
+
+    private BlockingDeque<PooledMachine> getPool(IbmSmartCloudInstanceSpec spec) {
+        BlockingDeque<PooledMachine> result = pools.get(spec);
+        if (result == null) {
+            pools.putIfAbsent(spec, new LinkedBlockingDeque<PooledMachine>());
+            result = pools.get(spec);
+        }
+        return result;
+    }
+
+    private AtomicInteger getPendingRefills(IbmSmartCloudInstanceSpec spec) {
+        AtomicInteger result = pendingRefills.get(spec);
+        if (result == null) {
+            pendingRefills.putIfAbsent(spec, new AtomicInteger());
+            result = pendingRefills.get(spec);
+        }
+        return result;
+    }
+
+    private static class PooledMachine {
+        final SshMachineLocation machine;
+        final long idleSince = System.currentTimeMillis();
+
+        PooledMachine(SshMachineLocation machine) {
+            this.machine = machine;
+        }
+    }
+
+}
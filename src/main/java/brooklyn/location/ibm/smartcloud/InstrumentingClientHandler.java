@@ -0,0 +1,113 @@
+package brooklyn.location.ibm.smartcloud;
+
+import java.lang.reflect.Method;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.ibm.smartcloud.SceErrors.Kind;
+import brooklyn.util.collections.MutableMap;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+
+/**
+ * Records every SCE call made by an {@link IbmSmartCloudLocation}: its latency, and whether it succeeded or failed
+ * and, if so, with which {@link SceErrors.Kind kind} of error, per client method.
+ * <p>
+ * Each call is also logged at TRACE, with its method, duration and outcome, so that enabling TRACE for this class
+ * gives a record of SCE interaction which can be lined up against other logs of the same time.
+ */
+public class InstrumentingClientHandler extends ForwardingClientHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InstrumentingClientHandler.class);
+
+    private final ConcurrentMap<String, MethodStats> stats = Maps.newConcurrentMap();
+
+    public InstrumentingClientHandler(DeveloperCloudClient delegate) {
+        super(delegate);
+    }
+
+    @Override
+    protected Object invoke(Method method, Object[] args) throws Throwable {
+        if (ApiClass.of(method) == ApiClass.LOCAL) return forward(method, args);
+
+        MethodStats methodStats = getStats(method.getName());
+        Stopwatch stopwatch = new Stopwatch().start();
+        try {
+            Object result = forward(method, args);
+            long elapsed = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            methodStats.record(elapsed, null);
+            LOG.trace("SCE call {} took {}ms: ok", method.getName(), elapsed);
+            return result;
+        } catch (Throwable t) {
+            long elapsed = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            Kind kind = SceErrors.classify(t);
+            methodStats.record(elapsed, kind);
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("SCE call {} took {}ms: {} ({})", new Object[] { method.getName(), elapsed, kind.label(), t });
+            }
+            throw t;
+        }
+    }
+
+    /** per method: number of calls, latency, and number of failures of each kind */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> result = MutableMap.of();
+        for (Map.Entry<String, MethodStats> entry : stats.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toMap());
+        }
+        return result;
+    }
+
+    /** the number of failures of the given kind, over all methods */
+    public long getErrorCount(Kind kind) {
+        long result = 0;
+        for (MethodStats methodStats : stats.values()) {
+            result += methodStats.errors.get(kind).get();
+        }
+        return result;
+    }
+
+    private MethodStats getStats(String method) {
+        MethodStats result = stats.get(method);
+        if (result == null) {
+            stats.putIfAbsent(method, new MethodStats());
+            result = stats.get(method);
+        }
+        return result;
+    }
+
+    private static class MethodStats {
+        final AtomicLong calls = new AtomicLong();
+        final LatencyStats latency = new LatencyStats();
+        final Map<Kind, AtomicLong> errors = new EnumMap<Kind, AtomicLong>(Kind.class);
+
+        MethodStats() {
+            for (Kind kind : Kind.values()) errors.put(kind, new AtomicLong());
+        }
+
+        /** records a call, which failed with the given kind of error unless null */
+        void record(long millis, Kind failure) {
+            calls.incrementAndGet();
+            latency.record(millis);
+            if (failure != null) errors.get(failure).incrementAndGet();
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> errorCounts = MutableMap.of();
+            for (Map.Entry<Kind, AtomicLong> entry : errors.entrySet()) {
+                errorCounts.put(entry.getKey().label(), entry.getValue().get());
+            }
+            return ImmutableMap.<String, Object>of("calls", calls.get(), "latency", latency.toMap(), "errors", errorCounts);
+        }
+    }
+
+}
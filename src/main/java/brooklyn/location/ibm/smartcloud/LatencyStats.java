@@ -0,0 +1,81 @@
+package brooklyn.location.ibm.smartcloud;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Running statistics for a latency (count, mean and max over all samples, and percentiles over the most recent ones),
+ * reported through the metrics of {@link IbmSmartCloudLocation}.
+ */
+public class LatencyStats {
+
+    private static final int DEFAULT_WINDOW = 1000;
+
+    private final long[] window;
+    private int windowCount;
+    private int next;
+    private long count;
+    private long totalMillis;
+    private long maxMillis;
+
+    public LatencyStats() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /** @param windowSize how many recent samples to keep for percentiles */
+    public LatencyStats(int windowSize) {
+        this.window = new long[windowSize];
+    }
+
+    public synchronized void record(long millis) {
+        count++;
+        totalMillis += millis;
+        maxMillis = Math.max(maxMillis, millis);
+        window[next] = millis;
+        next = (next + 1) % window.length;
+        if (windowCount < window.length) windowCount++;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMeanMillis() {
+        return count == 0 ? 0 : totalMillis / count;
+    }
+
+    public synchronized long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /** the given percentile (between 0 and 1) of recent samples, or 0 if there are none */
+    public long getPercentileMillis(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (windowCount == 0) return 0;
+            sorted = Arrays.copyOf(window, windowCount);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    public Map<String, Object> toMap() {
+        return ImmutableMap.<String, Object>builder()
+                .put("count", getCount())
+                .put("meanMillis", getMeanMillis())
+                .put("p50Millis", getPercentileMillis(0.5))
+                .put("p90Millis", getPercentileMillis(0.9))
+                .put("p99Millis", getPercentileMillis(0.99))
+                .put("maxMillis", getMaxMillis())
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyStats" + toMap();
+    }
+
+}
@@ -0,0 +1,19 @@
+package brooklyn.location.ibm.smartcloud;
+
+/**
+ * Decides how long to wait between successive checks while waiting for something to become ready,
+ * such as an SCE instance becoming ACTIVE or a new machine becoming sshable.
+ * 
+ * @see BackoffPollSchedule
+ * @see FixedPollSchedule
+ */
+public interface PollSchedule {
+
+    /**
+     * @param attempt the number of checks already made (0 before the first check)
+     * @param elapsedMillis time since waiting started
+     * @return how long to wait before the next check, in millis
+     */
+    long nextDelayMillis(int attempt, long elapsedMillis);
+
+}
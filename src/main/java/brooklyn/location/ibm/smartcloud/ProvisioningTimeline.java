@@ -0,0 +1,124 @@
+package brooklyn.location.ibm.smartcloud;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import brooklyn.util.time.Time;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Where the time went while provisioning one machine: how long each {@link Phase} took
+ * (summed over retries, where a phase is repeated), how many instances were created,
+ * and how many ssh sessions were set up and how long their handshakes took.
+ */
+public class ProvisioningTimeline {
+
+    public enum Phase {
+        /** resolving location, image and instance type IDs */
+        CATALOG("catalog"),
+        /** the createInstance call, for the attempt which became ACTIVE */
+        CREATE("create"),
+        /** waiting for the instance to become ACTIVE, for the attempt which did */
+        WAIT_ACTIVE("waitActive"),
+        /** creating, waiting for and deleting instances which failed */
+        RETRIES("retries"),
+        /** waiting for the machine to be sshable */
+        SSH_REACHABLE("sshReachable"),
+        /** running the customization commands, and waiting for ssh again after any sshd restart or iptables stop */
+        CUSTOMIZE("customize"),
+        /** the whole of obtaining the machine */
+        TOTAL("total");
+
+        private final String label;
+
+        private Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final long startTime = System.currentTimeMillis();
+    private final Map<Phase, Long> durations = new EnumMap<Phase, Long>(Phase.class);
+    private volatile String serverName;
+    private volatile int attempts;
+    private int sshSessions;
+    private long sshHandshakeMillis;
+
+    public synchronized void record(Phase phase, long millis) {
+        Long existing = durations.get(phase);
+        durations.put(phase, (existing == null ? 0 : existing) + millis);
+    }
+
+    public void setServerName(String serverName) {
+        this.serverName = serverName;
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public void incrementAttempts() {
+        attempts++;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /** records an ssh session set up for this machine, whose handshake took the given time (or -1 if not measured) */
+    public synchronized void recordSshSession(long handshakeMillis) {
+        sshSessions++;
+        if (handshakeMillis > 0) sshHandshakeMillis += handshakeMillis;
+    }
+
+    public synchronized int getSshSessions() {
+        return sshSessions;
+    }
+
+    /** the total time of the measured ssh handshakes */
+    public synchronized long getSshHandshakeMillis() {
+        return sshHandshakeMillis;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /** the recorded phases, in order, with their durations in millis */
+    public synchronized Map<String, Long> toMap() {
+        ImmutableMap.Builder<String, Long> result = ImmutableMap.builder();
+        for (Map.Entry<Phase, Long> entry : durations.entrySet()) {
+            result.put(entry.getKey().getLabel(), entry.getValue());
+        }
+        return result.build();
+    }
+
+    /** the recorded phases on one line, e.g. {@code create=2s waitActive=4m 12s sshReachable=40s total=5m sshSessions=3 sshHandshakes=1s} */
+    public synchronized String toSummary() {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<Phase, Long> entry : durations.entrySet()) {
+            if (result.length() > 0) result.append(" ");
+            result.append(entry.getKey().getLabel()).append("=").append(Time.makeTimeStringRounded(entry.getValue()));
+        }
+        if (attempts > 1) result.append(" attempts=").append(attempts);
+        if (sshSessions > 0) {
+            result.append(" sshSessions=").append(sshSessions)
+                    .append(" sshHandshakes=").append(Time.makeTimeStringRounded(sshHandshakeMillis));
+        }
+        return result.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "ProvisioningTimeline[" + (serverName != null ? serverName + ": " : "") + toSummary() + "]";
+    }
+
+}
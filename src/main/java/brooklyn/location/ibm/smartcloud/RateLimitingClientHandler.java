@@ -0,0 +1,109 @@
+package brooklyn.location.ibm.smartcloud;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.collections.MutableMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+
+/**
+ * Keeps the calls made to SCE by all the pollers, provisioners and reapers of an {@link IbmSmartCloudLocation}
+ * under a client-side rate, rather than letting bursts (e.g. a large batch) trip SCE's own throttling.
+ * <p>
+ * Reads and writes each have their own {@link RateLimiter}. Identical reads (same method and arguments)
+ * made while one is already in flight do not call SCE again, but share the result of the first;
+ * callers must therefore treat returned beans and lists as read-only.
+ */
+public class RateLimitingClientHandler extends ForwardingClientHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RateLimitingClientHandler.class);
+
+    private final Map<ApiClass, RateLimiter> limiters = new EnumMap<ApiClass, RateLimiter>(ApiClass.class);
+    private final Map<ApiClass, AtomicLong> requests = new EnumMap<ApiClass, AtomicLong>(ApiClass.class);
+    private final Map<ApiClass, LatencyStats> queueingDelays = new EnumMap<ApiClass, LatencyStats>(ApiClass.class);
+    private final ConcurrentMap<List<Object>, SettableFuture<Object>> inFlight = Maps.newConcurrentMap();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final long startTime = System.currentTimeMillis();
+
+    /** the rates are sustained rates; each allows bursts of up to one second's worth of calls once idle */
+    public RateLimitingClientHandler(DeveloperCloudClient delegate, double readsPerSecond, double writesPerSecond) {
+        super(delegate);
+        limiters.put(ApiClass.READ, RateLimiter.create(readsPerSecond));
+        limiters.put(ApiClass.WRITE, RateLimiter.create(writesPerSecond));
+        for (ApiClass apiClass : ApiClass.values()) {
+            requests.put(apiClass, new AtomicLong());
+            queueingDelays.put(apiClass, new LatencyStats());
+        }
+    }
+
+    @Override
+    protected Object invoke(Method method, Object[] args) throws Throwable {
+        ApiClass apiClass = ApiClass.of(method);
+        if (apiClass != ApiClass.READ) return limitAndForward(apiClass, method, args);
+
+        List<Object> key = ImmutableList.<Object>builder().add(method)
+                .addAll(args == null ? ImmutableList.of() : Arrays.asList(args)).build();
+        SettableFuture<Object> future = SettableFuture.create();
+        SettableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            LOG.trace("Coalescing {} with identical call in flight", method.getName());
+            try {
+                return Uninterruptibles.getUninterruptibly(existing);
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        }
+        try {
+            Object result = limitAndForward(apiClass, method, args);
+            future.set(result);
+            return result;
+        } catch (Throwable t) {
+            future.setException(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private Object limitAndForward(ApiClass apiClass, Method method, Object[] args) throws Throwable {
+        RateLimiter limiter = limiters.get(apiClass);
+        long waited = (limiter != null) ? (long) (limiter.acquire() * TimeUnit.SECONDS.toMillis(1)) : 0;
+        if (waited > 0) LOG.trace("Delayed {} by {}ms to stay within SCE rate limit", method.getName(), waited);
+        requests.get(apiClass).incrementAndGet();
+        queueingDelays.get(apiClass).record(waited);
+        return forward(method, args);
+    }
+
+    public Map<String, Object> getMetrics() {
+        double elapsedSeconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+        Map<String, Object> result = MutableMap.of();
+        for (ApiClass apiClass : limiters.keySet()) {
+            long count = requests.get(apiClass).get();
+            result.put(apiClass.name().toLowerCase(), ImmutableMap.<String, Object>of(
+                    "requests", count,
+                    "requestsPerSecond", count / elapsedSeconds,
+                    "queueingDelay", queueingDelays.get(apiClass).toMap()));
+        }
+        result.put("coalesced", coalesced.get());
+        return result;
+    }
+
+}
@@ -0,0 +1,47 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * Remembers how long the most recent waits took (e.g. from creation to ACTIVE),
+ * so that a {@link BackoffPollSchedule} can poll more often around the time readiness is expected.
+ */
+public class ReadinessHistory {
+
+    private final long[] samples;
+    private int count;
+    private int next;
+
+    public ReadinessHistory(int size) {
+        checkArgument(size > 0, "size must be positive");
+        this.samples = new long[size];
+    }
+
+    public synchronized void record(long durationMillis) {
+        samples[next] = durationMillis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /** the median of the recorded durations, or -1 if nothing has been recorded */
+    public long getExpectedMillis() {
+        return getPercentileMillis(0.5);
+    }
+
+    /** the given percentile (between 0 and 1) of the recorded durations, or -1 if nothing has been recorded */
+    public synchronized long getPercentileMillis(double percentile) {
+        checkArgument(percentile >= 0 && percentile <= 1, "percentile must be between 0 and 1");
+        if (count == 0) return -1;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+}
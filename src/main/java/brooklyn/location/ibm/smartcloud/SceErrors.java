@@ -0,0 +1,126 @@
+package brooklyn.location.ibm.smartcloud;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
+import com.ibm.cloud.api.rest.client.exception.UnknownKeyException;
+
+/**
+ * Recognises kinds of SCE error. The client reports most failures with its own exception types, or with a message
+ * (often including the HTTP status) from the server. Exception types are used where they say what went wrong;
+ * otherwise the HTTP status, and failing that only whole phrases of the message, so that an unrelated message which
+ * merely mentions e.g. a "server" or a "limit" is not mistaken for an outage or an exhausted quota.
+ */
+public class SceErrors {
+
+    private SceErrors() {}
+
+    private static final String SCE_EXCEPTION_PACKAGE = UnknownKeyException.class.getPackage().getName();
+
+    /** e.g. "HTTP 503", "HTTP/1.1 401" or "status code: 500" */
+    private static final Pattern HTTP_STATUS = Pattern.compile(
+            "\\b(?:HTTP(?:/\\d\\.\\d)?|status(?: code)?:?)\\s*(\\d{3})\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern QUOTA_PHRASES = phrases("quota exceeded", "exceeds (?:the |your )?quota",
+            "insufficient resources", "insufficient capacity");
+    private static final Pattern AUTH_PHRASES = phrases("unauthorized", "authentication failed", "invalid credentials");
+    private static final Pattern TIMEOUT_PHRASES = phrases("timed out");
+    private static final Pattern SERVER_ERROR_PHRASES = phrases("internal server error", "service unavailable", "bad gateway");
+
+    /** the kinds of failure which SCE calls are counted by */
+    public enum Kind {
+        TIMEOUT,
+        AUTH,
+        QUOTA,
+        UNKNOWN_KEY,
+        SERVER_ERROR,
+        OTHER;
+
+        /** the name used in metrics and logs, e.g. "unknownKey" */
+        public String label() {
+            String[] words = name().toLowerCase().split("_");
+            StringBuilder result = new StringBuilder(words[0]);
+            for (int i = 1; i < words.length; i++) {
+                result.append(Character.toUpperCase(words[i].charAt(0))).append(words[i].substring(1));
+            }
+            return result.toString();
+        }
+    }
+
+    /** the kind of the given failure; checked most specific first, so e.g. a quota error reported by the server is QUOTA */
+    public static Kind classify(Throwable t) {
+        if (isUnknownKeyError(t)) return Kind.UNKNOWN_KEY;
+        if (isQuotaError(t)) return Kind.QUOTA;
+        if (isAuthError(t)) return Kind.AUTH;
+        if (isTimeout(t)) return Kind.TIMEOUT;
+        if (isServerError(t)) return Kind.SERVER_ERROR;
+        return Kind.OTHER;
+    }
+
+    /** whether the error, or any cause, says the account has run out of quota or SCE out of capacity */
+    public static boolean isQuotaError(Throwable t) {
+        return causalChainMatches(t, QUOTA_PHRASES);
+    }
+
+    /** whether the error, or any cause, says the credentials were rejected */
+    public static boolean isAuthError(Throwable t) {
+        for (Throwable cause : Throwables.getCausalChain(t)) {
+            if (isSceException(cause, "UnauthorizedUserException")) return true;
+            int status = httpStatus(cause);
+            if (status == 401 || status == 403) return true;
+        }
+        return causalChainMatches(t, AUTH_PHRASES);
+    }
+
+    /** whether the error, or any cause, is a timeout waiting for SCE */
+    public static boolean isTimeout(Throwable t) {
+        for (Throwable cause : Throwables.getCausalChain(t)) {
+            if (cause instanceof SocketTimeoutException || cause instanceof TimeoutException) return true;
+        }
+        return causalChainMatches(t, TIMEOUT_PHRASES);
+    }
+
+    /** whether the error, or any cause, says a key pair does not exist */
+    public static boolean isUnknownKeyError(Throwable t) {
+        for (Throwable cause : Throwables.getCausalChain(t)) {
+            if (cause instanceof UnknownKeyException) return true;
+        }
+        return false;
+    }
+
+    /** whether the error, or any cause, is SCE failing (rather than rejecting the request), e.g. HTTP 500 or 503 */
+    public static boolean isServerError(Throwable t) {
+        for (Throwable cause : Throwables.getCausalChain(t)) {
+            if (httpStatus(cause) / 100 == 5) return true;
+        }
+        return causalChainMatches(t, SERVER_ERROR_PHRASES);
+    }
+
+    /** the HTTP status given in the error's message, or -1 if none */
+    static int httpStatus(Throwable t) {
+        if (t.getMessage() == null) return -1;
+        Matcher matcher = HTTP_STATUS.matcher(t.getMessage());
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    /** whether the error is the SCE client's exception of the given name (not linked against, as not all versions have it) */
+    static boolean isSceException(Throwable t, String simpleName) {
+        return t.getClass().getName().equals(SCE_EXCEPTION_PACKAGE + "." + simpleName);
+    }
+
+    static boolean causalChainMatches(Throwable t, Pattern phrases) {
+        for (Throwable cause : Throwables.getCausalChain(t)) {
+            if (cause.getMessage() != null && phrases.matcher(cause.getMessage()).find()) return true;
+        }
+        return false;
+    }
+
+    /** matches any of the given phrases (regular expressions), as whole words and ignoring case */
+    private static Pattern phrases(String... phrases) {
+        return Pattern.compile("\\b(?:" + Joiner.on("|").join(phrases) + ")\\b", Pattern.CASE_INSENSITIVE);
+    }
+
+}
@@ -0,0 +1,229 @@
+package brooklyn.location.ibm.smartcloud;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Time;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Watches many addresses at once for a port (normally ssh) to start accepting connections, using
+ * non-blocking connects on a single {@link Selector} thread rather than a blocked thread per machine.
+ * <p>
+ * Each address is retried on its {@link PollSchedule} until a connect succeeds or its deadline passes.
+ * The caller can then do the (comparatively expensive) ssh handshake knowing the port is open.
+ * <p>
+ * Addresses are only ever logged as given, never resolved, as a reverse lookup would block the selector thread.
+ */
+public class SshReachabilityScanner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SshReachabilityScanner.class);
+
+    private static final long CONNECT_TIMEOUT_MILLIS = 5*1000L;
+    private static final long MAX_SELECT_MILLIS = 1000L;
+
+    private final PollSchedule schedule;
+    private final Queue<Target> added = new ConcurrentLinkedQueue<Target>();
+    private final List<Target> targets = Lists.newArrayList();
+
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean closed;
+
+    public SshReachabilityScanner(PollSchedule schedule) {
+        this.schedule = schedule;
+    }
+
+    /**
+     * Returns a future which completes once a TCP connection to the address succeeds,
+     * or fails with a {@link TimeoutException} if that does not happen within the timeout.
+     * Cancelling the future stops watching the address.
+     * Once the scanner is {@link #close() closed} the future fails with a {@link CancellationException}.
+     */
+    public ListenableFuture<Void> awaitPortOpen(InetSocketAddress address, long timeoutMillis) {
+        Target target = new Target(address, System.currentTimeMillis() + timeoutMillis);
+        added.add(target);
+        // checked after adding, so that the target is either failed here or drained by the stopping selector thread
+        Selector running = closed ? null : ensureRunning();
+        if (running == null) {
+            target.future.setException(stopped());
+        } else {
+            running.wakeup();
+        }
+        return target.future;
+    }
+
+    /** stops the selector thread; every address still being watched fails with a {@link CancellationException} */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        if (selector != null) selector.wakeup();
+    }
+
+    /** starts the selector thread if need be; returns its selector, or null if closed before it ever started */
+    protected synchronized Selector ensureRunning() {
+        if (thread == null && !closed) {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw Exceptions.propagate(e);
+            }
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    loop();
+                }
+            }, "ibm-smartcloud-ssh-scanner");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return selector;
+    }
+
+    protected void loop() {
+        while (!closed) {
+            try {
+                scan();
+            } catch (Throwable t) {
+                // never let an unexpected error stop the scanner
+                LOG.warn("Error scanning for reachable ssh ports: "+t, t);
+                Time.sleep(MAX_SELECT_MILLIS);
+            }
+        }
+        Target t;
+        while ((t = added.poll()) != null) {
+            targets.add(t);
+        }
+        for (Target target : targets) {
+            target.close();
+            target.future.setException(stopped());
+        }
+        targets.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOG.debug("Error closing ssh reachability selector: "+e);
+        }
+    }
+
+    private static CancellationException stopped() {
+        return new CancellationException("Ssh reachability scanner closed");
+    }
+
+    protected void scan() throws IOException {
+        Target t;
+        while ((t = added.poll()) != null) {
+            targets.add(t);
+        }
+
+        long now = System.currentTimeMillis();
+        long nextWake = now + MAX_SELECT_MILLIS;
+        for (Iterator<Target> it = targets.iterator(); it.hasNext();) {
+            Target target = it.next();
+            if (target.future.isDone()) {
+                target.close();
+                it.remove();
+            } else if (now >= target.deadline) {
+                target.close();
+                it.remove();
+                target.future.setException(new TimeoutException(target.address + " not reachable after "
+                        + target.attempt + " attempt(s)"));
+            } else if (target.channel != null && now - target.connectStartedAt > CONNECT_TIMEOUT_MILLIS) {
+                // connect attempt hanging (e.g. packets dropped); abandon it and retry later
+                target.retryLater(now);
+            } else if (target.channel == null && now >= target.nextAttemptAt) {
+                if (target.connect(selector, now)) {
+                    it.remove();
+                    target.future.set(null);
+                }
+            }
+            if (target.channel == null) nextWake = Math.min(nextWake, target.nextAttemptAt);
+        }
+
+        selector.select(Math.max(1, nextWake - System.currentTimeMillis()));
+        now = System.currentTimeMillis();
+        for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+            SelectionKey key = it.next();
+            it.remove();
+            Target target = (Target) key.attachment();
+            try {
+                if (target.channel != null && target.channel.finishConnect()) {
+                    LOG.debug("{} reachable after {} attempt(s)", target.address, target.attempt);
+                    target.close();
+                    targets.remove(target);
+                    target.future.set(null);
+                }
+            } catch (IOException e) {
+                LOG.trace("{} not yet reachable: {}", target.address, e);
+                target.retryLater(now);
+            }
+        }
+    }
+
+    private class Target {
+        final InetSocketAddress address;
+        final long deadline;
+        final long startedAt = System.currentTimeMillis();
+        final SettableFuture<Void> future = SettableFuture.create();
+        SocketChannel channel;
+        long connectStartedAt;
+        long nextAttemptAt = startedAt;
+        int attempt;
+
+        Target(InetSocketAddress address, long deadline) {
+            this.address = address;
+            this.deadline = deadline;
+        }
+
+        /** starts a connect; returns true if it completed immediately */
+        boolean connect(Selector selector, long now) {
+            attempt++;
+            connectStartedAt = now;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    close();
+                    return true;
+                }
+                channel.register(selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                LOG.trace("{} not yet reachable: {}", address, e);
+                retryLater(now);
+            }
+            return false;
+        }
+
+        void retryLater(long now) {
+            close();
+            nextAttemptAt = now + schedule.nextDelayMillis(attempt, now - startedAt);
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                channel = null;
+            }
+        }
+    }
+
+}
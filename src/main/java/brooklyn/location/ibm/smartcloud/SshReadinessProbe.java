@@ -0,0 +1,75 @@
+package brooklyn.location.ibm.smartcloud;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.util.time.Time;
+
+/**
+ * Waits for sshd on a machine to accept connections, e.g. after it has been restarted: a cheap TCP connect
+ * to the ssh port first, and only once that succeeds a full ssh handshake, retrying on a short backoff.
+ */
+public class SshReadinessProbe {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SshReadinessProbe.class);
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2*1000;
+
+    private final PollSchedule schedule;
+
+    public SshReadinessProbe() {
+        this(new BackoffPollSchedule(250L, 1.5, 5*1000L, 0.2));
+    }
+
+    public SshReadinessProbe(PollSchedule schedule) {
+        this.schedule = schedule;
+    }
+
+    /**
+     * @return how long it took for the machine to be sshable, in millis
+     * @throws IllegalStateException if it was not sshable within the timeout
+     */
+    public long awaitSshable(SshMachineLocation machine, long timeoutMillis) {
+        long startTime = System.currentTimeMillis();
+        int attempt = 0;
+        while (true) {
+            if (isPortOpen(machine) && isSshable(machine)) {
+                return System.currentTimeMillis() - startTime;
+            }
+            long elapsed = System.currentTimeMillis() - startTime;
+            if (elapsed >= timeoutMillis) {
+                throw new IllegalStateException("SSH not available on " + machine.getUser() + "@" + machine.getAddress()
+                        + " after waiting " + Time.makeTimeStringRounded(elapsed));
+            }
+            Time.sleep(Math.min(schedule.nextDelayMillis(attempt++, elapsed), timeoutMillis - elapsed));
+        }
+    }
+
+    /** a full ssh handshake with the machine */
+    protected boolean isSshable(SshMachineLocation machine) {
+        return machine.isSshable();
+    }
+
+    protected boolean isPortOpen(SshMachineLocation machine) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(machine.getAddress(), machine.getPort()), CONNECT_TIMEOUT_MILLIS);
+            return true;
+        } catch (IOException e) {
+            LOG.trace("ssh port on {} not yet open: {}", machine, e);
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class BackoffPollScheduleTest {
+
+   @Test
+   public void testBacksOffUpToCap() {
+      BackoffPollSchedule schedule = new BackoffPollSchedule(1000, 2, 5000, 0);
+      assertEquals(schedule.nextDelayMillis(0, 0), 1000);
+      assertEquals(schedule.nextDelayMillis(1, 1000), 2000);
+      assertEquals(schedule.nextDelayMillis(2, 3000), 4000);
+      assertEquals(schedule.nextDelayMillis(3, 7000), 5000);
+      assertEquals(schedule.nextDelayMillis(100, 100000), 5000);
+   }
+
+   @Test
+   public void testJitterStaysWithinBounds() {
+      BackoffPollSchedule schedule = new BackoffPollSchedule(1000, 1, 10000, 0.2);
+      for (int i = 0; i < 100; i++) {
+         long delay = schedule.nextDelayMillis(0, 0);
+         assertTrue(delay >= 800 && delay <= 1200, "delay="+delay);
+      }
+   }
+
+   @Test
+   public void testPollsFastAroundExpectedReadiness() {
+      ReadinessHistory history = new ReadinessHistory(5);
+      history.record(100000);
+      BackoffPollSchedule schedule = new BackoffPollSchedule(1000, 2, 30000, 0).fastPhase(history, 2000, 0.25);
+
+      // does not skip past the start of the window
+      assertEquals(schedule.nextDelayMillis(10, 70000), 5000);
+      // fast inside the window
+      assertEquals(schedule.nextDelayMillis(10, 90000), 2000);
+      assertEquals(schedule.nextDelayMillis(10, 125000), 2000);
+      // back to backoff after the window
+      assertEquals(schedule.nextDelayMillis(10, 130000), 30000);
+   }
+
+   @Test
+   public void testReadinessHistoryPercentiles() {
+      ReadinessHistory history = new ReadinessHistory(3);
+      assertEquals(history.getExpectedMillis(), -1);
+      history.record(10);
+      history.record(30);
+      history.record(20);
+      assertEquals(history.getExpectedMillis(), 20);
+      assertEquals(history.getPercentileMillis(1.0), 30);
+      // oldest sample is replaced
+      history.record(40);
+      assertEquals(history.getCount(), 3);
+      assertEquals(history.getPercentileMillis(0.0), 20);
+   }
+
+}
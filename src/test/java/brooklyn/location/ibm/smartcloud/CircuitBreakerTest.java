@@ -0,0 +1,88 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import org.testng.annotations.Test;
+
+import brooklyn.location.ibm.smartcloud.CircuitBreaker.State;
+import brooklyn.util.time.Time;
+
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+
+public class CircuitBreakerTest {
+
+   @Test
+   public void testOpensAfterConsecutiveFailures() {
+      CircuitBreaker breaker = new CircuitBreaker("test", 3, 60*1000L);
+      failCalls(breaker, 2);
+      breaker.acquire();
+      breaker.onSuccess();
+      failCalls(breaker, 2);
+      assertEquals(breaker.getState(), State.CLOSED);
+      failCalls(breaker, 1);
+      assertEquals(breaker.getState(), State.OPEN);
+      assertRejected(breaker);
+   }
+
+   @Test
+   public void testProbesOnceWhenHalfOpen() {
+      CircuitBreaker breaker = new CircuitBreaker("test", 1, 50L);
+      failCalls(breaker, 1);
+      assertRejected(breaker);
+      Time.sleep(100);
+
+      // one probe, which fails, so open again
+      breaker.acquire();
+      assertEquals(breaker.getState(), State.HALF_OPEN);
+      assertRejected(breaker);
+      breaker.onFailure();
+      assertEquals(breaker.getState(), State.OPEN);
+      Time.sleep(100);
+
+      // one probe, which succeeds, so closed
+      breaker.acquire();
+      breaker.onSuccess();
+      assertEquals(breaker.getState(), State.CLOSED);
+      breaker.acquire();
+      breaker.onSuccess();
+      assertEquals(breaker.toMap().get("opened"), 2L);
+   }
+
+   @Test
+   public void testClientCallsFailFastWhileOpen() throws Exception {
+      SimulatedDeveloperCloud simulator = new SimulatedDeveloperCloud().apiFailureRate(1.0);
+      CircuitBreakingClientHandler breakers = new CircuitBreakingClientHandler(simulator.getClient(), 2, 60*1000L);
+      DeveloperCloudClient client = ForwardingClientHandler.wrap(breakers);
+      for (int i = 0; i < 5; i++) {
+         try {
+            client.describeInstances();
+            fail();
+         } catch (CircuitBreaker.OpenException e) {
+            // expected, once open
+         } catch (SimulatedDeveloperCloud.SimulatedServerException e) {
+            // expected, until open
+         }
+      }
+      assertEquals(simulator.getCallCounts().get("describeInstances"), (Long) 2L);
+      assertEquals(breakers.getState(CircuitBreakingClientHandler.ALL_DATA_CENTERS, ForwardingClientHandler.ApiClass.READ), State.OPEN);
+      assertEquals(breakers.getState(CircuitBreakingClientHandler.ALL_DATA_CENTERS, ForwardingClientHandler.ApiClass.WRITE), State.CLOSED);
+   }
+
+   private void failCalls(CircuitBreaker breaker, int times) {
+      for (int i = 0; i < times; i++) {
+         breaker.acquire();
+         breaker.onFailure();
+      }
+   }
+
+   private void assertRejected(CircuitBreaker breaker) {
+      try {
+         breaker.acquire();
+         fail();
+      } catch (CircuitBreaker.OpenException e) {
+         // expected
+      }
+   }
+
+}
@@ -0,0 +1,82 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.testng.annotations.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class IbmSmartCloudAdmissionTest {
+
+   @Test
+   public void testAdmitsRoundRobinAcrossCallers() throws Exception {
+      IbmSmartCloudAdmission admission = new IbmSmartCloudAdmission(new IbmSmartCloudMachineRegistry(), 1);
+      assertTrue(admission.admit("a", 60*1000L).isDone());
+
+      // a burst from one caller, then one from another
+      ListenableFuture<Void> a1 = admission.admit("a", 60*1000L);
+      ListenableFuture<Void> a2 = admission.admit("a", 60*1000L);
+      ListenableFuture<Void> b1 = admission.admit("b", 60*1000L);
+      assertEquals(admission.getMetrics().get("queueDepth"), 3);
+
+      admission.done();
+      assertTrue(a1.isDone());
+      assertFalse(b1.isDone());
+      admission.done();
+      assertTrue(b1.isDone());
+      assertFalse(a2.isDone());
+      admission.done();
+      assertTrue(a2.isDone());
+      assertEquals(admission.getMetrics().get("queueDepth"), 0);
+      assertEquals(admission.getMetrics().get("admitted"), 4L);
+   }
+
+   @Test
+   public void testCountsRegisteredInstancesAgainstQuota() throws Exception {
+      IbmSmartCloudMachineRegistry registry = new IbmSmartCloudMachineRegistry();
+      IbmSmartCloudAdmission admission = new IbmSmartCloudAdmission(registry, 1);
+      admission.admit("a", 60*1000L).get();
+      IbmSmartCloudMachineRegistry.Record record = registry.register("1", "10.0.0.1", null, null);
+      admission.done();
+
+      // the registered instance still holds the quota until removed
+      ListenableFuture<Void> next = admission.admit("a", 60*1000L);
+      assertFalse(next.isDone());
+      registry.remove(record);
+      admission.capacityChanged();
+      next.get(1, TimeUnit.SECONDS);
+   }
+
+   @Test
+   public void testTimesOutWaiting() throws Exception {
+      IbmSmartCloudAdmission admission = new IbmSmartCloudAdmission(new IbmSmartCloudMachineRegistry(), 1);
+      admission.admit("a", 60*1000L).get();
+      try {
+         admission.admit("b", 100L).get(10, TimeUnit.SECONDS);
+         fail();
+      } catch (ExecutionException e) {
+         assertTrue(e.getCause() instanceof TimeoutException, "cause="+e.getCause());
+      }
+      assertEquals(admission.getMetrics().get("timedOut"), 1L);
+      assertEquals(admission.getMetrics().get("queueDepth"), 0);
+   }
+
+   @Test
+   public void testDiscoversQuotaFromQuotaError() throws Exception {
+      IbmSmartCloudAdmission admission = new IbmSmartCloudAdmission(new IbmSmartCloudMachineRegistry(), 0);
+      admission.admit("a", 60*1000L).get();
+      admission.admit("a", 60*1000L).get();
+      admission.recordQuotaError();
+      admission.done();
+      assertEquals(admission.getQuota(), 1);
+      assertFalse(admission.admit("a", 60*1000L).isDone());
+   }
+
+}
@@ -0,0 +1,115 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.test.Asserts;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Stopwatch;
+
+public class IbmSmartCloudCatalogTest {
+
+   private static final String IMAGE = "Red Hat Enterprise Linux 6.4 (64-bit)";
+
+   private SimulatedDeveloperCloud simulator;
+
+   @BeforeMethod(alwaysRun = true)
+   public void setUp() {
+      simulator = new SimulatedDeveloperCloud().addDataCenter("61", "Ehningen, Germany", "20015394");
+   }
+
+   @Test
+   public void testListsOnceAndMemoizesLookups() {
+      IbmSmartCloudCatalog catalog = new IbmSmartCloudCatalog(simulator.getClient(), 60*1000L);
+      for (int i = 0; i < 3; i++) {
+         assertEquals(catalog.findLocationId("Raleigh"), SimulatedDeveloperCloud.DATA_CENTER_ID);
+         assertEquals(catalog.findImageId(IMAGE, "61"), "20015394");
+         assertEquals(catalog.findInstanceTypeId("20015394", "Copper"), "COP64.2/4096/60");
+      }
+      assertEquals(simulator.getCallCounts().get("describeLocations"), (Long) 1L);
+      assertEquals(simulator.getCallCounts().get("describeImages"), (Long) 1L);
+      assertEquals(simulator.getCallCounts().get("describeImage"), (Long) 1L);
+      assertEquals(catalog.getMetrics().get("misses"), 3L);
+      assertEquals(catalog.getMetrics().get("hits"), 6L);
+   }
+
+   @Test
+   public void testReloadsInBackgroundOnceExpired() {
+      final IbmSmartCloudCatalog catalog = new IbmSmartCloudCatalog(simulator.getClient(), 100L);
+      catalog.findLocationId("Raleigh");
+      Time.sleep(200);
+      simulator.apiLatency(SimulatedDeveloperCloud.fixed(500L));
+      Stopwatch stopwatch = new Stopwatch().start();
+      assertEquals(catalog.findLocationId("Raleigh"), SimulatedDeveloperCloud.DATA_CENTER_ID);
+      assertTrue(stopwatch.elapsed(TimeUnit.MILLISECONDS) < 500, "elapsed="+stopwatch);
+      Asserts.succeedsEventually(new Runnable() {
+         @Override
+         public void run() {
+            assertEquals(catalog.getMetrics().get("refreshes"), 2L);
+         }
+      });
+      assertEquals(simulator.getCallCounts().get("describeLocations"), (Long) 2L);
+      catalog.shutdown();
+   }
+
+   @Test
+   public void testKeepsExpiredListingWhenReloadFails() {
+      final IbmSmartCloudCatalog catalog = new IbmSmartCloudCatalog(simulator.getClient(), 100L);
+      catalog.findLocationId("Raleigh");
+      Time.sleep(200);
+      simulator.apiFailureRate(1.0);
+      assertEquals(catalog.findLocationId("Raleigh"), SimulatedDeveloperCloud.DATA_CENTER_ID);
+      Asserts.succeedsEventually(new Runnable() {
+         @Override
+         public void run() {
+            assertEquals(catalog.getMetrics().get("refreshFailures"), 1L);
+         }
+      });
+      assertEquals(catalog.findLocationId("Raleigh"), SimulatedDeveloperCloud.DATA_CENTER_ID);
+      assertEquals(catalog.findImageId(IMAGE, "61"), "20015394");
+      assertEquals(catalog.getMetrics().get("refreshes"), 1L);
+      catalog.shutdown();
+   }
+
+   @Test
+   public void testFindsDataCenterAddedSinceListedOnceStale() {
+      IbmSmartCloudCatalog catalog = new IbmSmartCloudCatalog(simulator.getClient(), 100L);
+      catalog.findLocationId("Raleigh");
+      simulator.addDataCenter("121", "Singapore", null);
+      Time.sleep(200);
+      assertEquals(catalog.findLocationId("Singapore"), "121");
+   }
+
+   @Test(expectedExceptions = NoSuchElementException.class)
+   public void testFailsForUnknownImage() {
+      new IbmSmartCloudCatalog(simulator.getClient(), 60*1000L).findImageId("No such image", "61");
+   }
+
+   @Test
+   public void testPreloadedMemoAnswersBeforeListing() {
+      IbmSmartCloudCatalog catalog = new IbmSmartCloudCatalog(simulator.getClient(), 60*1000L);
+      catalog.findLocationId("Raleigh");
+      catalog.findImageId(IMAGE, SimulatedDeveloperCloud.DATA_CENTER_ID);
+      Map<String, String> memo = catalog.getMemo();
+      assertEquals(memo.size(), 2);
+
+      SimulatedDeveloperCloud restarted = new SimulatedDeveloperCloud();
+      IbmSmartCloudCatalog preloaded = new IbmSmartCloudCatalog(restarted.getClient(), 60*1000L);
+      preloaded.preload(memo);
+      assertEquals(preloaded.findLocationId("Raleigh"), SimulatedDeveloperCloud.DATA_CENTER_ID);
+      assertEquals(preloaded.findImageId(IMAGE, SimulatedDeveloperCloud.DATA_CENTER_ID), SimulatedDeveloperCloud.IMAGE_ID);
+      assertNull(restarted.getCallCounts().get("describeLocations"));
+      assertEquals(preloaded.getMetrics().get("preloadHits"), 2L);
+      assertEquals(preloaded.getMemo(), memo);
+   }
+
+}
@@ -0,0 +1,79 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+
+public class IbmSmartCloudCustomizationTest {
+
+   private static final String KEYS = "ssh-rsa AAAA test@example.com";
+
+   @Test
+   public void testNothingToDoRendersNoCommands() {
+      IbmSmartCloudCustomization customization = new IbmSmartCloudCustomization("idcuser", false, false, false, null);
+      assertTrue(customization.renderSshCommands().isEmpty());
+      assertEquals(customization.renderBootScript(), "#!/bin/sh\ntouch "+IbmSmartCloudCustomization.BOOT_SCRIPT_DONE_FILE+"\n");
+   }
+
+   @Test
+   public void testBootScriptMarksDoneLast() {
+      IbmSmartCloudCustomization customization = new IbmSmartCloudCustomization("idcuser", true, true, true, KEYS);
+      String script = customization.renderBootScript();
+      assertTrue(script.endsWith("\ntouch "+IbmSmartCloudCustomization.BOOT_SCRIPT_DONE_FILE+"\n"), "script="+script);
+      assertEquals(customization.renderBootScriptDoneCheck(), "test -f "+IbmSmartCloudCustomization.BOOT_SCRIPT_DONE_FILE);
+   }
+
+   @Test
+   public void testSshCommandsRestartSshdLast() {
+      List<String> commands = new IbmSmartCloudCustomization("idcuser", true, false, true, KEYS).renderSshCommands();
+      assertTrue(commands.get(0).contains(KEYS), "commands="+commands);
+      assertTrue(commands.contains("sudo service iptables stop"), "commands="+commands);
+      assertTrue(commands.contains("sudo setenforce 0"), "commands="+commands);
+      assertEquals(commands.get(commands.size() - 1), "sudo /etc/init.d/sshd restart");
+   }
+
+   @Test
+   public void testBootScriptAndSshCommandsApplySameSteps() {
+      IbmSmartCloudCustomization customization = new IbmSmartCloudCustomization("idcuser", true, true, true, KEYS);
+      String script = customization.renderBootScript();
+      String commands = Joiner.on("\n").join(customization.renderSshCommands());
+      for (String step : new String[] { "s/#Subsystem/Subsystem/", "service iptables stop", "chkconfig iptables off",
+            "setenforce 0", "SELINUX=disabled", KEYS }) {
+         assertTrue(script.contains(step), step+" not in script: "+script);
+         assertTrue(commands.contains(step), step+" not in commands: "+commands);
+      }
+      assertTrue(script.contains("~idcuser/.ssh/authorized_keys"), "script="+script);
+   }
+
+   @Test
+   public void testSelinuxOnlyWhenDisabled() {
+      IbmSmartCloudCustomization customization = new IbmSmartCloudCustomization("idcuser", false, true, false, null);
+      assertFalse(customization.renderBootScript().contains("setenforce"));
+      assertFalse(customization.renderSshCommands().contains("sudo setenforce 0"));
+   }
+
+   @Test
+   public void testSubsystemImpliesIptablesStopped() {
+      IbmSmartCloudCustomization customization = new IbmSmartCloudCustomization("idcuser", true, false, false, null);
+      assertFalse(customization.isStopIptables());
+      assertTrue(customization.isIptablesStopped());
+      assertEquals(customization.fingerprint(), new IbmSmartCloudCustomization("idcuser", true, true, false, null).fingerprint());
+   }
+
+   @Test
+   public void testFingerprintDistinguishesCustomizations() {
+      String fingerprint = new IbmSmartCloudCustomization("idcuser", false, false, false, null).fingerprint();
+      assertEquals(fingerprint.length(), 12);
+      assertEquals(new IbmSmartCloudCustomization("idcuser", false, false, false, null).fingerprint(), fingerprint);
+      assertFalse(new IbmSmartCloudCustomization("idcuser", false, false, true, null).fingerprint().equals(fingerprint));
+      assertFalse(new IbmSmartCloudCustomization("root", false, false, false, null).fingerprint().equals(fingerprint));
+      assertFalse(new IbmSmartCloudCustomization("idcuser", false, false, false, KEYS).fingerprint().equals(fingerprint));
+   }
+
+}
@@ -0,0 +1,101 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+import com.ibm.cloud.api.rest.client.bean.Instance;
+
+public class IbmSmartCloudInstancePollerTest {
+
+   private static final int WAITERS = 20;
+
+   private SimulatedDeveloperCloud simulator;
+   private DeveloperCloudClient client;
+   private IbmSmartCloudInstancePoller poller;
+
+   @BeforeMethod(alwaysRun = true)
+   public void setUp() throws Exception {
+      simulator = new SimulatedDeveloperCloud();
+      client = simulator.getClient();
+      client.generateKeyPair("key1");
+   }
+
+   @AfterMethod(alwaysRun = true)
+   public void tearDown() {
+      if (poller != null) poller.shutdown();
+      if (simulator != null) simulator.close();
+   }
+
+   @Test
+   public void testOneListingServesEveryWaiter() throws Exception {
+      simulator.activeDelay(SimulatedDeveloperCloud.fixed(0));
+      poller = new IbmSmartCloudInstancePoller(client, new FixedPollSchedule(100L), 0L);
+      List<ListenableFuture<Instance>> futures = Lists.newArrayList();
+      for (String serverId : createInstances(WAITERS)) {
+         futures.add(poller.await(serverId, Instance.Status.ACTIVE));
+      }
+      for (ListenableFuture<Instance> future : futures) {
+         assertEquals(future.get(10, TimeUnit.SECONDS).getStatus(), Instance.Status.ACTIVE);
+      }
+      assertEquals(simulator.getCallCounts().get("describeInstances"), (Long) 1L);
+      assertNull(simulator.getCallCounts().get("describeInstance"));
+      assertEquals(poller.getWaiterCount(), 0);
+   }
+
+   @Test
+   public void testPollsNoMoreOftenThanMinimumInterval() throws Exception {
+      simulator.activeDelay(SimulatedDeveloperCloud.fixed(1000L));
+      poller = new IbmSmartCloudInstancePoller(client, new FixedPollSchedule(10L), 200L);
+      List<ListenableFuture<Instance>> futures = Lists.newArrayList();
+      for (String serverId : createInstances(WAITERS)) {
+         futures.add(poller.await(serverId, Instance.Status.ACTIVE));
+      }
+      for (ListenableFuture<Instance> future : futures) {
+         future.get(10, TimeUnit.SECONDS);
+      }
+      // about one listing per 200ms until ACTIVE, shared by all the waiters
+      long calls = simulator.getCallCounts().get("describeInstances");
+      assertTrue(calls >= 2 && calls <= 8, "calls="+calls);
+   }
+
+   @Test
+   public void testShutdownFailsWaiters() throws Exception {
+      simulator.activeDelay(SimulatedDeveloperCloud.fixed(60*1000L));
+      poller = new IbmSmartCloudInstancePoller(client, new FixedPollSchedule(100L), 0L);
+      ListenableFuture<Instance> future = poller.await(Iterables.getOnlyElement(createInstances(1)), Instance.Status.ACTIVE);
+      poller.shutdown();
+      try {
+         future.get(10, TimeUnit.SECONDS);
+         fail();
+      } catch (ExecutionException e) {
+         assertTrue(e.getCause() instanceof CancellationException, "cause="+e.getCause());
+      }
+      assertEquals(poller.getWaiterCount(), 0);
+   }
+
+   private List<String> createInstances(int count) throws Exception {
+      List<String> result = Lists.newArrayList();
+      for (int i = 0; i < count; i++) {
+         result.add(Iterables.getOnlyElement(client.createInstance("test"+i, SimulatedDeveloperCloud.DATA_CENTER_ID,
+               SimulatedDeveloperCloud.IMAGE_ID, "COP64.2/4096/60", "key1", (Map<String, Object>) null)).getID());
+      }
+      return result;
+   }
+
+}
@@ -0,0 +1,117 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.test.Asserts;
+
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+
+public class IbmSmartCloudKeyPairsTest {
+
+   private SimulatedDeveloperCloud simulator;
+   private DeveloperCloudClient client;
+   private IbmSmartCloudInstancePoller poller;
+   private IbmSmartCloudReaper reaper;
+   private IbmSmartCloudKeyPairs keyPairs;
+
+   @BeforeMethod(alwaysRun = true)
+   public void setUp() {
+      simulator = new SimulatedDeveloperCloud();
+      client = simulator.getClient();
+      poller = new IbmSmartCloudInstancePoller(client, new FixedPollSchedule(50L), 0L);
+      reaper = new IbmSmartCloudReaper(client, poller, 2, 10*1000L, 3, new FixedPollSchedule(100L));
+      keyPairs = new IbmSmartCloudKeyPairs(client, reaper);
+   }
+
+   @AfterMethod(alwaysRun = true)
+   public void tearDown() {
+      if (reaper != null) reaper.shutdown();
+      if (poller != null) poller.shutdown();
+   }
+
+   @Test
+   public void testSharesOneKeyAndFileUntilLastRelease() throws Exception {
+      String path = keyPairs.acquire("key1");
+      assertEquals(keyPairs.acquire("key1"), path);
+      assertEquals(simulator.getCallCounts().get("generateKeyPair"), (Long) 1L);
+      assertEquals(keyPairs.getMetrics().get("reused"), 1L);
+      assertTrue(keyPairs.isCreated("key1"));
+
+      keyPairs.release("key1");
+      assertTrue(new File(path).exists());
+      assertEquals(simulator.getKeyCount(), 1);
+
+      keyPairs.release("key1");
+      assertFalse(new File(path).exists());
+      assertEventuallyKeyCount(0);
+      assertEquals(keyPairs.getMetrics().get("removed"), 1L);
+   }
+
+   @Test
+   public void testDoesNotRemoveExistingKey() throws Exception {
+      client.generateKeyPair("existing");
+      String path = keyPairs.acquire("existing");
+      assertFalse(keyPairs.isCreated("existing"));
+      assertEquals(keyPairs.getMetrics().get("generated"), 0L);
+
+      keyPairs.release("existing");
+      assertFalse(new File(path).exists());
+      assertFalse(keyPairs.isKnown("existing"));
+      assertEquals(simulator.getKeyCount(), 1);
+   }
+
+   @Test
+   public void testAcquireAfterLastReleaseGeneratesAfresh() throws Exception {
+      keyPairs.acquire("key1");
+      keyPairs.release("key1");
+      keyPairs.acquire("key1");
+      assertEquals(keyPairs.getMetrics().get("generated"), 2L);
+      assertEquals(simulator.getKeyCount(), 1);
+   }
+
+   @Test
+   public void testRestoredKeyRemovedWhenLastMachineReleased() throws Exception {
+      client.generateKeyPair("key1");
+      keyPairs.restore("key1", 2);
+      assertEquals(keyPairs.getCreatedKeys().size(), 1);
+      keyPairs.release("key1");
+      keyPairs.release("key1");
+      assertEventuallyKeyCount(0);
+      assertTrue(keyPairs.getCreatedKeys().isEmpty());
+   }
+
+   @Test
+   public void testPrivateKeyFileReadableOnlyByOwner() throws Exception {
+      String path = keyPairs.acquire("key1");
+      try {
+         assertEquals(Files.getPosixFilePermissions(Paths.get(path)), EnumSet.of(PosixFilePermission.OWNER_READ));
+      } catch (UnsupportedOperationException e) {
+         throw new SkipException("Not a POSIX file system: "+e);
+      } finally {
+         keyPairs.release("key1");
+      }
+   }
+
+   private void assertEventuallyKeyCount(final int expected) {
+      Asserts.succeedsEventually(new Runnable() {
+         @Override
+         public void run() {
+            assertEquals(simulator.getKeyCount(), expected);
+         }
+      });
+   }
+
+}
@@ -0,0 +1,585 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.basic.Entities;
+import brooklyn.location.NoMachinesAvailableException;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.management.internal.LocalManagementContext;
+import brooklyn.test.Asserts;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+
+/**
+ * Tests of {@link IbmSmartCloudLocation} behaviour against a {@link SimulatedDeveloperCloud}.
+ */
+public class IbmSmartCloudLocationSimulatedTest {
+
+   private LocalManagementContext managementContext;
+   private SimulatedDeveloperCloud simulator;
+
+   @BeforeMethod(alwaysRun = true)
+   public void setUp() {
+      managementContext = new LocalManagementContext();
+      simulator = new SimulatedDeveloperCloud();
+   }
+
+   @AfterMethod(alwaysRun = true)
+   public void tearDown() {
+      if (managementContext != null) Entities.destroyAll(managementContext);
+      if (simulator != null) simulator.close();
+   }
+
+   @Test
+   public void testBatchObtainReportsPartialFailure() throws Exception {
+      // room in SCE for only three; a configured quota stops admission holding the others back
+      simulator.instanceQuota(3);
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator).configure(IbmSmartCloudConfig.INSTANCE_QUOTA, 100));
+
+      IbmSmartCloudObtainResult result = location.obtain(5, MutableMap.of());
+      assertEquals(result.getMachines().size(), 3);
+      assertEquals(result.getFailures().size(), 2);
+      assertTrue(result.hasFailures());
+      assertEquals(ImmutableSet.copyOf(result.getMachines()).size(), 3);
+      assertEquals(simulator.getInstanceCount(), 3);
+
+      location.releaseAll(result.getMachines()).get();
+      assertEventuallyInstanceCount(0);
+   }
+
+   @Test
+   public void testWarmPoolRefillsAndExpires() throws Exception {
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.WARM_POOL_ENABLED, true)
+                  .configure(IbmSmartCloudConfig.WARM_POOL_MIN_SIZE, 1)
+                  .configure(IbmSmartCloudConfig.WARM_POOL_MAX_SIZE, 2)
+                  .configure(IbmSmartCloudConfig.WARM_POOL_IDLE_EXPIRY_MILLIS, 0L)
+                  .configure(IbmSmartCloudConfig.WARM_POOL_RETURN_ON_RELEASE, true));
+      location.warmUp();
+      assertEventuallyWarmPoolSize(location, 1);
+
+      // handed out at once, and replaced in the background
+      SshMachineLocation machine = location.obtain(MutableMap.of());
+      assertEquals(((Map<?, ?>) location.getMetrics().get("warmPool")).get("hits"), 1L);
+      assertEventuallyWarmPoolSize(location, 1);
+      assertEquals(simulator.getInstanceCount(), 2);
+
+      // returned on release; above the minimum, so expired once idle
+      location.releaseAsync(machine).get();
+      assertEquals(warmPoolSize(location), 2);
+      location.getWarmPool().expireIdle();
+      assertEquals(warmPoolSize(location), 1);
+      assertEquals(((Map<?, ?>) location.getMetrics().get("warmPool")).get("expired"), 1L);
+      assertEventuallyInstanceCount(1);
+   }
+
+   @Test
+   public void testHedgedCreationUsesFasterBackup() throws Exception {
+      // the first instance is stuck; any later one is quick
+      final AtomicInteger created = new AtomicInteger();
+      simulator.activeDelay(new SimulatedDeveloperCloud.Latency() {
+         public long sampleMillis(Random random) {
+            return created.getAndIncrement() == 0 ? 60*1000L : 100L;
+         }
+      });
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.INSTANCE_CREATION_HEDGING, true)
+                  .configure(IbmSmartCloudConfig.INSTANCE_CREATION_HEDGE_DELAY_MILLIS, 500L));
+
+      Stopwatch stopwatch = new Stopwatch().start();
+      SshMachineLocation machine = location.obtain(MutableMap.of());
+      assertTrue(stopwatch.elapsed(TimeUnit.MILLISECONDS) < 30*1000L, "took "+Time.makeTimeStringRounded(stopwatch));
+
+      Map<?, ?> hedging = (Map<?, ?>) location.getMetrics().get("hedging");
+      assertEquals(hedging.get("launched"), 1L);
+      assertEquals(hedging.get("wins"), 1L);
+
+      // the stuck instance is deleted in the background
+      assertEventuallyInstanceCount(1);
+      location.releaseAsync(machine).get();
+      assertEventuallyInstanceCount(0);
+   }
+
+   @Test
+   public void testDeletesInstancesNotActiveInTime() throws Exception {
+      simulator.activeDelay(SimulatedDeveloperCloud.fixed(60*1000L));
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.CLIENT_POLL_TIMEOUT_MILLIS, 200L)
+                  .configure(IbmSmartCloudConfig.INSTANCE_CREATION_RETRIES, 2));
+      try {
+         location.obtain(MutableMap.of());
+         fail();
+      } catch (Exception e) {
+         // expected
+      }
+      // each timed-out attempt counts towards the retries, and is not left running
+      assertEquals(simulator.getCallCounts().get("createInstance"), (Long) 2L);
+      assertEventuallyInstanceCount(0);
+   }
+
+   @Test
+   public void testDeletesFailedInstances() throws Exception {
+      simulator.instanceFailureRate(1.0);
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.INSTANCE_CREATION_RETRIES, 2));
+      try {
+         location.obtain(MutableMap.of());
+         fail();
+      } catch (Exception e) {
+         // expected
+      }
+      assertEquals(simulator.getCallCounts().get("createInstance"), (Long) 2L);
+      assertEventuallyInstanceCount(0);
+      assertEquals(location.getReaper().getMetrics().get("failed"), 0L);
+   }
+
+   @Test
+   public void testDeletesInstanceNeverSshable() throws Exception {
+      simulator.sshableDelay(SimulatedDeveloperCloud.fixed(60*1000L));
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.SSH_REACHABLE_TIMEOUT_MILLIS, 500L));
+      try {
+         location.obtain(MutableMap.of());
+         fail();
+      } catch (Exception e) {
+         // expected
+      }
+      assertEquals(simulator.getCallCounts().get("createInstance"), (Long) 1L);
+      assertEventuallyInstanceCount(0);
+      assertEquals(location.getRegistry().size(), 0);
+   }
+
+   @Test
+   public void testFailsOverToAnotherDataCenter() throws Exception {
+      simulator.addDataCenter("61", "Ehningen, Germany", "20015394").instanceQuota(SimulatedDeveloperCloud.DATA_CENTER_ID, 0);
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator).configure(IbmSmartCloudConfig.LOCATIONS, "Raleigh, Ehningen"));
+
+      SshMachineLocation machine = location.obtain(MutableMap.of());
+      assertEquals(simulator.getInstanceCount("61"), 1);
+      Map<?, ?> raleigh = (Map<?, ?>) ((Map<?, ?>) location.getMetrics().get("placement")).get("Raleigh");
+      assertEquals(raleigh.get("quotaErrors"), 1L);
+
+      // now avoided while cooling down
+      SshMachineLocation machine2 = location.obtain(MutableMap.of());
+      assertEquals(simulator.getInstanceCount("61"), 2);
+      raleigh = (Map<?, ?>) ((Map<?, ?>) location.getMetrics().get("placement")).get("Raleigh");
+      assertEquals(raleigh.get("quotaErrors"), 1L);
+
+      location.releaseAll(ImmutableList.of(machine, machine2)).get();
+      assertEventuallyInstanceCount(0);
+   }
+
+   @Test
+   public void testReleasesMachineProvisionedBeforeRestart() throws Exception {
+      File stateFile = File.createTempFile("ibm-smartcloud-state", ".properties");
+      stateFile.delete();
+      try {
+         IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+               SimulatedIbmSmartCloudLocation.spec(simulator).configure(IbmSmartCloudConfig.STATE_FILE, stateFile.getAbsolutePath()));
+         SshMachineLocation machine = location.obtain(MutableMap.of());
+         assertEventuallySaved(stateFile, "machine.");
+
+         // a new location with the same state file, as after a restart, knows the machine and its key
+         IbmSmartCloudLocation restarted = managementContext.getLocationManager().createLocation(
+               SimulatedIbmSmartCloudLocation.spec(simulator).configure(IbmSmartCloudConfig.STATE_FILE, stateFile.getAbsolutePath()));
+         assertEquals(restarted.getRegistry().snapshot().size(), 1);
+
+         SshMachineLocation rebound = new SimulatedSshMachineLocation(MutableMap.of("address", machine.getAddress().getHostAddress()),
+               simulator, restarted.getRegistry().snapshot().get(0).getServerId());
+         restarted.releaseAsync(rebound).get();
+         assertEventuallyInstanceCount(0);
+         Asserts.succeedsEventually(new Runnable() {
+            @Override
+            public void run() {
+               assertEquals(simulator.getKeyCount(), 0);
+            }
+         });
+      } finally {
+         stateFile.delete();
+      }
+   }
+
+   @Test
+   public void testBootsFromGoldenImageOnceCaptured() throws Exception {
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator).configure(IbmSmartCloudConfig.GOLDEN_IMAGE_ENABLED, true));
+
+      SshMachineLocation machine = location.obtain(MutableMap.of());
+      assertEquals(simulator.getImageID(serverIdOf(location, machine)), SimulatedDeveloperCloud.IMAGE_ID);
+      assertEventuallyGoldenImageCaptures(location, 1L);
+
+      SshMachineLocation machine2 = location.obtain(MutableMap.of());
+      String goldenImageID = simulator.getImageID(serverIdOf(location, machine2));
+      assertFalse(SimulatedDeveloperCloud.IMAGE_ID.equals(goldenImageID), goldenImageID);
+      assertEquals(((Map<?, ?>) location.getMetrics().get("goldenImages")).get("hits"), 1L);
+
+      // a changed customization is captured afresh, and the old image deleted
+      location.setConfig(IbmSmartCloudConfig.STOP_IPTABLES, true);
+      SshMachineLocation machine3 = location.obtain(MutableMap.of());
+      assertEquals(simulator.getImageID(serverIdOf(location, machine3)), SimulatedDeveloperCloud.IMAGE_ID);
+      assertEventuallyGoldenImageCaptures(location, 2L);
+      assertEquals(simulator.getSavedImageCount(), 1);
+
+      location.releaseAll(ImmutableList.of(machine, machine2, machine3)).get();
+      assertEventuallyInstanceCount(0);
+   }
+
+   @Test
+   public void testObtainAsyncProvisionsManyMachinesOnFewThreads() throws Exception {
+      simulator.activeDelay(SimulatedDeveloperCloud.uniform(500L, 2000L)).instanceFailureRate(0.1);
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator).configure(IbmSmartCloudConfig.PROVISIONING_ASYNC_THREADS, 2));
+
+      List<ListenableFuture<SshMachineLocation>> futures = Lists.newArrayList();
+      for (int i = 0; i < 20; i++) {
+         futures.add(location.obtainAsync(MutableMap.of()));
+      }
+      List<SshMachineLocation> machines = Futures.allAsList(futures).get(60, TimeUnit.SECONDS);
+      assertEquals(ImmutableSet.copyOf(machines).size(), 20);
+      assertEventuallyInstanceCount(20);
+
+      Map<?, ?> async = (Map<?, ?>) location.getMetrics().get("async");
+      assertEquals(async.get("inFlight"), 0);
+      assertEquals(async.get("succeeded"), 20L);
+
+      location.releaseAll(machines).get();
+      assertEventuallyInstanceCount(0);
+   }
+
+   @Test
+   public void testObtainWaitsForProvisioningSlot() throws Exception {
+      simulator.activeDelay(SimulatedDeveloperCloud.fixed(1000L));
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.PROVISIONING_MAX_CONCURRENT, 1)
+                  .configure(IbmSmartCloudConfig.PROVISIONING_MAX_WAIT_MILLIS, 100L));
+      ListenableFuture<SshMachineLocation> first = location.obtainAsync(MutableMap.of());
+
+      // the async path never waits; the blocking path waits only as long as allowed
+      try {
+         location.obtainAsync(MutableMap.of()).get();
+         fail();
+      } catch (ExecutionException e) {
+         assertTrue(e.getCause() instanceof NoMachinesAvailableException, "cause="+e.getCause());
+      }
+      try {
+         location.obtain(MutableMap.of());
+         fail();
+      } catch (NoMachinesAvailableException e) {
+         // expected
+      }
+      SshMachineLocation second = location.obtain(MutableMap.of(IbmSmartCloudConfig.PROVISIONING_MAX_WAIT_MILLIS.getName(), 60*1000L));
+      assertTrue(first.isDone());
+
+      location.releaseAll(ImmutableList.of(first.get(), second)).get();
+      assertEventuallyInstanceCount(0);
+   }
+
+   @Test
+   public void testReleaseFailsOnceTeardownWaitersExceeded() throws Exception {
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.TEARDOWN_MAX_WAITING, 0)
+                  .configure(IbmSmartCloudConfig.TEARDOWN_MAX_WAIT_MILLIS, 100L));
+      SshMachineLocation machine = location.obtain(MutableMap.of());
+
+      // no room to wait, so the caller is told rather than returning as if released
+      try {
+         location.release(machine);
+         fail();
+      } catch (IllegalStateException e) {
+         // expected
+      }
+      Map<?, ?> bulkheads = (Map<?, ?>) location.getMetrics().get("bulkheads");
+      assertEquals(((Map<?, ?>) bulkheads.get("teardown")).get("rejected"), 1L);
+      // the teardown itself still goes ahead
+      assertEventuallyInstanceCount(0);
+   }
+
+   @Test
+   public void testAdmissionTimeoutDoesNotFailOver() throws Exception {
+      simulator.addDataCenter("61", "Ehningen, Germany", "20015394");
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.LOCATIONS, "Raleigh, Ehningen")
+                  .configure(IbmSmartCloudConfig.INSTANCE_QUOTA, 1)
+                  .configure(IbmSmartCloudConfig.ADMISSION_TIMEOUT_MILLIS, 200L));
+      SshMachineLocation machine = location.obtain(MutableMap.of());
+      try {
+         location.obtain(MutableMap.of());
+         fail();
+      } catch (NoMachinesAvailableException e) {
+         // expected
+      }
+      // the quota is the account's, so the other data center is not waited for too
+      Map<?, ?> admission = (Map<?, ?>) location.getMetrics().get("admission");
+      assertEquals(admission.get("timedOut"), 1L);
+      assertEquals(simulator.getCallCounts().get("createInstance"), (Long) 1L);
+      location.release(machine);
+   }
+
+   @Test
+   public void testInterruptedObtainGivesUpItsAdmission() throws Exception {
+      final IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.INSTANCE_QUOTA, 1)
+                  .configure(IbmSmartCloudConfig.PROVISIONING_MAX_CONCURRENT, 1));
+      SshMachineLocation machine = location.obtain(MutableMap.of());
+      Thread waiting = new Thread() {
+         public void run() {
+            try {
+               location.obtain(MutableMap.of());
+            } catch (Exception e) {
+               // expected, once interrupted
+            }
+         }
+      };
+      waiting.start();
+      Asserts.succeedsEventually(new Runnable() {
+         public void run() {
+            assertEquals(((Map<?, ?>) location.getMetrics().get("admission")).get("queueDepth"), 1);
+         }
+      });
+      // waiting for the quota holds no provisioning slot
+      Map<?, ?> bulkheads = (Map<?, ?>) location.getMetrics().get("bulkheads");
+      assertEquals(((Map<?, ?>) bulkheads.get("provisioning")).get("available"), 1);
+      waiting.interrupt();
+      waiting.join(10*1000L);
+      assertFalse(waiting.isAlive());
+
+      // the released capacity goes to the next obtain, not to the interrupted one
+      location.release(machine);
+      SshMachineLocation next = location.obtain(MutableMap.of(IbmSmartCloudConfig.ADMISSION_TIMEOUT_MILLIS.getName(), 10*1000L));
+      Map<?, ?> admission = (Map<?, ?>) location.getMetrics().get("admission");
+      assertEquals(admission.get("inFlight"), 0);
+      assertEquals(admission.get("queueDepth"), 0);
+      location.release(next);
+   }
+
+   @Test
+   public void testReconcilerReclaimsLeakedInstancesAndKeys() throws Exception {
+      final IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.RECONCILER_ENABLED, true)
+                  .configure(IbmSmartCloudConfig.RECONCILER_PERIOD_MILLIS, 60*60*1000L)
+                  .configure(IbmSmartCloudConfig.RECONCILER_GRACE_PERIOD_MILLIS, 0L)
+                  .configure(IbmSmartCloudConfig.RECONCILER_DELETE, true)
+                  .configure(IbmSmartCloudConfig.RECONCILER_NAME_PREFIX, "brooklyn-"));
+      SshMachineLocation machine = location.obtain(MutableMap.of());
+
+      // left behind as if by a crash, alongside an instance and key which are not Brooklyn's
+      DeveloperCloudClient client = simulator.getClient();
+      client.generateKeyPair("brooklyn-leaked");
+      client.generateKeyPair("brooklyn-leaked-unused");
+      client.generateKeyPair("someone-else");
+      client.createInstance("brooklyn-leaked_0", SimulatedDeveloperCloud.DATA_CENTER_ID, SimulatedDeveloperCloud.IMAGE_ID,
+            "COP64.2/4096/60", "brooklyn-leaked", ImmutableMap.<String, Object>of());
+      client.createInstance("someone-else_0", SimulatedDeveloperCloud.DATA_CENTER_ID, SimulatedDeveloperCloud.IMAGE_ID,
+            "COP64.2/4096/60", "someone-else", ImmutableMap.<String, Object>of());
+      assertEquals(simulator.getInstanceCount(), 3);
+
+      location.getReconciler().reconcile();
+      assertEventuallyInstanceCount(2);
+      Map<?, ?> metrics = (Map<?, ?>) location.getMetrics().get("reconciler");
+      assertEquals(metrics.get("instanceLeaksFound"), 1L);
+      assertEquals(metrics.get("keyLeaksFound"), 1L);
+      assertEquals(metrics.get("keysReclaimed"), 1L);
+
+      // once its instance has gone, the leaked instance's key is reclaimed too
+      Asserts.succeedsEventually(new Runnable() {
+         @Override
+         public void run() {
+            assertEquals(((Map<?, ?>) location.getMetrics().get("reconciler")).get("instancesReclaimed"), 1L);
+         }
+      });
+      location.getReconciler().reconcile();
+      metrics = (Map<?, ?>) location.getMetrics().get("reconciler");
+      assertEquals(metrics.get("keysReclaimed"), 2L);
+      assertEquals(simulator.getKeyCount(), 2);
+      assertTrue(location.getRegistry().get(machine) != null);
+
+      location.releaseAsync(machine).get();
+   }
+
+   @Test
+   public void testCustomizesInOneSshSession() throws Exception {
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.SSHD_SUBSYSTEM_ENABLE, true)
+                  .configure(IbmSmartCloudConfig.STOP_IPTABLES, true));
+
+      SshMachineLocation machine = location.obtain(MutableMap.of());
+      assertEquals(simulator.getCommandSessionCount(), 1L);
+
+      // the first handshake, the customization, and the one reconnect after the sshd restart
+      Map<?, ?> sessions = (Map<?, ?>) ((Map<?, ?>) location.getMetrics().get("provisioning")).get("sshSessions");
+      assertEquals(sessions.get("total"), 3L);
+      assertEquals(sessions.get("perMachine"), 3.0);
+
+      location.releaseAsync(machine).get();
+   }
+
+   @Test
+   public void testBootCustomizedMachineWaitsForBootScript() throws Exception {
+      simulator.sshableDelay(SimulatedDeveloperCloud.fixed(0))
+            .bootScriptDelay(SimulatedDeveloperCloud.fixed(1000L));
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.BOOT_TIME_CUSTOMIZATION, true)
+                  .configure(IbmSmartCloudConfig.BOOT_SCRIPT_PARAMETER, "userScript")
+                  .configure(IbmSmartCloudConfig.STOP_IPTABLES, true));
+
+      SshMachineLocation machine = location.obtain(MutableMap.of());
+      // checked until the boot script's done-file exists, not handed out on the first handshake
+      assertTrue(simulator.getCommandSessionCount() > 1, "sessions="+simulator.getCommandSessionCount());
+      assertEquals(machine.execCommands("checking", ImmutableList.of(IbmSmartCloudCustomization.of(location).renderBootScriptDoneCheck())), 0);
+
+      location.releaseAsync(machine).get();
+   }
+
+   @Test
+   public void testCloseStopsBackgroundWorkAndReleasesPool() throws Exception {
+      IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.WARM_POOL_ENABLED, true)
+                  .configure(IbmSmartCloudConfig.RECONCILER_ENABLED, true));
+      ObjectName mbean = new ObjectName("brooklyn.location.ibm.smartcloud:type=Provisioning,location=" + ObjectName.quote(location.getId()));
+      assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(mbean));
+      location.warmUp();
+      assertEventuallyInstanceCount(1);
+
+      location.close();
+      assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(mbean));
+      // the pooled machine was deleted before closing returned, and nothing more can be provisioned
+      assertEquals(simulator.getInstanceCount(), 0);
+      assertEquals(location.getRegistry().size(), 0);
+      assertEquals(location.getReaper().getMetrics().get("failed"), 0L);
+      try {
+         location.obtainAsync(MutableMap.of()).get(10, TimeUnit.SECONDS);
+         fail();
+      } catch (ExecutionException e) {
+         assertTrue(e.getCause() instanceof CancellationException, "cause="+e.getCause());
+      }
+      // closing again does nothing
+      location.close();
+   }
+
+   @Test
+   public void testCloseAbandonsAsyncObtainWaitingForSsh() throws Exception {
+      simulator.sshableDelay(SimulatedDeveloperCloud.fixed(60*1000L));
+      final IbmSmartCloudLocation location = managementContext.getLocationManager().createLocation(
+            SimulatedIbmSmartCloudLocation.spec(simulator)
+                  .configure(IbmSmartCloudConfig.SSH_REACHABLE_TIMEOUT_MILLIS, 60*1000L));
+      ListenableFuture<SshMachineLocation> future = location.obtainAsync(MutableMap.of());
+      Asserts.succeedsEventually(new Runnable() {
+         public void run() {
+            assertEquals(location.getRegistry().size(), 1);
+         }
+      });
+      // the port is open at once, so the pipeline is now retrying the ssh handshake on its scheduler
+      Time.sleep(200);
+
+      location.close();
+      try {
+         future.get(10, TimeUnit.SECONDS);
+         fail();
+      } catch (ExecutionException e) {
+         assertTrue(e.getCause() instanceof CancellationException, "cause="+e.getCause());
+      }
+      assertEventuallyInstanceCount(0);
+      Map<?, ?> bulkheads = (Map<?, ?>) location.getMetrics().get("bulkheads");
+      assertEquals(((Map<?, ?>) bulkheads.get("provisioning")).get("available"), location.getConfig(IbmSmartCloudConfig.PROVISIONING_MAX_CONCURRENT));
+   }
+
+   private String serverIdOf(IbmSmartCloudLocation location, SshMachineLocation machine) {
+      return location.getRegistry().get(machine).getServerId();
+   }
+
+   protected void assertEventuallyGoldenImageCaptures(final IbmSmartCloudLocation location, final long expected) {
+      Asserts.succeedsEventually(new Runnable() {
+         @Override
+         public void run() {
+            assertEquals(((Map<?, ?>) location.getMetrics().get("goldenImages")).get("captures"), expected);
+         }
+      });
+   }
+
+   protected int warmPoolSize(IbmSmartCloudLocation location) {
+      int result = 0;
+      for (Object size : ((Map<?, ?>) ((Map<?, ?>) location.getMetrics().get("warmPool")).get("sizes")).values()) {
+         result += (Integer) size;
+      }
+      return result;
+   }
+
+   protected void assertEventuallyWarmPoolSize(final IbmSmartCloudLocation location, final int expected) {
+      Asserts.succeedsEventually(new Runnable() {
+         @Override
+         public void run() {
+            assertEquals(warmPoolSize(location), expected);
+         }
+      });
+   }
+
+   protected void assertEventuallySaved(final File file, final String expected) {
+      Asserts.succeedsEventually(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               assertTrue(file.exists() && Files.toString(file, Charsets.UTF_8).contains(expected), "no "+expected+" in "+file);
+            } catch (IOException e) {
+               throw Exceptions.propagate(e);
+            }
+         }
+      });
+   }
+
+   protected void assertEventuallyInstanceCount(final int expected) {
+      Asserts.succeedsEventually(new Runnable() {
+         @Override
+         public void run() {
+            assertEquals(simulator.getInstanceCount(), expected);
+         }
+      });
+   }
+
+}
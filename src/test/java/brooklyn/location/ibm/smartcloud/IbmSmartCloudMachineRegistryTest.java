@@ -0,0 +1,133 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.location.ibm.smartcloud.IbmSmartCloudMachineRegistry.Record;
+import brooklyn.location.ibm.smartcloud.IbmSmartCloudMachineRegistry.State;
+import brooklyn.util.collections.MutableMap;
+
+import com.google.common.collect.Lists;
+
+public class IbmSmartCloudMachineRegistryTest {
+
+   private final IbmSmartCloudInstanceSpec spec = new IbmSmartCloudInstanceSpec("41", "20015393", "COP64.2/4096/60");
+
+   @Test
+   public void testIndexesUntilRemoved() {
+      IbmSmartCloudMachineRegistry registry = new IbmSmartCloudMachineRegistry();
+      Record record = registry.register("123", "10.0.0.1", "key1", spec);
+      SshMachineLocation machine = new SshMachineLocation(MutableMap.of("address", "10.0.0.1"));
+      assertTrue(registry.activate(record, machine));
+
+      assertSame(registry.get(machine), record);
+      assertSame(registry.getByServerId("123"), record);
+      assertSame(registry.getByAddress("10.0.0.1"), record);
+      assertEquals(registry.getByKeyName("key1"), Lists.newArrayList(record));
+      assertEquals(record.getState(), State.ACTIVE);
+
+      registry.remove(record);
+      assertEquals(record.getState(), State.REMOVED);
+      assertNull(registry.get(machine));
+      assertNull(registry.getByServerId("123"));
+      assertNull(registry.getByAddress("10.0.0.1"));
+      assertTrue(registry.getByKeyName("key1").isEmpty());
+      assertEquals(registry.getKeyNameCount(), 0);
+      assertTrue(registry.snapshot().isEmpty());
+   }
+
+   @Test(expectedExceptions = IllegalStateException.class)
+   public void testRejectsDuplicateServerId() {
+      IbmSmartCloudMachineRegistry registry = new IbmSmartCloudMachineRegistry();
+      registry.register("123", "10.0.0.1", "key1", spec);
+      registry.register("123", "10.0.0.2", "key1", spec);
+   }
+
+   @Test
+   public void testOnlyOneConcurrentReleaseWins() throws Exception {
+      final IbmSmartCloudMachineRegistry registry = new IbmSmartCloudMachineRegistry();
+      final Record record = registry.register("123", "10.0.0.1", "key1", spec);
+      registry.activate(record, new SshMachineLocation(MutableMap.of("address", "10.0.0.1")));
+
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      try {
+         List<Future<Boolean>> results = Lists.newArrayList();
+         for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(new Callable<Boolean>() {
+               public Boolean call() {
+                  return registry.transition(record, State.ACTIVE, State.RELEASING);
+               }
+            }));
+         }
+         int wins = 0;
+         for (Future<Boolean> result : results) {
+            if (result.get()) wins++;
+         }
+         assertEquals(wins, 1);
+         assertEquals(record.getState(), State.RELEASING);
+         assertFalse(registry.activate(record, new SshMachineLocation(MutableMap.of("address", "10.0.0.1"))));
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void testConcurrentRegistrationsAllIndexed() throws Exception {
+      final IbmSmartCloudMachineRegistry registry = new IbmSmartCloudMachineRegistry();
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      try {
+         List<Future<?>> results = Lists.newArrayList();
+         for (int i = 0; i < 200; i++) {
+            final int id = i;
+            results.add(executor.submit(new Runnable() {
+               public void run() {
+                  registry.register("server"+id, "10.0.0."+id, "key"+(id % 3), spec);
+               }
+            }));
+         }
+         for (Future<?> result : results) result.get();
+         assertEquals(registry.snapshot().size(), 200);
+         assertEquals(registry.getByKeyName("key0").size(), 67);
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void testConcurrentRemovalsDropEmptyKeyNamesWithoutLosingAdds() throws Exception {
+      final IbmSmartCloudMachineRegistry registry = new IbmSmartCloudMachineRegistry();
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      try {
+         List<Future<?>> results = Lists.newArrayList();
+         for (int i = 0; i < 1000; i++) {
+            final int id = i;
+            results.add(executor.submit(new Runnable() {
+               public void run() {
+                  // a per-machine key, and a shared one which empties and fills again; every 10th record stays
+                  registry.remove(registry.register("own"+id, null, "own"+id, spec));
+                  Record record = registry.register("shared"+id, null, "shared", spec);
+                  if (id % 10 != 0) registry.remove(record);
+               }
+            }));
+         }
+         for (Future<?> result : results) result.get();
+         assertEquals(registry.getByKeyName("shared").size(), 100);
+         assertEquals(registry.getKeyNameCount(), 1);
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+}
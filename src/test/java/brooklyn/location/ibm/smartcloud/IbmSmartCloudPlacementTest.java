@@ -0,0 +1,100 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+public class IbmSmartCloudPlacementTest {
+
+   private IbmSmartCloudCatalog catalog;
+
+   @BeforeMethod(alwaysRun = true)
+   public void setUp() {
+      SimulatedDeveloperCloud simulator = new SimulatedDeveloperCloud()
+            .addDataCenter("61", "Ehningen, Germany", "20015394")
+            .addDataCenter("121", "Singapore", null);
+      catalog = new IbmSmartCloudCatalog(simulator.getClient(), 60*1000L);
+   }
+
+   @Test
+   public void testParsesWeights() {
+      List<IbmSmartCloudPlacement.DataCenter> dataCenters = IbmSmartCloudPlacement.parse("Raleigh:2, Ehningen ,Singapore:0.5");
+      assertEquals(dataCenters.size(), 3);
+      assertEquals(dataCenters.get(0).name, "Raleigh");
+      assertEquals(dataCenters.get(0).weight, 2.0);
+      assertEquals(dataCenters.get(1).name, "Ehningen");
+      assertEquals(dataCenters.get(1).weight, 1.0);
+      assertEquals(dataCenters.get(2).weight, 0.5);
+   }
+
+   @Test
+   public void testPrefersFirstListedUntilKnown() {
+      IbmSmartCloudPlacement placement = newPlacement("Raleigh, Ehningen");
+      assertEquals(choose(placement), "41");
+   }
+
+   @Test
+   public void testSpreadsConcurrentPlacements() {
+      IbmSmartCloudPlacement placement = newPlacement("Raleigh, Ehningen");
+      List<String> chosen = Lists.newArrayList();
+      for (int i = 0; i < 4; i++) {
+         String dataCenterID = choose(placement);
+         placement.started(dataCenterID);
+         chosen.add(dataCenterID);
+      }
+      assertEquals(Collections.frequency(chosen, "41"), 2);
+      assertEquals(Collections.frequency(chosen, "61"), 2);
+   }
+
+   @Test
+   public void testAvoidsSlowAndFailingDataCenters() {
+      IbmSmartCloudPlacement placement = newPlacement("Raleigh, Ehningen");
+      placement.recordActive("41", 4*60*1000L);
+      placement.recordActive("61", 2*60*1000L);
+      assertEquals(choose(placement), "61");
+
+      placement.recordFailure("61");
+      placement.recordFailure("61");
+      placement.recordFailure("61");
+      assertEquals(choose(placement), "41");
+   }
+
+   @Test
+   public void testAvoidsDataCenterAfterQuotaError() {
+      IbmSmartCloudPlacement placement = newPlacement("Raleigh:10, Ehningen");
+      placement.recordQuotaError("41");
+      assertEquals(choose(placement), "61");
+      // but used when it is the only one left
+      assertEquals(placement.choose(ImmutableSet.of("61")).getDataCenterID(), "41");
+   }
+
+   @Test
+   public void testSkipsDataCenterWithoutImage() {
+      IbmSmartCloudPlacement placement = newPlacement("Singapore, Ehningen");
+      assertEquals(choose(placement), "61");
+      assertNull(placement.choose(ImmutableSet.of("61")));
+   }
+
+   @Test(expectedExceptions = NoSuchElementException.class)
+   public void testFailsWhenNoDataCenterHasImage() {
+      newPlacement("Singapore").choose(Collections.<String>emptySet());
+   }
+
+   private IbmSmartCloudPlacement newPlacement(String locations) {
+      return new IbmSmartCloudPlacement(catalog, locations, "Red Hat Enterprise Linux 6.4 (64-bit)", "Copper");
+   }
+
+   private String choose(IbmSmartCloudPlacement placement) {
+      return placement.choose(Collections.<String>emptySet()).getDataCenterID();
+   }
+
+}
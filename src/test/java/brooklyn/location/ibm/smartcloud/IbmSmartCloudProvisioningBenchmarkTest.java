@@ -0,0 +1,171 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.basic.Entities;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.management.internal.LocalManagementContext;
+import brooklyn.test.Asserts;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+
+/**
+ * Drives obtain and release against a {@link SimulatedDeveloperCloud} at a given concurrency,
+ * reporting throughput and latency percentiles, so that changes to polling, retry and customization
+ * logic can be measured without SCE credentials.
+ * <p>
+ * Sizes can be overridden with the system properties {@code benchmark.machines} and {@code benchmark.concurrency}.
+ */
+@Test(groups = { "Integration" })
+public class IbmSmartCloudProvisioningBenchmarkTest {
+
+   private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudProvisioningBenchmarkTest.class);
+
+   private LocalManagementContext managementContext;
+   private SimulatedDeveloperCloud simulator;
+
+   @BeforeMethod(alwaysRun = true)
+   public void setUp() {
+      managementContext = new LocalManagementContext();
+      simulator = new SimulatedDeveloperCloud();
+   }
+
+   @AfterMethod(alwaysRun = true)
+   public void tearDown() {
+      if (managementContext != null) Entities.destroyAll(managementContext);
+      if (simulator != null) simulator.close();
+   }
+
+   @Test
+   public void testObtainAndRelease() throws Exception {
+      Result result = run(newLocation(), Integer.getInteger("benchmark.machines", 20), Integer.getInteger("benchmark.concurrency", 5));
+      assertEquals(result.failures, 0);
+      assertNoLeaks();
+   }
+
+   @Test
+   public void testObtainAndReleaseWithFailingInstances() throws Exception {
+      simulator.instanceFailureRate(0.2).activeDelay(SimulatedDeveloperCloud.logNormal(300, 0.5));
+      Result result = run(newLocation(), Integer.getInteger("benchmark.machines", 20), Integer.getInteger("benchmark.concurrency", 5));
+      // 5 attempts each, so failing all of them is vanishingly rare
+      assertEquals(result.failures, 0);
+      assertNoLeaks();
+   }
+
+   protected SimulatedIbmSmartCloudLocation newLocation() {
+      return managementContext.getLocationManager().createLocation(SimulatedIbmSmartCloudLocation.spec(simulator));
+   }
+
+   protected void assertNoLeaks() throws Exception {
+      // releases are waited for, so nothing should remain once key removal has been given time to run
+      Asserts.succeedsEventually(new Runnable() {
+         @Override
+         public void run() {
+            assertEquals(simulator.getInstanceCount(), 0, "instances leaked");
+            assertEquals(simulator.getKeyCount(), 0, "keys leaked");
+         }
+      });
+   }
+
+   /** obtains and then releases the given number of machines, with the given number in progress at once */
+   public static Result run(final IbmSmartCloudLocation location, int machines, int concurrency) throws Exception {
+      final LatencyStats obtainStats = new LatencyStats();
+      final LatencyStats releaseStats = new LatencyStats();
+      ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+      Stopwatch wall = new Stopwatch().start();
+      int failures = 0;
+      try {
+         List<Future<?>> futures = Lists.newArrayList();
+         for (int i = 0; i < machines; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+               public Void call() throws Exception {
+                  Stopwatch stopwatch = new Stopwatch().start();
+                  SshMachineLocation machine = location.obtain(MutableMap.of());
+                  obtainStats.record(stopwatch.elapsed(TimeUnit.MILLISECONDS));
+                  stopwatch.reset().start();
+                  location.releaseAsync(machine).get();
+                  releaseStats.record(stopwatch.elapsed(TimeUnit.MILLISECONDS));
+                  return null;
+               }
+            }));
+         }
+         for (Future<?> future : futures) {
+            try {
+               future.get();
+            } catch (ExecutionException e) {
+               failures++;
+               LOG.warn("Benchmark obtain/release failed: "+e.getCause(), e.getCause());
+            }
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+      Result result = new Result(machines, concurrency, wall.elapsed(TimeUnit.MILLISECONDS), failures, obtainStats, releaseStats);
+      LOG.info("Benchmark in {}: {}; provisioning phases {}", new Object[] { location, result, location.getMetrics().get("provisioning") });
+      return result;
+   }
+
+   public static class Result {
+      public final int machines;
+      public final int concurrency;
+      public final long elapsedMillis;
+      public final int failures;
+      public final LatencyStats obtain;
+      public final LatencyStats release;
+
+      Result(int machines, int concurrency, long elapsedMillis, int failures, LatencyStats obtain, LatencyStats release) {
+         this.machines = machines;
+         this.concurrency = concurrency;
+         this.elapsedMillis = elapsedMillis;
+         this.failures = failures;
+         this.obtain = obtain;
+         this.release = release;
+      }
+
+      /** machines obtained and released per second */
+      public double getThroughput() {
+         return (machines - failures) * 1000.0 / Math.max(1, elapsedMillis);
+      }
+
+      @Override
+      public String toString() {
+         Map<String, Object> obtainMap = obtain.toMap();
+         Map<String, Object> releaseMap = release.toMap();
+         return String.format("%d machines at concurrency %d in %s (%.2f/s, %d failed); obtain p50=%sms p99=%sms; release p50=%sms p99=%sms",
+               machines, concurrency, Time.makeTimeStringRounded(elapsedMillis), getThroughput(), failures,
+               obtainMap.get("p50Millis"), obtainMap.get("p99Millis"), releaseMap.get("p50Millis"), releaseMap.get("p99Millis"));
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      IbmSmartCloudProvisioningBenchmarkTest benchmark = new IbmSmartCloudProvisioningBenchmarkTest();
+      benchmark.setUp();
+      try {
+         int machines = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+         int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+         // the result is logged by run
+         run(benchmark.newLocation(), machines, concurrency);
+      } finally {
+         benchmark.tearDown();
+      }
+   }
+
+}
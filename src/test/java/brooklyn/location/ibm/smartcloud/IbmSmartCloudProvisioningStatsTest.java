@@ -0,0 +1,118 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.location.ibm.smartcloud.ProvisioningTimeline.Phase;
+import brooklyn.util.collections.MutableMap;
+
+import com.google.common.collect.ImmutableList;
+
+public class IbmSmartCloudProvisioningStatsTest {
+
+   private IbmSmartCloudProvisioningStats stats;
+
+   @BeforeMethod(alwaysRun = true)
+   public void setUp() {
+      stats = new IbmSmartCloudProvisioningStats("test");
+   }
+
+   @Test
+   public void testTimelineSumsRepeatedPhasesInOrder() {
+      ProvisioningTimeline timeline = new ProvisioningTimeline();
+      timeline.record(Phase.WAIT_ACTIVE, 1000);
+      timeline.record(Phase.CREATE, 200);
+      timeline.record(Phase.RETRIES, 300);
+      timeline.record(Phase.RETRIES, 400);
+      assertEquals(ImmutableList.copyOf(timeline.toMap().keySet()), ImmutableList.of("create", "waitActive", "retries"));
+      assertEquals(timeline.toMap().get("retries"), (Long) 700L);
+   }
+
+   @Test
+   public void testTimelineSummary() {
+      ProvisioningTimeline timeline = new ProvisioningTimeline();
+      timeline.record(Phase.CREATE, 2000);
+      assertEquals(timeline.toSummary(), "create=2s");
+
+      timeline.incrementAttempts();
+      timeline.incrementAttempts();
+      timeline.recordSshSession(1000);
+      timeline.recordSshSession(-1);
+      assertEquals(timeline.toSummary(), "create=2s attempts=2 sshSessions=2 sshHandshakes=1s");
+      assertEquals(timeline.getSshHandshakeMillis(), 1000L);
+   }
+
+   @Test
+   public void testRecordsToThisThreadsTimeline() throws Exception {
+      ProvisioningTimeline timeline = stats.begin();
+      assertSame(stats.current(), timeline);
+      // nested provisioning contributes to the outer timeline
+      assertNull(stats.begin());
+      stats.record(Phase.CREATE, 100);
+
+      Thread other = new Thread() {
+         public void run() {
+            stats.record(Phase.CREATE, 50);
+         }
+      };
+      other.start();
+      other.join();
+
+      assertEquals(timeline.toMap().get("create"), (Long) 100L);
+      assertEquals(stats.getPhaseStats(Phase.CREATE).getCount(), 2L);
+      stats.finish(timeline, new SshMachineLocation(MutableMap.of("address", "10.0.0.1")));
+      assertNull(stats.current());
+   }
+
+   @Test
+   public void testBoundTimelineFollowsStagesAcrossThreads() throws Exception {
+      final ProvisioningTimeline timeline = new ProvisioningTimeline();
+      Thread stage = new Thread() {
+         public void run() {
+            ProvisioningTimeline previous = stats.bind(timeline);
+            try {
+               stats.record(Phase.SSH_REACHABLE, 300);
+            } finally {
+               stats.bind(previous);
+            }
+         }
+      };
+      stage.start();
+      stage.join();
+      assertEquals(timeline.toMap().get("sshReachable"), (Long) 300L);
+      assertNull(stats.current());
+   }
+
+   @Test
+   public void testFinishCountsOutcomes() {
+      ProvisioningTimeline timeline = stats.begin();
+      timeline.setServerName("server1");
+      stats.recordSshSession(500);
+      stats.finish(timeline, new SshMachineLocation(MutableMap.of("address", "10.0.0.1")));
+      stats.finish(stats.begin(), null);
+      stats.finish(null, null);
+
+      assertEquals(stats.getSucceeded(), 1L);
+      assertEquals(stats.getFailed(), 1L);
+      // only successes contribute to the total
+      assertEquals(stats.getCounts().get("total"), (Long) 1L);
+      assertEquals(stats.getRecentTimelines().size(), 2);
+      assertTrue(stats.getRecentTimelines().get(0).startsWith("Provisioned 10.0.0.1 (server1) in test"),
+            "timelines="+stats.getRecentTimelines());
+      assertTrue(stats.getRecentTimelines().get(1).startsWith("Failed to provision machine in test"),
+            "timelines="+stats.getRecentTimelines());
+
+      Map<?, ?> sshSessions = (Map<?, ?>) stats.getMetrics().get("sshSessions");
+      assertEquals(sshSessions.get("total"), 1L);
+      assertEquals(sshSessions.get("perMachine"), 1.0);
+   }
+
+}
@@ -0,0 +1,117 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.test.Asserts;
+
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+
+public class IbmSmartCloudReaperTest {
+
+   private SimulatedDeveloperCloud simulator;
+   private DeveloperCloudClient client;
+   private IbmSmartCloudInstancePoller poller;
+   private IbmSmartCloudReaper reaper;
+
+   @BeforeMethod(alwaysRun = true)
+   public void setUp() {
+      simulator = new SimulatedDeveloperCloud().activeDelay(SimulatedDeveloperCloud.fixed(0));
+      client = simulator.getClient();
+      poller = new IbmSmartCloudInstancePoller(client, new FixedPollSchedule(50L), 0L);
+      reaper = new IbmSmartCloudReaper(client, poller, 2, 10*1000L, 3, new FixedPollSchedule(100L));
+   }
+
+   @AfterMethod(alwaysRun = true)
+   public void tearDown() {
+      if (reaper != null) reaper.shutdown();
+      if (poller != null) poller.shutdown();
+   }
+
+   @Test
+   public void testDeletesInstanceThenKey() throws Exception {
+      String serverId = createInstance("key1");
+      reaper.teardown(serverId, "key1").get(10, TimeUnit.SECONDS);
+      assertEquals(simulator.getInstanceCount(), 0);
+      assertEquals(simulator.getKeyCount(), 0);
+      assertEquals(reaper.getMetrics().get("completed"), 1L);
+      assertEquals(reaper.getMetrics().get("keysRemoved"), 1L);
+      assertEquals(reaper.getMetrics().get("pending"), 0);
+   }
+
+   @Test
+   public void testRetriesKeyRemovalWhileInstanceUsesIt() throws Exception {
+      String serverId = createInstance("key1");
+      // the key is refused until the instance has gone
+      simulator.removeDelay(SimulatedDeveloperCloud.fixed(150));
+      client.deleteInstance(serverId);
+      reaper.removeKey("key1").get(10, TimeUnit.SECONDS);
+      assertEquals(simulator.getKeyCount(), 0);
+      assertTrue((Long) reaper.getMetrics().get("keyRemovalRetries") >= 1L, "metrics="+reaper.getMetrics());
+      assertEquals(reaper.getMetrics().get("keyRemovalFailures"), 0L);
+   }
+
+   @Test
+   public void testGivesUpOnKeyAfterAttempts() throws Exception {
+      createInstance("key1");
+      // completes rather than failing: the key is left for the reconciler
+      reaper.removeKey("key1").get(10, TimeUnit.SECONDS);
+      assertEquals(simulator.getKeyCount(), 1);
+      assertEquals(reaper.getMetrics().get("keyRemovalRetries"), 2L);
+      assertEquals(reaper.getMetrics().get("keyRemovalFailures"), 1L);
+   }
+
+   @Test
+   public void testShutdownCompletesKeyRemovalWaitingToRetry() throws Exception {
+      reaper.shutdown();
+      reaper = new IbmSmartCloudReaper(client, poller, 2, 10*1000L, 3, new FixedPollSchedule(60*1000L));
+      createInstance("key1");
+      ListenableFuture<Void> removal = reaper.removeKey("key1");
+      Asserts.succeedsEventually(new Runnable() {
+         public void run() {
+            assertEquals(reaper.getMetrics().get("keyRemovalRetries"), 1L);
+         }
+      });
+
+      // the retry will never run, so the removal is given up rather than left incomplete
+      reaper.shutdown();
+      removal.get(10, TimeUnit.SECONDS);
+      assertEquals(reaper.getMetrics().get("keyRemovalFailures"), 1L);
+      assertEquals(simulator.getKeyCount(), 1);
+   }
+
+   @Test
+   public void testFailsWhenNotRemovedInTime() throws Exception {
+      reaper.shutdown();
+      reaper = new IbmSmartCloudReaper(client, poller, 2, 100L, 3, new FixedPollSchedule(100L));
+      simulator.removeDelay(SimulatedDeveloperCloud.fixed(60*1000L));
+      String serverId = createInstance("key1");
+      try {
+         reaper.teardown(serverId, "key1").get(10, TimeUnit.SECONDS);
+         fail();
+      } catch (ExecutionException e) {
+         assertTrue(e.getCause() instanceof TimeoutException, "cause="+e.getCause());
+      }
+      assertEquals(reaper.getMetrics().get("failed"), 1L);
+      assertEquals(simulator.getKeyCount(), 1);
+   }
+
+   private String createInstance(String keyName) throws Exception {
+      client.generateKeyPair(keyName);
+      return Iterables.getOnlyElement(client.createInstance("test", SimulatedDeveloperCloud.DATA_CENTER_ID,
+            SimulatedDeveloperCloud.IMAGE_ID, "COP64.2/4096/60", keyName, (Map<String, Object>) null)).getID();
+   }
+
+}
@@ -1,9 +1,14 @@
 package brooklyn.location.ibm.smartcloud;
 
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -14,9 +19,14 @@ import brooklyn.location.basic.SshMachineLocation;
 import brooklyn.management.ManagementContext;
 import brooklyn.management.internal.LocalManagementContext;
 import brooklyn.util.collections.MutableMap;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Stopwatch;
 
 public class IbmSmartCloudResolverTest {
 
+   private static final Logger LOG = LoggerFactory.getLogger(IbmSmartCloudResolverTest.class);
+
    public static final Map<String, String> FULL_PROPS = MutableMap.of(
            "brooklyn.location.ibm-smartcloud.identity", "x",
            "brooklyn.location.ibm-smartcloud.credential", "y", 
@@ -53,4 +63,60 @@ public class IbmSmartCloudResolverTest {
       Assert.assertEquals(ssh.getUser(), "idcuser");
    }
 
+   @Test
+   public void testEquivalentSpecsShareLocationWhenEnabled() {
+      ManagementContext managementContext = new LocalManagementContext();
+      Map<Object, Object> props = MutableMap.builder().putAll(PROPS).put(IbmSmartCloudResolver.SHARE_LOCATIONS, "true").build();
+      Location l1 = managementContext.getLocationRegistry().resolve("ibm-smartcloud", props);
+      Location l2 = managementContext.getLocationRegistry().resolve("ibm-smartcloud", props);
+      assertSame(l1, l2);
+      
+      Location l3 = managementContext.getLocationRegistry().resolve("ibm-smartcloud", MutableMap.builder().putAll(props).put("user", "other").build());
+      assertNotSame(l1, l3);
+      Assert.assertEquals(((IbmSmartCloudLocation)l3).getUser(), "other");
+   }
+   
+   @Test
+   public void testLocationsNotSharedByDefault() {
+      ManagementContext managementContext = new LocalManagementContext();
+      Location l1 = managementContext.getLocationRegistry().resolve("ibm-smartcloud", PROPS);
+      Location l2 = managementContext.getLocationRegistry().resolve("ibm-smartcloud", PROPS);
+      assertNotSame(l1, l2);
+   }
+   
+   @Test
+   public void testChangedPropertiesAreSeen() {
+      BrooklynProperties props = BrooklynProperties.Factory.newEmpty();
+      props.putAll(FULL_PROPS);
+      ManagementContext managementContext = new LocalManagementContext(props);
+      Location l1 = managementContext.getLocationRegistry().resolve("ibm-smartcloud");
+      Assert.assertEquals(((IbmSmartCloudLocation)l1).getUser(), "idcuser");
+      
+      props.put("brooklyn.location.ibm-smartcloud.user", "changed");
+      Location l2 = managementContext.getLocationRegistry().resolve("ibm-smartcloud");
+      Assert.assertEquals(((IbmSmartCloudLocation)l2).getUser(), "changed");
+   }
+   
+   /** resolve throughput with many unrelated properties; a plain timing loop, so not run by default */
+   @Test(groups = "Integration")
+   public void testResolveThroughput() {
+      BrooklynProperties props = BrooklynProperties.Factory.newEmpty();
+      props.putAll(FULL_PROPS);
+      for (int i = 0; i < 10000; i++) {
+         props.put("brooklyn.location.named.other"+i, "jclouds:aws-ec2:region-"+i);
+      }
+      ManagementContext managementContext = new LocalManagementContext(props);
+      for (int i = 0; i < 100; i++) {
+         managementContext.getLocationRegistry().resolve("ibm-smartcloud");
+      }
+      int count = 1000;
+      Stopwatch stopwatch = new Stopwatch().start();
+      for (int i = 0; i < count; i++) {
+         managementContext.getLocationRegistry().resolve("ibm-smartcloud");
+      }
+      LOG.info("Resolved ibm-smartcloud {} times in {} ({} per second), with {} properties", new Object[] { count,
+            Time.makeTimeStringRounded(stopwatch), count * 1000.0 / Math.max(1, stopwatch.elapsed(TimeUnit.MILLISECONDS)),
+            props.size() });
+   }
+
 }
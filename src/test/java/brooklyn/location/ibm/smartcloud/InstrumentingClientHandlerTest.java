@@ -0,0 +1,101 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.util.Map;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.location.ibm.smartcloud.SceErrors.Kind;
+
+import com.google.common.collect.ImmutableMap;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+
+public class InstrumentingClientHandlerTest {
+
+   private SimulatedDeveloperCloud simulator;
+   private InstrumentingClientHandler instrumentation;
+   private DeveloperCloudClient client;
+
+   @BeforeMethod(alwaysRun = true)
+   public void setUp() {
+      simulator = new SimulatedDeveloperCloud();
+      instrumentation = new InstrumentingClientHandler(simulator.getClient());
+      client = ForwardingClientHandler.wrap(instrumentation);
+   }
+
+   @Test
+   public void testRecordsCallsPerMethod() throws Exception {
+      client.describeLocations();
+      client.describeLocations();
+      client.describeImages();
+      client.setRemoteCredentials("user", "password");
+
+      Map<?, ?> metrics = instrumentation.getMetrics();
+      assertEquals(((Map<?, ?>) metrics.get("describeLocations")).get("calls"), 2L);
+      assertEquals(((Map<?, ?>) metrics.get("describeImages")).get("calls"), 1L);
+      assertEquals(metrics.containsKey("setRemoteCredentials"), false);
+   }
+
+   @Test
+   public void testClassifiesFailures() throws Exception {
+      try {
+         client.describeKey("no-such-key");
+         fail();
+      } catch (Exception e) {
+         // expected
+      }
+      simulator.instanceQuota(0);
+      try {
+         client.createInstance("name", SimulatedDeveloperCloud.DATA_CENTER_ID, SimulatedDeveloperCloud.IMAGE_ID, "COP64.2/4096/60",
+               client.generateKeyPair("key").getName(), ImmutableMap.<String, Object>of());
+         fail();
+      } catch (Exception e) {
+         // expected
+      }
+      simulator.apiFailureRate(1.0);
+      try {
+         client.describeInstances();
+         fail();
+      } catch (Exception e) {
+         // expected
+      }
+
+      assertEquals(instrumentation.getErrorCount(Kind.UNKNOWN_KEY), 1L);
+      assertEquals(instrumentation.getErrorCount(Kind.QUOTA), 1L);
+      assertEquals(instrumentation.getErrorCount(Kind.SERVER_ERROR), 1L);
+      Map<?, ?> errors = (Map<?, ?>) ((Map<?, ?>) instrumentation.getMetrics().get("describeKey")).get("errors");
+      assertEquals(errors.get("unknownKey"), 1L);
+   }
+
+   @Test
+   public void testClassifiesByMessage() {
+      assertEquals(SceErrors.classify(new RuntimeException("Read timed out")), Kind.TIMEOUT);
+      assertEquals(SceErrors.classify(new RuntimeException("wrapper", new IllegalStateException("HTTP 401 Unauthorized"))), Kind.AUTH);
+      assertEquals(SceErrors.classify(new RuntimeException("Insufficient resources in data center")), Kind.QUOTA);
+      assertEquals(SceErrors.classify(new IllegalArgumentException("bad argument")), Kind.OTHER);
+   }
+
+   @Test
+   public void testClassifiesByHttpStatus() {
+      assertEquals(SceErrors.classify(new RuntimeException("Request failed: HTTP 503")), Kind.SERVER_ERROR);
+      assertEquals(SceErrors.classify(new RuntimeException("HTTP/1.1 500 Internal Server Error")), Kind.SERVER_ERROR);
+      assertEquals(SceErrors.classify(new RuntimeException("status code: 403")), Kind.AUTH);
+      assertEquals(SceErrors.classify(new RuntimeException("HTTP 404")), Kind.OTHER);
+   }
+
+   @Test
+   public void testDoesNotClassifyByPassingMentions() {
+      // none of these is an outage or an exhausted quota
+      assertEquals(SceErrors.classify(new IllegalStateException("Simulated server 123 not ACTIVE")), Kind.OTHER);
+      assertEquals(SceErrors.classify(new IllegalArgumentException("Name exceeds length limit")), Kind.OTHER);
+      assertEquals(SceErrors.classify(new IllegalStateException("Insufficient credit on account")), Kind.OTHER);
+      assertEquals(SceErrors.classify(new IllegalArgumentException("No capacity attribute for image")), Kind.OTHER);
+      assertEquals(SceErrors.classify(new IllegalArgumentException("Port 15000 out of range")), Kind.OTHER);
+      // nor is an exception's name enough
+      assertEquals(SceErrors.classify(new SimulatedDeveloperCloud.QuotaExceededException("no room")), Kind.OTHER);
+   }
+
+}
@@ -0,0 +1,95 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+import com.ibm.cloud.api.rest.client.bean.Location;
+
+public class RateLimitingClientHandlerTest {
+
+   private SimulatedDeveloperCloud simulator;
+   private ExecutorService executor;
+
+   @BeforeMethod(alwaysRun = true)
+   public void setUp() {
+      simulator = new SimulatedDeveloperCloud();
+      executor = Executors.newCachedThreadPool();
+   }
+
+   @AfterMethod(alwaysRun = true)
+   public void tearDown() {
+      if (executor != null) executor.shutdownNow();
+   }
+
+   @Test
+   public void testLimitsRateOfReads() throws Exception {
+      RateLimitingClientHandler rateLimiter = new RateLimitingClientHandler(simulator.getClient(), 20, 20);
+      DeveloperCloudClient client = ForwardingClientHandler.wrap(rateLimiter);
+      Stopwatch stopwatch = new Stopwatch().start();
+      for (int i = 0; i < 21; i++) {
+         client.describeLocations();
+      }
+      // 20 calls after the first take at least a second at 20 per second
+      assertTrue(stopwatch.elapsed(TimeUnit.MILLISECONDS) >= 900, "elapsed="+stopwatch);
+      Map<?, ?> reads = (Map<?, ?>) rateLimiter.getMetrics().get("read");
+      assertEquals(reads.get("requests"), 21L);
+      assertEquals(simulator.getCallCounts().get("describeLocations"), (Long) 21L);
+   }
+
+   @Test
+   public void testReadsDoNotQueueBehindWrites() throws Exception {
+      RateLimitingClientHandler rateLimiter = new RateLimitingClientHandler(simulator.getClient(), 1000, 1);
+      DeveloperCloudClient client = ForwardingClientHandler.wrap(rateLimiter);
+      client.generateKeyPair("key1");
+      Stopwatch stopwatch = new Stopwatch().start();
+      for (int i = 0; i < 10; i++) {
+         client.describeKey("key1");
+      }
+      assertTrue(stopwatch.elapsed(TimeUnit.MILLISECONDS) < 900, "elapsed="+stopwatch);
+   }
+
+   @Test
+   public void testCoalescesIdenticalReadsInFlight() throws Exception {
+      simulator.apiLatency(SimulatedDeveloperCloud.fixed(500));
+      RateLimitingClientHandler rateLimiter = new RateLimitingClientHandler(simulator.getClient(), 1000, 1000);
+      final DeveloperCloudClient client = ForwardingClientHandler.wrap(rateLimiter);
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<List<Location>>> results = Lists.newArrayList();
+      for (int i = 0; i < 5; i++) {
+         results.add(executor.submit(new Callable<List<Location>>() {
+            public List<Location> call() throws Exception {
+               start.await();
+               return client.describeLocations();
+            }
+         }));
+      }
+      start.countDown();
+      List<Location> first = results.get(0).get(10, TimeUnit.SECONDS);
+      for (Future<List<Location>> result : results) {
+         assertEquals(result.get(10, TimeUnit.SECONDS), first);
+      }
+      assertEquals(simulator.getCallCounts().get("describeLocations"), (Long) 1L);
+      assertEquals(rateLimiter.getMetrics().get("coalesced"), 4L);
+
+      // once complete, the same read goes to SCE again
+      client.describeLocations();
+      assertEquals(simulator.getCallCounts().get("describeLocations"), (Long) 2L);
+   }
+
+}
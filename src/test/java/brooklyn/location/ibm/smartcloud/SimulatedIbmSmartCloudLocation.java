@@ -0,0 +1,54 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.util.collections.MutableMap;
+
+import com.ibm.cloud.api.rest.client.DeveloperCloudClient;
+
+/**
+ * An {@link IbmSmartCloudLocation} which provisions in a {@link SimulatedDeveloperCloud}.
+ */
+public class SimulatedIbmSmartCloudLocation extends IbmSmartCloudLocation {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final ConfigKey<SimulatedDeveloperCloud> SIMULATOR = ConfigKeys.newConfigKey(SimulatedDeveloperCloud.class,
+            "simulator", "the simulated SCE to provision in");
+
+    /** a spec for a location in the given simulator, polling often enough for the simulator's short delays */
+    public static LocationSpec<SimulatedIbmSmartCloudLocation> spec(SimulatedDeveloperCloud simulator) {
+        return LocationSpec.create(SimulatedIbmSmartCloudLocation.class)
+                .configure(SIMULATOR, simulator)
+                .configure("identity", "simulated")
+                .configure("credential", "simulated")
+                .configure("user", "idcuser")
+                .configure(CLIENT_POLL_SCHEDULE, new FixedPollSchedule(50))
+                .configure(CLIENT_POLL_MIN_INTERVAL_MILLIS, 50L)
+                .configure(SSH_POLL_SCHEDULE, new FixedPollSchedule(50))
+                .configure(INSTALL_LOCAL_AUTHORIZED_KEYS, false)
+                .configure(API_READ_RATE, 1000.0)
+                .configure(API_WRITE_RATE, 1000.0);
+    }
+
+    public SimulatedDeveloperCloud getSimulator() {
+        return checkNotNull(getConfig(SIMULATOR), "simulator");
+    }
+
+    @Override
+    protected DeveloperCloudClient newClient() {
+        return getSimulator().getClient();
+    }
+
+    @Override
+    protected SshMachineLocation createIbmSmartCloudSshMachineLocation(String ipAddress, String serverId,
+            String privateKeyPath) {
+        return new SimulatedSshMachineLocation(MutableMap.builder().put("address", ipAddress).put("displayName", ipAddress)
+                .put(USER, getUser()).put(PRIVATE_KEY_FILE, privateKeyPath).build(), getSimulator(), serverId);
+    }
+
+}
@@ -0,0 +1,40 @@
+package brooklyn.location.ibm.smartcloud;
+
+import java.util.List;
+import java.util.Map;
+
+import brooklyn.location.basic.SshMachineLocation;
+
+/**
+ * A machine of a {@link SimulatedDeveloperCloud}: sshable once the simulated instance has started sshd,
+ * and running commands by just taking the simulated time (failing checks of an unfinished boot script).
+ */
+public class SimulatedSshMachineLocation extends SshMachineLocation {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient SimulatedDeveloperCloud simulator;
+    private final String serverId;
+
+    public SimulatedSshMachineLocation(Map<?, ?> properties, SimulatedDeveloperCloud simulator, String serverId) {
+        super(properties);
+        this.simulator = simulator;
+        this.serverId = serverId;
+    }
+
+    @Override
+    public int getPort() {
+        return simulator.getSshPort();
+    }
+
+    @Override
+    public boolean isSshable() {
+        return simulator.isSshable(serverId);
+    }
+
+    @Override
+    public int execCommands(String summaryForLogging, List<String> commands) {
+        return simulator.execCommands(serverId, commands);
+    }
+
+}
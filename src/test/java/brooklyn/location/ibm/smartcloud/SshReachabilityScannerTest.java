@@ -0,0 +1,78 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class SshReachabilityScannerTest {
+
+   private SshReachabilityScanner scanner;
+   private ServerSocket serverSocket;
+
+   @BeforeMethod(alwaysRun = true)
+   public void setUp() throws Exception {
+      scanner = new SshReachabilityScanner(new FixedPollSchedule(50L));
+      serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+   }
+
+   @AfterMethod(alwaysRun = true)
+   public void tearDown() throws Exception {
+      if (scanner != null) scanner.close();
+      if (serverSocket != null) serverSocket.close();
+   }
+
+   @Test
+   public void testCompletesWhenPortOpen() throws Exception {
+      scanner.awaitPortOpen(address(), 10*1000L).get(10, TimeUnit.SECONDS);
+   }
+
+   @Test
+   public void testTimesOutWhilePortClosed() throws Exception {
+      InetSocketAddress address = address();
+      serverSocket.close();
+      try {
+         scanner.awaitPortOpen(address, 300L).get(10, TimeUnit.SECONDS);
+         fail();
+      } catch (ExecutionException e) {
+         assertTrue(e.getCause() instanceof TimeoutException, "cause="+e.getCause());
+      }
+   }
+
+   @Test
+   public void testCloseFailsWaiters() throws Exception {
+      InetSocketAddress address = address();
+      serverSocket.close();
+      ListenableFuture<Void> waiting = scanner.awaitPortOpen(address, 60*1000L);
+      scanner.close();
+      assertCancelled(waiting);
+      // and anything asked of it afterwards
+      assertCancelled(scanner.awaitPortOpen(address, 60*1000L));
+   }
+
+   private InetSocketAddress address() {
+      return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+   }
+
+   private void assertCancelled(ListenableFuture<Void> future) throws Exception {
+      try {
+         future.get(10, TimeUnit.SECONDS);
+         fail();
+      } catch (ExecutionException e) {
+         assertTrue(e.getCause() instanceof CancellationException, "cause="+e.getCause());
+      }
+   }
+
+}
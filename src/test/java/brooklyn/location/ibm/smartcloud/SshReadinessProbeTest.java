@@ -0,0 +1,72 @@
+package brooklyn.location.ibm.smartcloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.util.collections.MutableMap;
+
+public class SshReadinessProbeTest {
+
+   private ServerSocket serverSocket;
+
+   @BeforeMethod(alwaysRun = true)
+   public void setUp() throws Exception {
+      serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+   }
+
+   @AfterMethod(alwaysRun = true)
+   public void tearDown() throws Exception {
+      if (serverSocket != null) serverSocket.close();
+   }
+
+   @Test
+   public void testRetriesHandshakeUntilSshable() {
+      CountingProbe probe = new CountingProbe(3);
+      probe.awaitSshable(machine(serverSocket.getLocalPort()), 10*1000L);
+      assertEquals(probe.handshakes.get(), 3);
+   }
+
+   @Test
+   public void testNoHandshakeUntilPortOpen() throws Exception {
+      int port = serverSocket.getLocalPort();
+      serverSocket.close();
+      CountingProbe probe = new CountingProbe(1);
+      try {
+         probe.awaitSshable(machine(port), 300L);
+         fail();
+      } catch (IllegalStateException e) {
+         // expected
+      }
+      assertEquals(probe.handshakes.get(), 0);
+   }
+
+   private SshMachineLocation machine(int port) {
+      return new SshMachineLocation(MutableMap.of("address", "127.0.0.1", "port", port));
+   }
+
+   /** sshable on the given handshake, without really connecting */
+   private static class CountingProbe extends SshReadinessProbe {
+      final AtomicInteger handshakes = new AtomicInteger();
+      final int sshableOn;
+
+      CountingProbe(int sshableOn) {
+         super(new FixedPollSchedule(50L));
+         this.sshableOn = sshableOn;
+      }
+
+      @Override
+      protected boolean isSshable(SshMachineLocation machine) {
+         return handshakes.incrementAndGet() >= sshableOn;
+      }
+   }
+
+}